@@ -0,0 +1,43 @@
+import java.util.List;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+
+
+/**
+ * Sets the print flag on every annotation, which PDF/A requires.
+ */
+public class AnnotationPrintFlagFixer implements PdfFixer
+{
+
+	public String getName()
+	{
+		return "printflag";
+	}
+
+	public int fix(PDDocument doc) throws Exception
+	{
+		int changes = 0;
+		List allPages = doc.getDocumentCatalog().getAllPages();
+		for (int i = 0; i < allPages.size(); i++)
+		{
+			PDPage page = (PDPage)allPages.get(i);
+			List annotations = page.getAnnotations();
+			for (int j = 0; j < annotations.size(); j++)
+			{
+				PDAnnotation annot = (PDAnnotation)annotations.get(j);
+				if (!annot.isPrinted())
+				{
+					System.out.println("setting print flag...");
+					annot.setPrinted(true);
+					annot.getDictionary().setNeedToBeUpdate(true);
+					// in case the annotation is a direct object
+					page.getCOSDictionary().setNeedToBeUpdate(true);
+					changes++;
+				}
+			}
+		}
+		return changes;
+	}
+
+}
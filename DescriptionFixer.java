@@ -0,0 +1,73 @@
+import java.util.Arrays;
+import org.apache.jempbox.xmp.XMPMetadata;
+import org.apache.jempbox.xmp.XMPSchemaDublinCore;
+import org.apache.pdfbox.tools.Version;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+
+/**
+ * Rebuilds dc:description, filling in a placeholder when it is missing
+ * or empty ("()"), and copies it to the Info dictionary's Subject.
+ */
+public class DescriptionFixer implements PdfFixer
+{
+
+	public String getName()
+	{
+		return "description";
+	}
+
+	public int fix(PDDocument doc) throws Exception
+	{
+		int changes = 0;
+
+		PDMetadata meta = doc.getDocumentCatalog().getMetadata();
+		byte[] xmp = FixPdf.readXmp(meta);
+		XMPMetadata metadata = meta.exportXMPMetadata();
+		XMPSchemaDublinCore dc = metadata.getDublinCoreSchema();
+
+		PDDocumentInformation info = doc.getDocumentInformation();
+
+		String description = dc.getDescription();
+		if (description == null || description.equals("()"))
+		{
+			description = "PDFBox " + Version.getVersion();
+			changes++;
+		}
+
+		Element root = dc.getElement();
+		NodeList nodes = root.getElementsByTagName("dc:description");
+		if (nodes.getLength() > 0)
+		{
+			Element elem = (Element) nodes.item(0);
+			root.removeChild(elem);
+		}
+		Element dcDescElem
+		    = root.getOwnerDocument().createElement("dc:description");
+		root.appendChild(dcDescElem);
+
+		if (!description.equals(info.getSubject()))
+		{
+			changes++;
+		}
+		info.setSubject(description);
+		dc.setDescription(description);
+
+		meta.importXMPMetadata(metadata);
+		if (!Arrays.equals(xmp, FixPdf.readXmp(meta)))
+		{
+			// the rebuilt XMP is written out even if no value changed
+			changes++;
+		}
+		meta.getStream().setNeedToBeUpdate(true);
+		info.getDictionary().setNeedToBeUpdate(true);
+
+		return changes;
+	}
+
+}
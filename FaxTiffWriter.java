@@ -0,0 +1,447 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Writes bilevel pages to a TIFF file with CCITT Group 3 (T.4, one
+ * dimensional) or Group 4 (T.6) compression, the formats of
+ * ghostscript's tiffg3 and tiffg4 devices.
+ *
+ * Pages are encoded by a {@link Page} a band of rows at a time, so a
+ * page never has to be held uncompressed, and several pages can be
+ * encoded on different threads. Encoded pages are then appended to the
+ * file in order with {@link #writePage}.
+ *
+ * Rows are packed 8 pixels to a byte, most significant bit first, with
+ * set bits black, i.e. the layout of a TYPE_BYTE_BINARY image whose
+ * color model maps index 0 to white.
+ */
+public class FaxTiffWriter
+{
+
+	public static final int G3 = 3;
+	public static final int G4 = 4;
+
+	static final int SHORT = 3;
+	static final int LONG = 4;
+	static final int RATIONAL = 5;
+
+	final RandomAccessFile out;
+
+	/** Where to put the offset of the next IFD. */
+	long nextIfdPointer = 4;
+
+	public FaxTiffWriter(File file) throws IOException
+	{
+		out = new RandomAccessFile(file, "rw");
+		out.setLength(0);
+		// little endian TIFF header, first IFD offset patched later
+		out.write(new byte[] { 'I', 'I', 42, 0, 0, 0, 0, 0 });
+	}
+
+	/**
+	 * Append an encoded page.
+	 */
+	public synchronized void writePage(Page page) throws IOException
+	{
+		byte[] data = page.getData();
+		long dataOffset = out.length();
+		out.seek(dataOffset);
+		out.write(data);
+		if (out.length() % 2 != 0)
+		{
+			out.write(0);
+		}
+
+		// IFD entries in tag order, followed by the resolution values
+		long ifdOffset = out.length();
+		int numEntries = 14;
+		long resOffset = ifdOffset + 2 + numEntries * 12 + 4;
+		ByteArrayOutputStream ifd = new ByteArrayOutputStream();
+		putShort(ifd, numEntries);
+		putEntry(ifd, 254, LONG, 1, 2); // NewSubfileType: page
+		putEntry(ifd, 256, LONG, 1, page.width);
+		putEntry(ifd, 257, LONG, 1, page.height);
+		putEntry(ifd, 258, SHORT, 1, 1); // BitsPerSample
+		putEntry(ifd, 259, SHORT, 1, page.compression);
+		putEntry(ifd, 262, SHORT, 1, 0); // WhiteIsZero
+		putEntry(ifd, 273, LONG, 1, dataOffset); // StripOffsets
+		putEntry(ifd, 277, SHORT, 1, 1); // SamplesPerPixel
+		putEntry(ifd, 278, LONG, 1, page.height); // RowsPerStrip
+		putEntry(ifd, 279, LONG, 1, data.length); // StripByteCounts
+		putEntry(ifd, 282, RATIONAL, 1, resOffset); // XResolution
+		putEntry(ifd, 283, RATIONAL, 1, resOffset); // YResolution
+		putEntry(ifd, page.compression == G3 ? 292 : 293, LONG, 1, 0);
+		putEntry(ifd, 296, SHORT, 1, 2); // ResolutionUnit: inch
+		putLong(ifd, 0); // next IFD
+		putLong(ifd, Math.round(page.dpi * 100));
+		putLong(ifd, 100);
+		out.write(ifd.toByteArray());
+
+		out.seek(nextIfdPointer);
+		writeLong(ifdOffset);
+		nextIfdPointer = ifdOffset + 2 + numEntries * 12;
+	}
+
+	public void close() throws IOException
+	{
+		out.close();
+	}
+
+	void writeLong(long value) throws IOException
+	{
+		out.write(new byte[] { (byte) value, (byte) (value >> 8),
+		                       (byte) (value >> 16), (byte) (value >> 24) });
+	}
+
+	static void putShort(ByteArrayOutputStream buf, int value)
+	{
+		buf.write(value);
+		buf.write(value >> 8);
+	}
+
+	static void putLong(ByteArrayOutputStream buf, long value)
+	{
+		putShort(buf, (int) (value & 0xffff));
+		putShort(buf, (int) (value >> 16));
+	}
+
+	static void putEntry(ByteArrayOutputStream buf, int tag, int type,
+	                     int count, long value)
+	{
+		putShort(buf, tag);
+		putShort(buf, type);
+		putLong(buf, count);
+		if (type == SHORT)
+		{
+			putShort(buf, (int) value);
+			putShort(buf, 0);
+		}
+		else
+		{
+			putLong(buf, value);
+		}
+	}
+
+
+	/**
+	 * One page being encoded.
+	 */
+	public static class Page
+	{
+
+		final int compression;
+		final int width;
+		final int height;
+		final float dpi;
+
+		final BitWriter bits = new BitWriter();
+
+		/** Changing elements of the previous row, for G4. */
+		int[] refChanges;
+		int[] changes;
+		int numRows = 0;
+
+		public Page(int compression, int width, int height, float dpi)
+		{
+			if (compression != G3 && compression != G4)
+			{
+				throw new IllegalArgumentException("compression "
+				                                   + compression);
+			}
+			this.compression = compression;
+			this.width = width;
+			this.height = height;
+			this.dpi = dpi;
+			changes = new int[width + 2];
+			refChanges = new int[width + 2];
+			// an imaginary white row above the first
+			refChanges[0] = width;
+			refChanges[1] = width;
+		}
+
+		/**
+		 * Encode the next rows of the page.
+		 *
+		 * @param data
+		 *            packed rows
+		 * @param stride
+		 *            bytes per row in data
+		 * @param rows
+		 *            number of rows in data
+		 */
+		public void encodeRows(byte[] data, int stride, int rows)
+		{
+			if (numRows + rows > height)
+			{
+				throw new IllegalArgumentException("page has only "
+				                                   + height + " rows");
+			}
+			for (int row = 0; row < rows; row++)
+			{
+				findChanges(data, row * stride, width, changes);
+				if (compression == G4)
+				{
+					encode2D(changes, refChanges);
+					int[] tmp = refChanges;
+					refChanges = changes;
+					changes = tmp;
+				}
+				else
+				{
+					bits.put(EOL);
+					encode1D(changes);
+				}
+				numRows++;
+			}
+		}
+
+		/**
+		 * The encoded page; all its rows must have been encoded.
+		 */
+		byte[] getData()
+		{
+			if (numRows != height)
+			{
+				throw new IllegalStateException("encoded " + numRows
+				                                + " of " + height + " rows");
+			}
+			if (compression == G4 && bits.finished == null)
+			{
+				// end of facsimile block
+				bits.put(EOL);
+				bits.put(EOL);
+			}
+			return bits.finish();
+		}
+
+		void encode1D(int[] changes)
+		{
+			int a0 = 0;
+			boolean white = true;
+			for (int i = 0; ; i++)
+			{
+				int a1 = changes[i];
+				putRun(a1 - a0, white);
+				if (a1 >= width)
+				{
+					break;
+				}
+				a0 = a1;
+				white = !white;
+			}
+		}
+
+		/**
+		 * T.6 coding of a row against the row above.
+		 */
+		void encode2D(int[] changes, int[] ref)
+		{
+			int a0 = -1;
+			// index of a1 in changes; its parity gives a0's color
+			int i = 0;
+			int j = 0;
+			while (a0 < width)
+			{
+				int a1 = changes[i];
+				boolean white = i % 2 == 0;
+				// b1: first change in ref right of a0 to the color
+				// opposite a0's, which is at an index of parity i
+				while (ref[j] <= a0 && ref[j] < width)
+				{
+					j++;
+				}
+				int k = j % 2 == i % 2 ? j : j + 1;
+				int b1 = ref[k];
+				int b2 = b1 >= width ? width : ref[k + 1];
+
+				if (b2 < a1)
+				{
+					bits.put(PASS);
+					a0 = b2;
+				}
+				else if (Math.abs(a1 - b1) <= 3)
+				{
+					bits.put(VERTICAL[a1 - b1 + 3]);
+					a0 = a1;
+					i++;
+				}
+				else
+				{
+					int a2 = a1 >= width ? width : changes[i + 1];
+					bits.put(HORIZONTAL);
+					putRun(a1 - Math.max(a0, 0), white);
+					putRun(a2 - a1, !white);
+					a0 = a2;
+					i += 2;
+				}
+			}
+		}
+
+		void putRun(int run, boolean white)
+		{
+			Code[] makeup = white ? WHITE_MAKEUP : BLACK_MAKEUP;
+			Code[] terminating = white ? WHITE_TERMINATING
+			    : BLACK_TERMINATING;
+			while (run >= 64)
+			{
+				int m = Math.min(run / 64, 40);
+				bits.put(m > 27 ? EXTENDED_MAKEUP[m - 28] : makeup[m - 1]);
+				run -= m * 64;
+			}
+			bits.put(terminating[run]);
+		}
+	}
+
+
+	/**
+	 * Find the changing elements of a row: the positions of pixels whose
+	 * color differs from the pixel before, starting from white, followed
+	 * by width twice.
+	 */
+	static void findChanges(byte[] data, int offset, int width,
+	                        int[] changes)
+	{
+		int n = 0;
+		int color = 0;
+		int x = 0;
+		while (x < width)
+		{
+			int b = data[offset + (x >> 3)] & 0xff;
+			int bit = x & 7;
+			if (bit == 0 && (b == 0 && color == 0 || b == 0xff && color == 1))
+			{
+				// whole byte of the current color
+				x += 8;
+				continue;
+			}
+			if (((b >> (7 - bit)) & 1) != color)
+			{
+				changes[n++] = x;
+				color ^= 1;
+			}
+			x++;
+		}
+		changes[n] = width;
+		changes[n + 1] = width;
+	}
+
+
+	/**
+	 * Writes codes most significant bit first.
+	 */
+	static class BitWriter
+	{
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int acc = 0;
+		int numBits = 0;
+		byte[] finished;
+
+		void put(Code code)
+		{
+			acc = (acc << code.length) | code.bits;
+			numBits += code.length;
+			while (numBits >= 8)
+			{
+				numBits -= 8;
+				buf.write(acc >> numBits);
+			}
+			acc &= (1 << numBits) - 1;
+		}
+
+		byte[] finish()
+		{
+			if (finished == null)
+			{
+				if (numBits > 0)
+				{
+					buf.write(acc << (8 - numBits));
+				}
+				finished = buf.toByteArray();
+				buf = null;
+			}
+			return finished;
+		}
+	}
+
+
+	static class Code
+	{
+
+		final int bits;
+		final int length;
+
+		Code(String code)
+		{
+			this.bits = Integer.parseInt(code, 2);
+			this.length = code.length();
+		}
+	}
+
+
+	static Code[] codes(String codes)
+	{
+		String[] fields = codes.trim().split("\\s+");
+		Code[] result = new Code[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			result[i] = new Code(fields[i]);
+		}
+		return result;
+	}
+
+
+	// T.4 tables 2 and 3: terminating codes for runs of 0 to 63 and
+	// makeup codes for 64 to 1728 in steps of 64, and the extended
+	// makeup codes for 1792 to 2560 shared by both colors.
+
+	static final Code[] WHITE_TERMINATING = codes(
+	    "00110101 000111 0111 1000 1011 1100 1110 1111 "
+	    + "10011 10100 00111 01000 001000 000011 110100 110101 "
+	    + "101010 101011 0100111 0001100 0001000 0010111 0000011 0000100 "
+	    + "0101000 0101011 0010011 0100100 0011000 00000010 00000011 00011010 "
+	    + "00011011 00010010 00010011 00010100 00010101 00010110 00010111 00101000 "
+	    + "00101001 00101010 00101011 00101100 00101101 00000100 00000101 00001010 "
+	    + "00001011 01010010 01010011 01010100 01010101 00100100 00100101 01011000 "
+	    + "01011001 01011010 01011011 01001010 01001011 00110010 00110011 00110100");
+
+	static final Code[] WHITE_MAKEUP = codes(
+	    "11011 10010 010111 0110111 00110110 00110111 01100100 01100101 "
+	    + "01101000 01100111 011001100 011001101 011010010 011010011 011010100 011010101 "
+	    + "011010110 011010111 011011000 011011001 011011010 011011011 010011000 010011001 "
+	    + "010011010 011000 010011011");
+
+	static final Code[] BLACK_TERMINATING = codes(
+	    "0000110111 010 11 10 011 0011 0010 00011 "
+	    + "000101 000100 0000100 0000101 0000111 00000100 00000111 000011000 "
+	    + "0000010111 0000011000 0000001000 00001100111 00001101000 00001101100 00000110111 00000101000 "
+	    + "00000010111 00000011000 000011001010 000011001011 000011001100 000011001101 000001101000 000001101001 "
+	    + "000001101010 000001101011 000011010010 000011010011 000011010100 000011010101 000011010110 000011010111 "
+	    + "000001101100 000001101101 000011011010 000011011011 000001010100 000001010101 000001010110 000001010111 "
+	    + "000001100100 000001100101 000001010010 000001010011 000000100100 000000110111 000000111000 000000100111 "
+	    + "000000101000 000001011000 000001011001 000000101011 000000101100 000001011010 000001100110 000001100111");
+
+	static final Code[] BLACK_MAKEUP = codes(
+	    "0000001111 000011001000 000011001001 000001011011 000000110011 000000110100 000000110101 0000001101100 "
+	    + "0000001101101 0000001001010 0000001001011 0000001001100 0000001001101 0000001110010 0000001110011 0000001110100 "
+	    + "0000001110101 0000001110110 0000001110111 0000001010010 0000001010011 0000001010100 0000001010101 0000001011010 "
+	    + "0000001011011 0000001100100 0000001100101");
+
+	static final Code[] EXTENDED_MAKEUP = codes(
+	    "00000001000 00000001100 00000001101 000000010010 000000010011 000000010100 000000010101 "
+	    + "000000010110 000000010111 000000011100 000000011101 000000011110 000000011111");
+
+	static final Code EOL = new Code("000000000001");
+
+	// T.6 mode codes; VERTICAL is indexed by a1 - b1 + 3
+	static final Code PASS = new Code("0001");
+	static final Code HORIZONTAL = new Code("001");
+	static final Code[] VERTICAL = codes(
+	    "0000010 000010 010 1 011 000011 0000011");
+
+}
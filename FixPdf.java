@@ -0,0 +1,201 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+
+
+/**
+ * Loads a PDF once, runs a chain of fixers over it and saves it once.
+ *
+ * The fixers are run in the order given on the command line and each
+ * one's run time and number of changes is reported. If no fixer
+ * changed anything the input is copied instead of being saved again.
+ *
+ * With -incremental the changes are appended to the original file as
+ * an incremental update instead of rewriting every object, unless
+ * {@link IncrementalSave#whyNot} finds a reason to do a full rewrite.
+ */
+public class FixPdf
+{
+
+	/** All known fixers, by name. */
+	static final Map<String, PdfFixer> FIXERS
+	    = new LinkedHashMap<String, PdfFixer>();
+
+	static
+	{
+		register(new AnnotationPrintFlagFixer());
+		register(new MetadataSyncFixer());
+		register(new DescriptionFixer());
+	}
+
+	static void register(PdfFixer fixer)
+	{
+		FIXERS.put(fixer.getName(), fixer);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int i = 0;
+		boolean incremental = false;
+		if (args.length > 0 && args[0].equals("-incremental"))
+		{
+			incremental = true;
+			i++;
+		}
+
+		if (args.length - i != 4 || !args[i].equals("-fixers"))
+		{
+			usage();
+			System.exit(1);
+		}
+
+		List<PdfFixer> fixers = new ArrayList<PdfFixer>();
+		for (String name : args[i + 1].split(","))
+		{
+			PdfFixer fixer = FIXERS.get(name);
+			if (fixer == null)
+			{
+				System.err.println("Unknown fixer '" + name + "'");
+				usage();
+				System.exit(1);
+			}
+			fixers.add(fixer);
+		}
+
+		if (!run(fixers, args[i + 2], args[i + 3], incremental))
+		{
+			System.exit(1);
+		}
+	}
+
+	static boolean run(List<PdfFixer> fixers, String inputFile,
+	                   String outputFile)
+	{
+		return run(fixers, inputFile, outputFile, false);
+	}
+
+	/**
+	 * Run fixers over inputFile and write the result to outputFile.
+	 *
+	 * @param incremental
+	 *            save as an incremental update if the file allows it
+	 * @return true on success
+	 */
+	static boolean run(List<PdfFixer> fixers, String inputFile,
+	                   String outputFile, boolean incremental)
+	{
+		PdfLoader loader = new PdfLoader(inputFile);
+		String step = "loading";
+		try
+		{
+			long start = System.currentTimeMillis();
+			PDDocument doc = loader.load();
+			report("load", -1, start);
+
+			int totalChanges = 0;
+			for (PdfFixer fixer : fixers)
+			{
+				step = fixer.getName();
+				start = System.currentTimeMillis();
+				int changes = fixer.fix(doc);
+				report(fixer.getName(), changes, start);
+				totalChanges += changes;
+			}
+
+			step = "saving";
+			start = System.currentTimeMillis();
+			if (totalChanges == 0)
+			{
+				loader.close();
+				Files.copy(new File(inputFile).toPath(),
+				           new File(outputFile).toPath(),
+				           StandardCopyOption.REPLACE_EXISTING);
+				report("copy", -1, start);
+			}
+			else
+			{
+				String whyNot = incremental ? IncrementalSave.whyNot(
+				    doc, new File(inputFile)) : "not requested";
+				if (whyNot == null)
+				{
+					IncrementalSave.save(doc, new File(inputFile),
+					                     new File(outputFile));
+					report("incremental save", -1, start);
+				}
+				else
+				{
+					if (incremental)
+					{
+						System.err.println("Can't save incrementally ("
+						                   + whyNot + "), rewriting file");
+					}
+					doc.save(outputFile);
+					report("save", -1, start);
+				}
+			}
+			return true;
+		}
+		catch (Exception ex)
+		{
+			System.err.println("Error " + step + " '" + inputFile
+			                   + "': " + ex);
+			ex.printStackTrace();
+			new File(outputFile).delete();
+			return false;
+		}
+		finally
+		{
+			loader.close();
+		}
+	}
+
+	/**
+	 * The serialized XMP metadata, so fixers that rebuild it can tell
+	 * whether the result differs from what the file had.
+	 */
+	static byte[] readXmp(PDMetadata meta) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = meta.createInputStream();
+		try
+		{
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1)
+			{
+				out.write(buf, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	static void report(String name, int changes, long start)
+	{
+		long elapsed = System.currentTimeMillis() - start;
+		System.err.println(name + ": "
+		                   + (changes < 0 ? "" : changes + " changes, ")
+		                   + (elapsed / 1000.0) + "s");
+	}
+
+	private static void usage()
+	{
+		System.err.println(
+		    "Usage: java FixPdf [-incremental] -fixers [fixer,...] "
+		    + "[input file] [output file]");
+		System.err.println("Fixers: " + FIXERS.keySet());
+	}
+
+}
@@ -0,0 +1,430 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+
+/**
+ * Lists the fonts used by many PDFs, to find books with fonts that
+ * aren't embedded before converting them to PDF/A.
+ *
+ * Books are read in parallel. Fonts are looked up in the COS objects
+ * without building PDFont objects, and each resource dictionary and
+ * font dictionary is only resolved once per book, so pages sharing
+ * resources cost almost nothing. Fonts used by form XObjects are
+ * included.
+ *
+ * One table is printed per book, with the base font, subtype, whether
+ * it is embedded and subset, and the pages it is used on, followed by
+ * a table for the whole corpus.
+ */
+public class FontAudit
+{
+
+	static final COSName BASE_FONT = COSName.getPDFName("BaseFont");
+	static final COSName DESCENDANT_FONTS
+	    = COSName.getPDFName("DescendantFonts");
+	static final COSName FONT = COSName.getPDFName("Font");
+	static final COSName FONT_DESCRIPTOR
+	    = COSName.getPDFName("FontDescriptor");
+	static final COSName[] FONT_FILES = {
+		COSName.getPDFName("FontFile"),
+		COSName.getPDFName("FontFile2"),
+		COSName.getPDFName("FontFile3"),
+	};
+	static final COSName PARENT = COSName.getPDFName("Parent");
+	static final COSName RESOURCES = COSName.getPDFName("Resources");
+	static final COSName SUBTYPE = COSName.getPDFName("Subtype");
+	static final COSName XOBJECT = COSName.getPDFName("XObject");
+
+	static final String HEADER = "base font\tsubtype\tembedded\tsubset";
+
+	public static void main(String[] args) throws Exception
+	{
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		List<String> files = new ArrayList<String>();
+
+		int i = 0;
+		try
+		{
+			for (; i < args.length && args[i].startsWith("-"); i += 2)
+			{
+				if (args[i].equals("-threads"))
+				{
+					numThreads = Integer.parseInt(args[i + 1]);
+				}
+				else if (args[i].equals("-list"))
+				{
+					files.addAll(readList(args[i + 1]));
+				}
+				else
+				{
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException ex)
+		{
+			usage();
+			System.exit(1);
+		}
+		for (; i < args.length; i++)
+		{
+			files.add(args[i]);
+		}
+		if (files.isEmpty())
+		{
+			usage();
+			System.exit(1);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Map<String, SortedSet<Integer>>>> results
+		    = new ArrayList<Future<Map<String, SortedSet<Integer>>>>();
+		for (final String file : files)
+		{
+			results.add(pool.submit(
+			    new Callable<Map<String, SortedSet<Integer>>>()
+			{
+				public Map<String, SortedSet<Integer>> call()
+				{
+					return audit(file);
+				}
+			}));
+		}
+
+		// font -> number of books, number of pages
+		Map<String, int[]> corpus = new TreeMap<String, int[]>();
+		int numFailed = 0;
+		int numNotEmbedded = 0;
+		for (int j = 0; j < files.size(); j++)
+		{
+			Map<String, SortedSet<Integer>> fonts = results.get(j).get();
+			if (fonts == null)
+			{
+				numFailed++;
+				continue;
+			}
+
+			System.out.println("# " + files.get(j));
+			System.out.println(HEADER + "\tpages");
+			boolean notEmbedded = false;
+			for (Map.Entry<String, SortedSet<Integer>> entry
+			     : fonts.entrySet())
+			{
+				System.out.println(entry.getKey() + "\t"
+				                   + pageRanges(entry.getValue()));
+				notEmbedded |= entry.getKey().split("\t")[2].equals("no");
+
+				int[] counts = corpus.get(entry.getKey());
+				if (counts == null)
+				{
+					counts = new int[2];
+					corpus.put(entry.getKey(), counts);
+				}
+				counts[0]++;
+				counts[1] += entry.getValue().size();
+			}
+			System.out.println();
+			if (notEmbedded)
+			{
+				numNotEmbedded++;
+			}
+		}
+		pool.shutdown();
+
+		System.out.println("# corpus");
+		System.out.println(HEADER + "\tbooks\tpages");
+		for (Map.Entry<String, int[]> entry : corpus.entrySet())
+		{
+			System.out.println(entry.getKey() + "\t" + entry.getValue()[0]
+			                   + "\t" + entry.getValue()[1]);
+		}
+
+		System.err.println("Audited " + (files.size() - numFailed)
+		                   + " of " + files.size() + " PDF files, "
+		                   + numNotEmbedded
+		                   + " with fonts that aren't embedded");
+		System.exit(numFailed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Find the fonts used by one book.
+	 *
+	 * @return font row to pages it is used on, or null on error
+	 */
+	static Map<String, SortedSet<Integer>> audit(String pdfFile)
+	{
+		PdfLoader loader = new PdfLoader(pdfFile);
+		try
+		{
+			PDDocument doc = loader.load();
+			Map<String, SortedSet<Integer>> fonts
+			    = new TreeMap<String, SortedSet<Integer>>();
+			Map<COSBase, List<String>> resourceCache
+			    = new IdentityHashMap<COSBase, List<String>>();
+			Map<COSBase, String> fontCache
+			    = new IdentityHashMap<COSBase, String>();
+
+			List pages = doc.getDocumentCatalog().getAllPages();
+			for (int i = 0; i < pages.size(); i++)
+			{
+				PDPage page = (PDPage) pages.get(i);
+				COSDictionary resources
+				    = findResources(page.getCOSDictionary());
+				for (String font
+				     : fontsIn(resources, resourceCache, fontCache))
+				{
+					SortedSet<Integer> fontPages = fonts.get(font);
+					if (fontPages == null)
+					{
+						fontPages = new TreeSet<Integer>();
+						fonts.put(font, fontPages);
+					}
+					fontPages.add(i + 1);
+				}
+			}
+			return fonts;
+		}
+		catch (Exception ex)
+		{
+			System.err.println("Error auditing fonts in '" + pdfFile
+			                   + "': " + ex);
+			return null;
+		}
+		finally
+		{
+			loader.close();
+		}
+	}
+
+	/**
+	 * Page resources, which may be inherited from the page tree.
+	 */
+	static COSDictionary findResources(COSDictionary node)
+	{
+		while (node != null)
+		{
+			COSBase resources = node.getDictionaryObject(RESOURCES);
+			if (resources instanceof COSDictionary)
+			{
+				return (COSDictionary) resources;
+			}
+			COSBase parent = node.getDictionaryObject(PARENT);
+			node = parent instanceof COSDictionary
+			       ? (COSDictionary) parent : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Font rows used by a resource dictionary and the form XObjects it
+	 * refers to.
+	 */
+	static List<String> fontsIn(COSDictionary resources,
+	                            Map<COSBase, List<String>> resourceCache,
+	                            Map<COSBase, String> fontCache)
+	{
+		if (resources == null)
+		{
+			return Collections.emptyList();
+		}
+		List<String> fonts = resourceCache.get(resources);
+		if (fonts != null)
+		{
+			return fonts;
+		}
+		fonts = new ArrayList<String>();
+		// Put it in the cache first in case a form refers back to it
+		resourceCache.put(resources, fonts);
+
+		COSBase fontDict = resources.getDictionaryObject(FONT);
+		if (fontDict instanceof COSDictionary)
+		{
+			COSDictionary dict = (COSDictionary) fontDict;
+			for (COSName name : dict.keySet())
+			{
+				COSBase font = dict.getDictionaryObject(name);
+				if (!(font instanceof COSDictionary))
+				{
+					continue;
+				}
+				String row = fontCache.get(font);
+				if (row == null)
+				{
+					row = describe((COSDictionary) font);
+					fontCache.put(font, row);
+				}
+				if (!fonts.contains(row))
+				{
+					fonts.add(row);
+				}
+			}
+		}
+
+		COSBase xobjects = resources.getDictionaryObject(XOBJECT);
+		if (xobjects instanceof COSDictionary)
+		{
+			COSDictionary dict = (COSDictionary) xobjects;
+			for (COSName name : dict.keySet())
+			{
+				COSBase xobject = dict.getDictionaryObject(name);
+				if (!(xobject instanceof COSStream)
+				    || !"Form".equals(((COSStream) xobject)
+				                      .getNameAsString(SUBTYPE)))
+				{
+					continue;
+				}
+				COSBase formResources = ((COSStream) xobject)
+				    .getDictionaryObject(RESOURCES);
+				if (formResources instanceof COSDictionary)
+				{
+					for (String row : fontsIn((COSDictionary) formResources,
+					                          resourceCache, fontCache))
+					{
+						if (!fonts.contains(row))
+						{
+							fonts.add(row);
+						}
+					}
+				}
+			}
+		}
+		return fonts;
+	}
+
+	/**
+	 * Table row for a font dictionary: base font, subtype, embedded and
+	 * subset.
+	 */
+	static String describe(COSDictionary font)
+	{
+		String baseFont = font.getNameAsString(BASE_FONT);
+		String subtype = font.getNameAsString(SUBTYPE);
+		COSDictionary descFont = font;
+
+		if ("Type0".equals(subtype))
+		{
+			COSBase descendants = font.getDictionaryObject(DESCENDANT_FONTS);
+			if (descendants instanceof COSArray
+			    && ((COSArray) descendants).size() > 0
+			    && ((COSArray) descendants).getObject(0)
+			       instanceof COSDictionary)
+			{
+				descFont = (COSDictionary) ((COSArray) descendants)
+				    .getObject(0);
+				subtype += "/" + descFont.getNameAsString(SUBTYPE);
+			}
+		}
+
+		// Type 3 glyphs are drawn by content streams in the font itself
+		boolean embedded = "Type3".equals(subtype);
+		COSBase descriptor = descFont.getDictionaryObject(FONT_DESCRIPTOR);
+		if (descriptor instanceof COSDictionary)
+		{
+			for (COSName key : FONT_FILES)
+			{
+				if (((COSDictionary) descriptor).getDictionaryObject(key)
+				    != null)
+				{
+					embedded = true;
+				}
+			}
+		}
+
+		boolean subset = baseFont != null
+		    && baseFont.matches("[A-Z]{6}\\+.*");
+
+		return (baseFont == null ? "" : baseFont) + "\t"
+		       + (subtype == null ? "" : subtype) + "\t"
+		       + (embedded ? "yes" : "no") + "\t"
+		       + (subset ? "yes" : "no");
+	}
+
+	/**
+	 * Page numbers as ranges, e.g. "1-4,7,9-10".
+	 */
+	static String pageRanges(SortedSet<Integer> pages)
+	{
+		StringBuilder buf = new StringBuilder();
+		int first = -1;
+		int last = -1;
+		for (int page : pages)
+		{
+			if (page == last + 1)
+			{
+				last = page;
+				continue;
+			}
+			appendRange(buf, first, last);
+			first = last = page;
+		}
+		appendRange(buf, first, last);
+		return buf.toString();
+	}
+
+	private static void appendRange(StringBuilder buf, int first, int last)
+	{
+		if (first < 0)
+		{
+			return;
+		}
+		if (buf.length() > 0)
+		{
+			buf.append(',');
+		}
+		buf.append(first);
+		if (last > first)
+		{
+			buf.append('-').append(last);
+		}
+	}
+
+	static List<String> readList(String listFile) throws Exception
+	{
+		List<String> files = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+		    new FileInputStream(listFile), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() > 0)
+				{
+					files.add(line);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return files;
+	}
+
+	private static void usage()
+	{
+		System.err.println(
+		    "Usage: java FontAudit [-threads n] [-list file] [pdf file ...]");
+	}
+
+}
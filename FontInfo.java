@@ -1,3 +1,4 @@
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -11,16 +12,22 @@ public class FontInfo
 
 	public static void main(String[] args) throws Exception
 	{
-		PDDocument doc = null;
+		if (args.length > 0 && args[0].equals("-audit"))
+		{
+			FontAudit.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		if (args.length != 1)
 		{
 			usage();
 			System.exit(1);
 		}
 
+		PdfLoader loader = new PdfLoader(args[0]);
 		try
 		{
-			doc = PDDocument.load(args[0]);
+			PDDocument doc = loader.load();
 			List allPages = doc.getDocumentCatalog().getAllPages();
 			for (int i = 0; i < allPages.size(); i++)
 			{
@@ -42,10 +49,7 @@ public class FontInfo
 		}
 		finally
 		{
-			if (doc != null)
-			{
-				doc.close();
-			}
+			loader.close();
 		}
 	}
 
@@ -53,6 +57,9 @@ public class FontInfo
 	{
 		System.err.println(
 		    "Usage: java CheckFonts [input file]");
+		System.err.println(
+		    "       java CheckFonts -audit [-threads n] [-list file] "
+		    + "[pdf file ...]");
 	}
 
 }
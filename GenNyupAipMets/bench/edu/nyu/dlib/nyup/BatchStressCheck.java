@@ -0,0 +1,128 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concurrency check of batch mode: generates many copies of a synthetic
+ * AIP, runs the batch over them once on one thread and once on many,
+ * and compares every METS document of the parallel run with the one of
+ * the serial run. Only the header dates may differ.
+ *
+ * Usage: BatchStressCheck &lt;work dir&gt; [copies] [threads] [scale]
+ *
+ * The work directory must not exist and is removed again if every
+ * document matches. The exit status is 0 if all match, 2 if not and 1
+ * for usage errors. Run it with "ant stress".
+ */
+public class BatchStressCheck {
+
+	static final String DATE_REGEX = "(CREATEDATE|LASTMODDATE)=\"[^\"]*\"";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 4) {
+			System.err.println("Usage: java BatchStressCheck <work dir> "
+				+ "[copies] [threads] [scale]");
+			System.exit(1);
+		}
+		File workDir = new File(args[0]);
+		int copies = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int threads = args.length > 2 ? Integer.parseInt(args[2])
+			: Runtime.getRuntime().availableProcessors();
+		double scale = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+
+		if (workDir.exists()) {
+			System.err.println(workDir + " already exists");
+			System.exit(1);
+		}
+
+		File aipsDir = new File(workDir, "aips");
+		File serialDir = new File(workDir, "serial");
+		File parallelDir = new File(workDir, "parallel");
+		serialDir.mkdirs();
+		parallelDir.mkdirs();
+
+		System.out.println("Creating " + copies + " AIPs in " + aipsDir);
+		ArrayList<SyntheticAip> aips = new ArrayList<SyntheticAip>();
+		for (int i = 0; i < copies; i++) {
+			aips.add(new SyntheticAip(new File(aipsDir,
+				"aip" + SyntheticAip.pad(i)), scale, 0));
+		}
+
+		int failed = runBatch(aips, serialDir, 1)
+			+ runBatch(aips, parallelDir, threads);
+
+		int mismatches = 0;
+		for (SyntheticAip aip : aips) {
+			String name = aip.getId() + ".xml";
+			String serial = read(new File(serialDir, name));
+			String parallel = read(new File(parallelDir, name));
+			if (serial == null || parallel == null) {
+				continue;
+			}
+			if (!serial.equals(parallel)) {
+				System.out.println(name + ": " + firstDifference(serial,
+					parallel));
+				mismatches++;
+			}
+		}
+
+		System.out.println(copies + " AIPs on " + threads + " threads: "
+			+ failed + " failed, " + mismatches + " differ");
+		if (failed > 0 || mismatches > 0) {
+			System.out.println("Output kept in " + workDir);
+			System.exit(2);
+		}
+		SyntheticAip.delete(workDir);
+	}
+
+	/**
+	 * Generate the METS of every AIP into outDir on numThreads threads.
+	 *
+	 * @return number of AIPs that failed
+	 */
+	static int runBatch(List<SyntheticAip> aips, File outDir, int numThreads)
+			throws InterruptedException, IOException {
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		for (SyntheticAip aip : aips) {
+			rows.add(new String[] {
+				aip.getId(), aip.getVersion(), aip.getDir().getPath(),
+				new File(outDir, aip.getId() + ".xml").getPath()
+			});
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			System.out, "UTF-8"));
+		return GenNyupAipMetsBatch.process(rows, numThreads, out);
+	}
+
+	/**
+	 * The METS document with its header dates blanked out, or null if
+	 * it wasn't written.
+	 */
+	static String read(File file) throws IOException {
+		if (!file.isFile()) {
+			System.out.println(file + " is missing");
+			return null;
+		}
+		String text = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+		return text.replaceAll(DATE_REGEX, "$1=\"\"");
+	}
+
+	static String firstDifference(String expected, String actual) {
+		String[] a = expected.split("\n", -1);
+		String[] b = actual.split("\n", -1);
+		for (int i = 0; i < Math.min(a.length, b.length); i++) {
+			if (!a[i].equals(b[i])) {
+				return "line " + (i + 1) + ": expected \"" + a[i].trim()
+					+ "\" but got \"" + b[i].trim() + "\"";
+			}
+		}
+		return "expected " + a.length + " lines but got " + b.length;
+	}
+
+}
@@ -0,0 +1,131 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the single phases of METS generation on a synthetic AIP:
+ * checksumming, scanning the directory tree, ID generation and MIME
+ * type lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PhaseBenchmark {
+
+	/** File size factor, 1 is a typical book. */
+	@Param({ "0.1", "1" })
+	public double scale;
+
+	/** Extra cover images, to vary the number of files. */
+	@Param({ "0", "200" })
+	public int extraCovers;
+
+	SyntheticAip aip;
+	GenNyupAipMets gen;
+	Map<String, ArrayList<File>> fileGroups;
+	List<File> files;
+	File largestFile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		File tmpDir = Files.createTempDirectory("nyup-bench").toFile();
+		aip = new SyntheticAip(new File(tmpDir, "aip"), scale, extraCovers);
+		gen = new GenNyupAipMets(aip.getId(), aip.getVersion(),
+			aip.getDir().getPath());
+
+		// scan once so the relative path offsets used by genId are set
+		fileGroups = gen.scan();
+		files = new ArrayList<File>();
+		for (List<File> group : fileGroups.values()) {
+			files.addAll(group);
+		}
+		Collections.sort(files);
+		largestFile = aip.getLargestFile();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		aip.delete();
+		aip.getDir().getParentFile().delete();
+	}
+
+	/** Digest of the largest file, without the in-memory memo. */
+	@Benchmark
+	public String checksumLargest() throws Exception {
+		gen.setChecksumEngine(new ChecksumEngine());
+		return gen.getChecksum(largestFile);
+	}
+
+	/** Digests of every file of the AIP, without the in-memory memo. */
+	@Benchmark
+	public void checksumAll(Blackhole bh) throws Exception {
+		gen.setChecksumEngine(new ChecksumEngine());
+		for (File file : files) {
+			bh.consume(gen.getChecksum(file));
+		}
+	}
+
+	/**
+	 * Digests of every file of the AIP hashed up front on
+	 * nyup.hash.threads threads, as write() does.
+	 */
+	@Benchmark
+	public Object hashAll() throws Exception {
+		gen.setChecksumEngine(new ChecksumEngine());
+		gen.hashAll(fileGroups);
+		return gen.getChecksumEngine();
+	}
+
+	/** Sort the version directory into file groups. */
+	@Benchmark
+	public Object scan() throws Exception {
+		return gen.scan();
+	}
+
+	@Benchmark
+	public void genId(Blackhole bh) throws Exception {
+		for (File file : files) {
+			String path = file.getPath();
+			bh.consume(gen.genId(file, path.contains("/data/")));
+		}
+	}
+
+	@Benchmark
+	public void zeroPad(Blackhole bh) {
+		for (int i = 1; i <= files.size(); i++) {
+			bh.consume(GenNyupAipMets.zeroPad(i, 3));
+		}
+	}
+
+	@Benchmark
+	public void getMimeType(Blackhole bh) throws Exception {
+		for (File file : files) {
+			bh.consume(GenNyupAipMets.getMimeType(file));
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Builds a fake AIP directory for the benchmarks, laid out like a real
+ * NYU Press book: the usual PDF, ePub and cover data files with their
+ * sizes scaled by a factor, and the matching metadata files.
+ *
+ * File contents are random so nothing is helped by sparse files or
+ * filesystem compression. The same seed always gives the same tree.
+ */
+public class SyntheticAip {
+
+	static final int KB = 1024;
+	static final int MB = 1024 * 1024;
+
+	static final String ISBN = "9780814700000";
+
+	/** Data files: path below data/, size in bytes at scale 1. */
+	static final Object[][] DATA_FILES = {
+		{ "ePub/" + ISBN + ".epub",             3 * MB },
+		{ "Universal_PDF/" + ISBN + ".pdf",    12 * MB },
+		{ "Universal_PDF/" + ISBN + ".pdfa",   14 * MB },
+		{ "Print_PDF/" + ISBN + ".pdf",        40 * MB },
+		{ "Print_PDF/" + ISBN + ".pdfa",       42 * MB },
+		{ "Cover_PDF/" + ISBN + ".pdf",         6 * MB },
+		{ "Cover_JPEG/" + ISBN + ".jpg",        1 * MB },
+	};
+
+	/** Metadata files: path below metadata/, size at scale 1. */
+	static final Object[][] META_FILES = {
+		{ ISBN + "_onix.xml",                            24 * KB },
+		{ ISBN + "_mods.xml",                            12 * KB },
+		{ "aip_rights.xml",                               2 * KB },
+		{ "aip_digiprov.xml",                             6 * KB },
+		{ "Universal_PDF/" + ISBN + "_pdfa_jhove.xml",  250 * KB },
+		{ "Universal_PDF/" + ISBN + "_pdfa_pdftk.txt",   60 * KB },
+		{ "Universal_PDF/" + ISBN + "_pdfa_xmp.xml",      8 * KB },
+		{ "Print_PDF/" + ISBN + "_pdfa_jhove.xml",      400 * KB },
+		{ "Print_PDF/" + ISBN + "_pdfa_pdftk.txt",       60 * KB },
+		{ "Print_PDF/" + ISBN + "_pdfa_xmp.xml",          8 * KB },
+		{ "Cover_JPEG/" + ISBN + "_jpg_mix.xml",          3 * KB },
+	};
+
+	final File aipDir;
+	final String version = "v0001";
+
+	/**
+	 * @param aipDir
+	 *            directory to create, must not exist
+	 * @param scale
+	 *            factor applied to every file size
+	 * @param extraCovers
+	 *            number of extra cover images, to vary the file count
+	 */
+	public SyntheticAip(File aipDir, double scale, int extraCovers)
+			throws IOException {
+		this.aipDir = aipDir;
+		if (aipDir.exists()) {
+			throw new IOException(aipDir + " already exists");
+		}
+
+		Random random = new Random(42);
+		File versionDir = new File(aipDir, "files/" + version);
+		File dataDir = new File(versionDir, "data");
+		File metaDir = new File(versionDir, "metadata");
+
+		for (int i = 0; i < DATA_FILES.length; i++) {
+			writeFile(new File(dataDir, (String) DATA_FILES[i][0]),
+				scaled((Integer) DATA_FILES[i][1], scale), random);
+		}
+		for (int i = 0; i < extraCovers; i++) {
+			String name = "Cover_JPEG/9780814799" + pad(i) + ".jpg";
+			writeFile(new File(dataDir, name), scaled(MB, scale), random);
+		}
+		for (int i = 0; i < META_FILES.length; i++) {
+			writeFile(new File(metaDir, (String) META_FILES[i][0]),
+				scaled((Integer) META_FILES[i][1], scale), random);
+		}
+	}
+
+	public String getId() {
+		return aipDir.getName();
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public File getDir() {
+		return aipDir;
+	}
+
+	/** A data file of the AIP, by path below data/. */
+	public File getDataFile(String path) {
+		return new File(aipDir, "files/" + version + "/data/" + path);
+	}
+
+	/** The largest data file. */
+	public File getLargestFile() {
+		return getDataFile("Print_PDF/" + ISBN + ".pdfa");
+	}
+
+	/** Remove the whole tree. */
+	public void delete() {
+		delete(aipDir);
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				delete(children[i]);
+			}
+		}
+		file.delete();
+	}
+
+	static String pad(int i) {
+		String s = String.valueOf(i);
+		while (s.length() < 4) {
+			s = "0" + s;
+		}
+		return s;
+	}
+
+	static long scaled(int size, double scale) {
+		return Math.max(1, (long) (size * scale));
+	}
+
+	static void writeFile(File file, long size, Random random)
+			throws IOException {
+		file.getParentFile().mkdirs();
+		byte[] buf = new byte[(int) Math.min(size, MB)];
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (long left = size; left > 0; left -= buf.length) {
+				random.nextBytes(buf);
+				out.write(buf, 0, (int) Math.min(left, buf.length));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a whole METS run on a synthetic AIP for each backend: the
+ * METS toolkit (MTK), the streaming writer and the Harvard toolkit.
+ *
+ * A new generator is used for every run, so every file is checksummed
+ * again unless a checksum cache is set with -Dnyup.checksum.cache. The
+ * MTK and Harvard backends fetch the METS schema to validate, so add
+ * proxy settings with JMH's -jvmArgsAppend if needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class WholeRunBenchmark {
+
+	@Param({ "0.1", "1" })
+	public double scale;
+
+	@Param({ "0", "200" })
+	public int extraCovers;
+
+	SyntheticAip aip;
+
+	/** Throws the METS document away. */
+	static final OutputStream NULL_OUT = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		File tmpDir = Files.createTempDirectory("nyup-bench").toFile();
+		aip = new SyntheticAip(new File(tmpDir, "aip"), scale, extraCovers);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		aip.delete();
+		aip.getDir().getParentFile().delete();
+	}
+
+	@Benchmark
+	public void mtk() throws Exception {
+		new GenNyupAipMets(aip.getId(), aip.getVersion(),
+			aip.getDir().getPath()).write(NULL_OUT);
+	}
+
+	@Benchmark
+	public void streaming() throws Exception {
+		new GenNyupAipMetsStreaming(aip.getId(), aip.getVersion(),
+			aip.getDir().getPath()).write(NULL_OUT);
+	}
+
+	@Benchmark
+	public void harvardToolkit() throws Exception {
+		new GenNyupAipMetsHarvardToolkit(aip.getId(), aip.getVersion(),
+			aip.getDir().getPath()).write(NULL_OUT);
+	}
+
+}
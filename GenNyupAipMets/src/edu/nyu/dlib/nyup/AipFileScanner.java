@@ -0,0 +1,206 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Walks an AIP version directory once and sorts every file into each
+ * of the registered groups whose regex it matches.
+ *
+ * Each group is bound to a root directory (e.g. the data or metadata
+ * directory) and only files below that root are tested against it.
+ * All groups sharing a root are folded into one combined pattern, so
+ * every file is tested with a single matcher call. Matching is done
+ * against the same path string the old recursive java.io.File scan
+ * used and results are sorted the same way, so group contents are
+ * unchanged.
+ */
+public class AipFileScanner {
+
+	static final int DEFAULT_THREADS
+		= Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	static Logger log = Logger.getLogger(AipFileScanner.class);
+
+	private static ForkJoinPool pool = new ForkJoinPool(
+		Integer.getInteger("nyup.scan.threads", DEFAULT_THREADS));
+
+	private final LinkedHashMap<String, Root> roots
+		= new LinkedHashMap<String, Root>();
+
+	private final LinkedHashMap<String, ConcurrentLinkedQueue<File>> matches
+		= new LinkedHashMap<String, ConcurrentLinkedQueue<File>>();
+
+	/**
+	 * Register a group of files.
+	 *
+	 * @param name
+	 *            group name used to look up the result
+	 * @param root
+	 *            directory the group's files live under
+	 * @param regex
+	 *            regex that is searched for in each file path
+	 * @param flags
+	 *            {@link Pattern} flags for the regex
+	 */
+	public void addGroup(String name, File root, String regex, int flags) {
+		String rootPath = root.getPath();
+		Root r = roots.get(rootPath);
+		if (r == null) {
+			r = new Root(rootPath);
+			roots.put(rootPath, r);
+		}
+		r.addGroup(name, regex, flags);
+		matches.put(name, new ConcurrentLinkedQueue<File>());
+	}
+
+	public void addGroup(String name, File root, String regex) {
+		addGroup(name, root, regex, 0);
+	}
+
+	/**
+	 * Walk dir in parallel and classify every regular file in it.
+	 *
+	 * @param dir
+	 *            directory to walk, normally files/&lt;version&gt;
+	 * @return sorted file list per group, in registration order
+	 */
+	public Map<String, ArrayList<File>> scan(File dir) throws IOException {
+		for (Root root : roots.values()) {
+			root.compile();
+		}
+
+		if (dir.exists()) {
+			pool.invoke(new Walk(dir.toPath()));
+		}
+
+		LinkedHashMap<String, ArrayList<File>> result
+			= new LinkedHashMap<String, ArrayList<File>>();
+		for (Map.Entry<String, ConcurrentLinkedQueue<File>> entry
+				: matches.entrySet()) {
+			ArrayList<File> fileList = new ArrayList<File>(entry.getValue());
+			Collections.sort(fileList);
+			result.put(entry.getKey(), fileList);
+		}
+		return result;
+	}
+
+	/**
+	 * Test a file against the groups of whichever roots contain it.
+	 */
+	void classify(Path path) {
+		String filePath = path.toString();
+		log.trace("filename: " + path.getFileName());
+		for (Root root : roots.values()) {
+			if (!filePath.startsWith(root.prefix)) {
+				continue;
+			}
+			Matcher matcher = root.pattern.matcher(filePath);
+			if (!matcher.lookingAt()) {
+				continue;
+			}
+			for (int i = 0; i < root.names.size(); i++) {
+				if (matcher.start(groupName(i)) != -1) {
+					String name = root.names.get(i);
+					log.trace("Found match for group: " + name);
+					matches.get(name).add(new File(filePath));
+				}
+			}
+		}
+	}
+
+	static String groupName(int i) {
+		return "g" + i;
+	}
+
+	/**
+	 * Groups that share a root directory, combined into one pattern of
+	 * optional lookaheads. A lookahead that succeeds leaves its named
+	 * group set, which tells us every group the path belongs to.
+	 */
+	static class Root {
+
+		final String prefix;
+		final List<String> names = new ArrayList<String>();
+		final StringBuilder regex = new StringBuilder("^");
+		Pattern pattern;
+
+		Root(String rootPath) {
+			this.prefix = rootPath + File.separator;
+		}
+
+		void addGroup(String name, String groupRegex, int flags) {
+			String inline
+				= (flags & Pattern.CASE_INSENSITIVE) != 0 ? "(?i:" : "(?:";
+			regex.append("(?:(?=(?s:.*?)(?<")
+				.append(groupName(names.size()))
+				.append(">")
+				.append(inline)
+				.append(groupRegex)
+				.append(")))|)");
+			names.add(name);
+		}
+
+		void compile() {
+			if (pattern == null) {
+				pattern = Pattern.compile(regex.toString());
+			}
+		}
+	}
+
+	/**
+	 * Lists one directory, classifying its files and forking a task
+	 * for every subdirectory.
+	 */
+	class Walk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final Path dir;
+
+		Walk(Path dir) {
+			this.dir = dir;
+		}
+
+		protected void compute() {
+			if (!Files.isDirectory(dir)) {
+				classify(dir);
+				return;
+			}
+
+			List<Walk> subdirs = new ArrayList<Walk>();
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+				try {
+					for (Path child : stream) {
+						if (Files.isDirectory(child)) {
+							subdirs.add(new Walk(child));
+						} else if (Files.exists(child)) {
+							classify(child);
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't list " + dir, e);
+			}
+			invokeAll(subdirs);
+		}
+	}
+
+}
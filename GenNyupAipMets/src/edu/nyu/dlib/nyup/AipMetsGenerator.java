@@ -0,0 +1,25 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.OutputStream;
+
+/**
+ * Generates the METS document for one version of an AIP.
+ *
+ * Implementations keep all per-AIP state in the instance, so separate
+ * instances can be used from separate threads at the same time. A
+ * single instance is not thread safe.
+ */
+public interface AipMetsGenerator {
+
+	/**
+	 * Generate the METS document and write it to outputFile.
+	 */
+	void write(String outputFile) throws Exception;
+
+	/**
+	 * Generate the METS document and write it to out, which is left
+	 * open.
+	 */
+	void write(OutputStream out) throws Exception;
+
+}
@@ -0,0 +1,303 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of file checksums, so regenerating the METS of an AIP
+ * doesn't rehash payload files that haven't changed.
+ *
+ * Entries are keyed by canonical path and are only used while the
+ * file's size, modification time and file key (device and inode) are
+ * all unchanged. Files that were modified too recently to trust their
+ * modification time, or that changed while being hashed, are never
+ * cached. In verify mode a random sample of cache hits is rehashed and
+ * any mismatch replaces the stale entry.
+ *
+ * The cache file is a tab separated text file. It is rewritten
+ * atomically on {@link #save}, under a lock that lets concurrent
+ * processes merge their entries instead of overwriting each other.
+ */
+public class ChecksumCache {
+
+	static final String HEADER = "# nyup checksum cache v1";
+
+	/**
+	 * Files modified less than this long before they were hashed may
+	 * still be changing within the same timestamp tick.
+	 */
+	static final long RACY_WINDOW_MILLIS = 2000;
+
+	static Logger log = Logger.getLogger(ChecksumCache.class);
+
+	private static final Map<String, ChecksumCache> openCaches
+		= new HashMap<String, ChecksumCache>();
+
+	private final File cacheFile;
+	private final double verifyRate;
+	private final Random random = new Random();
+
+	private final Map<String, Entry> entries
+		= new ConcurrentHashMap<String, Entry>();
+	private final Map<String, Entry> updated
+		= new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong verified = new AtomicLong();
+	private final AtomicLong mismatches = new AtomicLong();
+
+	/**
+	 * Open a cache file, loading any existing entries.
+	 *
+	 * @param cacheFile
+	 *            cache file, created on the first save
+	 * @param verifyRate
+	 *            fraction of cache hits to rehash, 0 to trust the cache
+	 */
+	public ChecksumCache(File cacheFile, double verifyRate)
+			throws IOException {
+		this.cacheFile = cacheFile;
+		this.verifyRate = verifyRate;
+		if (cacheFile.exists()) {
+			load(cacheFile, entries);
+		}
+		log.debug("Loaded " + entries.size() + " entries from " + cacheFile);
+	}
+
+	/**
+	 * Return the cache configured with the nyup.checksum.cache system
+	 * property, or null if none is set. The same instance is returned
+	 * for every caller in the JVM. The verify rate is taken from
+	 * nyup.checksum.cache.verify and defaults to 0.
+	 */
+	public static ChecksumCache getDefault() throws IOException {
+		String path = System.getProperty("nyup.checksum.cache");
+		if (path == null || path.length() == 0) {
+			return null;
+		}
+		double verifyRate = Double.parseDouble(
+			System.getProperty("nyup.checksum.cache.verify", "0"));
+		synchronized (openCaches) {
+			ChecksumCache cache = openCaches.get(path);
+			if (cache == null) {
+				cache = new ChecksumCache(new File(path), verifyRate);
+				openCaches.put(path, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Return the checksums of a file, from the cache if the file is
+	 * unchanged and by hashing it otherwise.
+	 */
+	public FileDigests digest(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		BasicFileAttributes before = readAttributes(file);
+
+		Entry entry = entries.get(path);
+		if (entry != null && entry.matches(before)) {
+			hits.incrementAndGet();
+			if (verifyRate > 0 && random.nextDouble() < verifyRate) {
+				return verify(file, path, entry);
+			}
+			return entry.digests;
+		}
+
+		misses.incrementAndGet();
+		long hashTime = System.currentTimeMillis();
+		FileDigests digests = ChecksumEngine.hash(file);
+		store(path, before, readAttributes(file), hashTime, digests);
+		return digests;
+	}
+
+	/**
+	 * Rehash a file that hit the cache and compare with the entry.
+	 */
+	FileDigests verify(File file, String path, Entry entry)
+			throws IOException {
+		verified.incrementAndGet();
+		FileDigests digests = ChecksumEngine.hash(file);
+		if (!digests.getSha1().equals(entry.digests.getSha1())
+				|| !digests.getMd5().equals(entry.digests.getMd5())
+				|| !digests.getSha256().equals(entry.digests.getSha256())) {
+			mismatches.incrementAndGet();
+			log.error("Checksum cache entry for " + path
+				+ " is stale, replacing it.");
+			Entry fresh = new Entry(entry.size, entry.mtime, entry.fileKey,
+				digests);
+			entries.put(path, fresh);
+			updated.put(path, fresh);
+		}
+		return digests;
+	}
+
+	void store(String path, BasicFileAttributes before,
+			BasicFileAttributes after, long hashTime, FileDigests digests) {
+		Entry entry = new Entry(before.size(),
+			before.lastModifiedTime().toMillis(), fileKey(before), digests);
+		if (!entry.matches(after) || after.size() != digests.getSize()) {
+			log.warn(path + " changed while it was hashed, not caching.");
+			entries.remove(path);
+			return;
+		}
+		if (hashTime - entry.mtime < RACY_WINDOW_MILLIS) {
+			log.debug(path + " was modified too recently to cache.");
+			entries.remove(path);
+			return;
+		}
+		if (path.indexOf('\t') != -1 || path.indexOf('\n') != -1) {
+			return;
+		}
+		entries.put(path, entry);
+		updated.put(path, entry);
+	}
+
+	/**
+	 * Write new and changed entries to the cache file, merging them with
+	 * whatever other processes have saved in the meantime.
+	 */
+	public synchronized void save() throws IOException {
+		log.info("Checksum cache " + cacheFile + ": " + hits + " hits, "
+			+ misses + " misses, " + verified + " verified, "
+			+ mismatches + " stale");
+
+		if (updated.isEmpty()) {
+			return;
+		}
+
+		File lockFile = new File(cacheFile.getPath() + ".lock");
+		FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			FileLock lock = lockChannel.lock();
+			try {
+				TreeMap<String, Entry> merged = new TreeMap<String, Entry>();
+				if (cacheFile.exists()) {
+					load(cacheFile, merged);
+				}
+				merged.putAll(updated);
+
+				File tmpFile = new File(cacheFile.getPath() + ".tmp");
+				write(tmpFile, merged);
+				Files.move(tmpFile.toPath(), cacheFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+				log.debug("Saved " + merged.size() + " entries to "
+					+ cacheFile);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			lockChannel.close();
+		}
+		updated.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	static BasicFileAttributes readAttributes(File file) throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+	}
+
+	/**
+	 * Device and inode of a file, as reported by the file system.
+	 */
+	static String fileKey(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return key == null ? "" : key.toString();
+	}
+
+	static void load(File file, Map<String, Entry> map) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 7) {
+					log.warn("Skipping malformed checksum cache line: " + line);
+					continue;
+				}
+				long size = Long.parseLong(fields[1]);
+				map.put(fields[0], new Entry(size, Long.parseLong(fields[2]),
+					fields[3],
+					new FileDigests(fields[4], fields[5], fields[6], size)));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static void write(File file, Map<String, Entry> map) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		PrintWriter out
+			= new PrintWriter(new OutputStreamWriter(fos, "UTF-8"));
+		try {
+			out.print(HEADER + "\n");
+			for (Map.Entry<String, Entry> e : map.entrySet()) {
+				Entry entry = e.getValue();
+				out.print(e.getKey() + "\t" + entry.size + "\t" + entry.mtime
+					+ "\t" + entry.fileKey
+					+ "\t" + entry.digests.getSha1()
+					+ "\t" + entry.digests.getMd5()
+					+ "\t" + entry.digests.getSha256() + "\n");
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	static class Entry {
+
+		final long size;
+		final long mtime;
+		final String fileKey;
+		final FileDigests digests;
+
+		Entry(long size, long mtime, String fileKey, FileDigests digests) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.digests = digests;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size()
+				&& mtime == attrs.lastModifiedTime().toMillis()
+				&& fileKey.equals(ChecksumCache.fileKey(attrs));
+		}
+	}
+
+}
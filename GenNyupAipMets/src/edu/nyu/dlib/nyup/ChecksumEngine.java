@@ -0,0 +1,267 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes SHA-1, MD5 and SHA-256 checksums of a file in a single
+ * pass, so each payload byte is only read from storage once.
+ *
+ * Results are remembered by canonical path, which lets the METS
+ * generator and the BagIt manifests share one set of digests.
+ *
+ * Files are read through the {@link HashPipeline}, if one is set up,
+ * so reading overlaps with digesting. {@link #digestAll} hashes many
+ * files from a pool of nyup.hash.threads threads, which keeps several
+ * files in flight. The pool is shared by every engine in the JVM, so a
+ * batch generating many AIPs at once still hashes on nyup.hash.threads
+ * threads in all.
+ */
+public class ChecksumEngine {
+
+	/** Size of the direct read buffer used per thread. */
+	static final int BUFFER_SIZE = 1024 * 1024;
+
+	static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	static Logger log = Logger.getLogger(ChecksumEngine.class);
+
+	private static final ThreadLocal<ByteBuffer> directBuffer
+		= new ThreadLocal<ByteBuffer>() {
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+		};
+
+	private static final ThreadLocal<byte[]> heapBuffer
+		= new ThreadLocal<byte[]>() {
+			protected byte[] initialValue() {
+				return new byte[BUFFER_SIZE];
+			}
+		};
+
+	/** Bytes read by {@link #hash} on each thread. */
+	private static final ThreadLocal<long[]> bytesHashed
+		= new ThreadLocal<long[]>() {
+			protected long[] initialValue() {
+				return new long[1];
+			}
+		};
+
+	private static ExecutorService hashers;
+
+	private final Map<String, FileDigests> digests
+		= new ConcurrentHashMap<String, FileDigests>();
+
+	private ChecksumCache cache;
+
+	/**
+	 * Look files up in a persistent checksum cache before hashing them.
+	 */
+	public void setCache(ChecksumCache cache) {
+		this.cache = cache;
+	}
+
+	public ChecksumCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Return the checksums of a file, hashing it if it hasn't been
+	 * seen by this engine before.
+	 *
+	 * @param file
+	 *            file to hash
+	 * @return checksums of the file
+	 */
+	public FileDigests digest(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		FileDigests result = digests.get(path);
+		if (result == null) {
+			result = cache != null ? cache.digest(file) : hash(file);
+			digests.put(path, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the checksums of many files, hashing those this engine
+	 * hasn't seen on the shared pool of {@link #getDefaultThreads}
+	 * threads. The bytes hashed are added to the calling thread's
+	 * {@link #getBytesHashed}.
+	 *
+	 * @return checksums in the order of files
+	 */
+	public Map<File, FileDigests> digestAll(Collection<File> files)
+			throws IOException {
+		final AtomicLong hashed = new AtomicLong();
+		ExecutorService pool = getHashers();
+		LinkedHashMap<File, Future<FileDigests>> futures
+			= new LinkedHashMap<File, Future<FileDigests>>();
+		try {
+			for (final File file : files) {
+				futures.put(file, pool.submit(new Callable<FileDigests>() {
+					public FileDigests call() throws IOException {
+						long before = getBytesHashed();
+						FileDigests result = digest(file);
+						hashed.addAndGet(getBytesHashed() - before);
+						return result;
+					}
+				}));
+			}
+
+			LinkedHashMap<File, FileDigests> results
+				= new LinkedHashMap<File, FileDigests>();
+			for (Map.Entry<File, Future<FileDigests>> entry
+					: futures.entrySet()) {
+				try {
+					results.put(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e) {
+					throw new IOException("Can't hash " + entry.getKey(),
+						e.getCause());
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted hashing "
+						+ entry.getKey());
+				}
+			}
+			return results;
+		} finally {
+			for (Future<FileDigests> future : futures.values()) {
+				future.cancel(true);
+			}
+			bytesHashed.get()[0] += hashed.get();
+		}
+	}
+
+	/**
+	 * The pool {@link #digestAll} hashes on, started with
+	 * {@link #getDefaultThreads} daemon threads on first use.
+	 */
+	static synchronized ExecutorService getHashers() {
+		if (hashers == null) {
+			int numThreads = getDefaultThreads();
+			hashers = Executors.newFixedThreadPool(numThreads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "hasher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			log.debug("Hashing on " + numThreads + " threads");
+		}
+		return hashers;
+	}
+
+	/**
+	 * Number of threads {@link #digestAll} hashes on, from the
+	 * nyup.hash.threads system property.
+	 */
+	public static int getDefaultThreads() {
+		return Integer.getInteger("nyup.hash.threads",
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * All checksums computed so far, keyed by canonical path.
+	 */
+	public Map<String, FileDigests> getDigests() {
+		return Collections.unmodifiableMap(digests);
+	}
+
+	/**
+	 * Hash a file with all supported algorithms, through the default
+	 * {@link HashPipeline} or, if there is none, in the calling thread.
+	 */
+	public static FileDigests hash(File file) throws IOException {
+		HashPipeline pipeline = HashPipeline.getDefault();
+		FileDigests result = pipeline != null ? pipeline.hash(file)
+			: hashDirect(file);
+		log.trace("Hashed " + result.getSize() + " bytes of " + file);
+		bytesHashed.get()[0] += result.getSize();
+		return result;
+	}
+
+	/**
+	 * Hash a file reading it through a direct buffer that is reused by
+	 * the calling thread.
+	 */
+	static FileDigests hashDirect(File file) throws IOException {
+		MessageDigest sha1 = newDigest("SHA-1");
+		MessageDigest md5 = newDigest("MD5");
+		MessageDigest sha256 = newDigest("SHA-256");
+
+		ByteBuffer buf = directBuffer.get();
+		byte[] bytes = heapBuffer.get();
+		long size = 0;
+
+		FileChannel channel
+			= FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			buf.clear();
+			while (channel.read(buf) != -1) {
+				buf.flip();
+				int nread = buf.remaining();
+				buf.get(bytes, 0, nread);
+				sha1.update(bytes, 0, nread);
+				md5.update(bytes, 0, nread);
+				sha256.update(bytes, 0, nread);
+				size += nread;
+				buf.clear();
+			}
+		} finally {
+			channel.close();
+		}
+
+		return new FileDigests(toHex(sha1.digest()), toHex(md5.digest()),
+			toHex(sha256.digest()), size);
+	}
+
+	/**
+	 * Total bytes hashed so far by the calling thread, not counting
+	 * files found in the cache or already hashed by the engine.
+	 */
+	public static long getBytesHashed() {
+		return bytesHashed.get()[0];
+	}
+
+	static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(algorithm + " not available", e);
+		}
+	}
+
+	/**
+	 * Convert bytes to lowercase hex.
+	 */
+	static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
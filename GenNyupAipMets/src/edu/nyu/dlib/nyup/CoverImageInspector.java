@@ -0,0 +1,779 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Writes NISO MIX 2.0 technical metadata for cover images (JPEG or TIFF
+ * files matched by {@link GenNyupAipMets#COVER_IMG_REGEX}), in place of
+ * running exiftool on each one.
+ *
+ * Only the image headers are read: dimensions, compression, color space,
+ * bits per sample, resolution and the name of an embedded ICC profile.
+ * JPEG markers are read directly and TIFFs through the ImageIO reader's
+ * metadata. Pixels are never decoded, so a cover takes about a
+ * millisecond however large it is.
+ *
+ * Images come from a job file listing one image and MIX file per line
+ * separated by a tab, inspected on a worker pool, or from the command
+ * line. With -colorspace the color model of a single image (GRAY, RGB
+ * or CMYK for the usual covers) is printed instead, for pdf2pdfa.
+ */
+public class CoverImageInspector {
+
+	static final String MIX_NS = "http://www.loc.gov/mix/v20";
+
+	static final String MIX_SCHEMA_LOCATION
+		= "http://www.loc.gov/standards/mix/mix20/mix20.xsd";
+
+	static final String SUFFIX = "_mix.xml";
+
+	static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+	static final String STANDARD_FORMAT
+		= IIOMetadataFormatImpl.standardMetadataFormatName;
+
+	static final String TIFF_FORMAT = "javax_imageio_tiff_image_1.0";
+
+	static final int EXIT_FAILURES = 2;
+
+	static Logger log = Logger.getLogger(CoverImageInspector.class);
+
+	private final long start = System.nanoTime();
+	private final AtomicLong numImages = new AtomicLong();
+	private final AtomicLong numFailed = new AtomicLong();
+
+	public static void main(String[] args) {
+		boolean force = false;
+		boolean colorSpace = false;
+		String jobFile = null;
+		String resultsFile = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-f")) {
+				force = true;
+			} else if (args[i].equals("-colorspace")) {
+				colorSpace = true;
+			} else if (args[i].equals("-jobs") && i + 1 < args.length) {
+				jobFile = args[++i];
+			} else if (args[i].equals("-results") && i + 1 < args.length) {
+				resultsFile = args[++i];
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				numThreads = Integer.parseInt(args[++i]);
+			} else {
+				i = args.length + 1;
+			}
+		}
+
+		if (colorSpace && jobFile == null && i == args.length - 1) {
+			try {
+				System.out.println(new CoverImageInspector()
+					.inspect(new File(args[i])).getColorModel());
+				System.exit(0);
+			} catch (IOException e) {
+				log.fatal(args[i] + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		ArrayList<String[]> jobs = null;
+		try {
+			if (colorSpace) {
+				// wrong arguments for -colorspace
+			} else if (jobFile != null && i == args.length) {
+				jobs = readJobs(jobFile);
+			} else if (jobFile == null && i == args.length - 2) {
+				jobs = new ArrayList<String[]>();
+				jobs.add(new String[] { args[i], args[i + 1] });
+			}
+		} catch (IOException e) {
+			log.fatal(e.getMessage());
+			System.exit(1);
+		}
+
+		if (jobs == null || numThreads < 1) {
+			System.err.println("Usage: java edu.nyu.dlib.nyup.CoverImageInspector [-f] [-threads <n>] [-results <results file>] (-jobs <job file> | <image file> <mix file> | -colorspace <image file>)");
+			System.exit(1);
+		}
+
+		try {
+			PrintWriter out = resultsFile == null
+				? new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"))
+				: new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(resultsFile), "UTF-8"));
+			int failed;
+			try {
+				failed = new CoverImageInspector().inspectAll(jobs, force,
+					numThreads, out);
+			} finally {
+				out.close();
+			}
+			System.exit(failed == 0 ? 0 : EXIT_FAILURES);
+		} catch (Exception e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Read a job file of "image file TAB MIX file" lines. Blank lines and
+	 * lines starting with # are skipped.
+	 */
+	static ArrayList<String[]> readJobs(String jobFile) throws IOException {
+		ArrayList<String[]> jobs = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(jobFile), "UTF-8"));
+		try {
+			String line;
+			int lineNum = 0;
+			while ((line = in.readLine()) != null) {
+				lineNum++;
+				if (line.trim().length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 2) {
+					throw new IOException(jobFile + " line " + lineNum
+						+ ": expected an input file and an output file"
+						+ " separated by a tab");
+				}
+				jobs.add(fields);
+			}
+		} finally {
+			in.close();
+		}
+		return jobs;
+	}
+
+
+	/**
+	 * Inspect every image on a pool of threads and write a tab separated
+	 * result line per job in job order: image file, MIX file, OK or
+	 * FAILED and the error message, followed by a summary comment line.
+	 *
+	 * @return number of jobs that failed
+	 */
+	public int inspectAll(ArrayList<String[]> jobs, final boolean force,
+			int numThreads, PrintWriter out) throws InterruptedException {
+		log.info("Inspecting " + jobs.size() + " images using " + numThreads
+			+ " threads.");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+		try {
+			for (final String[] job : jobs) {
+				futures.add(pool.submit(new Callable<String>() {
+					public String call() {
+						try {
+							writeMix(new File(job[0]), new File(job[1]), force);
+							return null;
+						} catch (Exception e) {
+							log.error(job[0] + ": image inspection failed", e);
+							return GenNyupAipMetsBatch.oneLine(e);
+						}
+					}
+				}));
+			}
+
+			int failed = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				String[] job = jobs.get(i);
+				String error;
+				try {
+					error = futures.get(i).get();
+				} catch (ExecutionException e) {
+					error = String.valueOf(e.getCause());
+				}
+				if (error != null) {
+					failed++;
+				}
+				out.println(job[0] + "\t" + job[1] + "\t"
+					+ (error == null ? "OK" : "FAILED")
+					+ (error == null ? "" : "\t" + error));
+				out.flush();
+			}
+			out.println("# " + jobs.size() + " images: "
+				+ (jobs.size() - failed) + " succeeded, " + failed
+				+ " failed");
+			report();
+			return failed;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Write the MIX for an image.
+	 *
+	 * @param force
+	 *            overwrite an existing MIX file
+	 */
+	public void writeMix(File imageFile, File mixFile, boolean force)
+			throws IOException, XMLStreamException {
+		boolean succeeded = false;
+		try {
+			if (mixFile.exists() && !force) {
+				throw new IOException("Output file " + mixFile
+					+ " already exists");
+			}
+			ImageInfo info = inspect(imageFile);
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			writeMix(info, buf);
+			OutputStream out = new FileOutputStream(mixFile);
+			try {
+				buf.writeTo(out);
+			} finally {
+				out.close();
+			}
+			succeeded = true;
+			log.debug("Wrote " + mixFile);
+		} finally {
+			numImages.incrementAndGet();
+			if (!succeeded) {
+				numFailed.incrementAndGet();
+			}
+		}
+	}
+
+
+	/**
+	 * Read an image's headers.
+	 */
+	public ImageInfo inspect(File imageFile) throws IOException {
+		if (!imageFile.isFile()) {
+			throw new IOException("No such file " + imageFile);
+		}
+		ImageInputStream in = ImageIO.createImageInputStream(imageFile);
+		if (in == null) {
+			throw new IOException("Can't open " + imageFile);
+		}
+		ImageReader reader = null;
+		try {
+			ImageInfo info = new ImageInfo();
+			info.fileSize = imageFile.length();
+
+			int magic = in.readUnsignedShort();
+			in.seek(0);
+			if (magic == 0xffd8) {
+				readJpeg(info, in);
+				return info;
+			}
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Not a supported image");
+			}
+			reader = readers.next();
+			reader.setInput(in, true, false);
+			info.mimeType = reader.getOriginatingProvider().getMIMETypes()[0];
+			if (magic == 0x4949) {
+				info.byteOrder = "little endian";
+			} else if (magic == 0x4d4d) {
+				info.byteOrder = "big endian";
+			}
+			info.width = reader.getWidth(0);
+			info.height = reader.getHeight(0);
+
+			IIOMetadata metadata = reader.getImageMetadata(0);
+			readStandard(info, (Element) metadata.getAsTree(STANDARD_FORMAT));
+			if (TIFF_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+				readTiff(info, (Element) metadata.getAsTree(TIFF_FORMAT));
+			}
+			return info;
+		} catch (EOFException e) {
+			throw new IOException("Truncated image");
+		} finally {
+			if (reader != null) {
+				reader.dispose();
+			}
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Compression, color space and bits per sample from the plugin
+	 * neutral metadata.
+	 */
+	static void readStandard(ImageInfo info, Element root) {
+		info.compression = attribute(root, "CompressionTypeName", "value");
+		info.colorSpace = attribute(root, "ColorSpaceType", "name");
+		String channels = attribute(root, "NumChannels", "value");
+		if (channels != null) {
+			info.samplesPerPixel = Integer.parseInt(channels.trim());
+		}
+		String bits = attribute(root, "BitsPerSample", "value");
+		if (bits != null) {
+			info.bitsPerSample = bits.trim().replaceAll("\\s+", ",");
+		}
+		if (info.compression == null) {
+			info.compression = "Uncompressed";
+		}
+	}
+
+
+	/**
+	 * Read the markers before the first scan of a JPEG: the frame header,
+	 * JFIF resolution, ICC profile and Adobe color transform. The JPEG
+	 * plugin would also build a color space from the ICC profile, which
+	 * costs far more than the rest.
+	 */
+	static void readJpeg(ImageInfo info, ImageInputStream in)
+			throws IOException {
+		info.mimeType = "image/jpeg";
+		info.compression = "JPEG";
+		int components = 0;
+		int transform = -1;
+		byte[][] iccChunks = null;
+
+		in.seek(2);
+		while (true) {
+			int marker = in.readUnsignedByte();
+			if (marker != 0xff) {
+				throw new IOException("Invalid JPEG marker");
+			}
+			marker = in.readUnsignedByte();
+			while (marker == 0xff) {
+				marker = in.readUnsignedByte();
+			}
+			if (marker == 0xd9 || marker == 0xda) {
+				// end of image or start of scan
+				break;
+			}
+			if (marker == 0x01 || marker >= 0xd0 && marker <= 0xd7) {
+				continue;
+			}
+			int length = in.readUnsignedShort() - 2;
+			if (length < 0) {
+				throw new IOException("Invalid JPEG marker length");
+			}
+			long next = in.getStreamPosition() + length;
+
+			if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4
+					&& marker != 0xc8 && marker != 0xcc) {
+				// SOFn
+				int precision = in.readUnsignedByte();
+				info.height = in.readUnsignedShort();
+				info.width = in.readUnsignedShort();
+				components = in.readUnsignedByte();
+				StringBuilder bits = new StringBuilder();
+				for (int i = 0; i < components; i++) {
+					bits.append(i == 0 ? "" : ",").append(precision);
+				}
+				info.bitsPerSample = bits.toString();
+				info.samplesPerPixel = components;
+				if (marker == 0xc3 || marker == 0xc7 || marker == 0xcb
+						|| marker == 0xcf) {
+					info.compression = "JPEG lossless";
+				}
+			} else if (marker == 0xe0 && length >= 12
+					&& readId(in, 5).equals("JFIF\u0000")) {
+				in.skipBytes(2);
+				int units = in.readUnsignedByte();
+				int xDensity = in.readUnsignedShort();
+				int yDensity = in.readUnsignedShort();
+				info.resolutionUnit = units == 1 ? "in."
+					: units == 2 ? "cm" : "no absolute unit of measurement";
+				info.xResolution = String.valueOf(xDensity);
+				info.yResolution = String.valueOf(yDensity);
+			} else if (marker == 0xe2 && length > 14
+					&& readId(in, 12).equals("ICC_PROFILE\u0000")) {
+				// the profile may be split over several markers
+				int seq = in.readUnsignedByte();
+				int count = in.readUnsignedByte();
+				if (iccChunks == null) {
+					iccChunks = new byte[count][];
+				}
+				if (seq >= 1 && seq <= iccChunks.length) {
+					iccChunks[seq - 1] = new byte[length - 14];
+					in.readFully(iccChunks[seq - 1]);
+				}
+			} else if (marker == 0xee && length >= 12
+					&& readId(in, 5).equals("Adobe")) {
+				in.skipBytes(6);
+				transform = in.readUnsignedByte();
+			}
+			in.seek(next);
+		}
+
+		if (components == 0) {
+			throw new IOException("No JPEG frame header");
+		}
+		if (components == 1) {
+			info.colorSpace = "GRAY";
+		} else if (components == 3) {
+			info.colorSpace = transform == 0 ? "RGB" : "YCbCr";
+		} else if (components == 4) {
+			info.colorSpace = transform == 2 ? "YCCK" : "CMYK";
+		}
+
+		if (iccChunks != null) {
+			ByteArrayOutputStream profile = new ByteArrayOutputStream();
+			for (byte[] chunk : iccChunks) {
+				if (chunk == null) {
+					log.warn("Incomplete ICC profile");
+					return;
+				}
+				profile.write(chunk, 0, chunk.length);
+			}
+			setProfile(info, profile.toByteArray());
+		}
+	}
+
+
+	static String readId(ImageInputStream in, int length) throws IOException {
+		byte[] id = new byte[length];
+		in.readFully(id);
+		return new String(id, "ISO-8859-1");
+	}
+
+
+	/**
+	 * Resolution and ICC profile from the first IFD.
+	 */
+	static void readTiff(ImageInfo info, Element root) {
+		String xRes = null;
+		String yRes = null;
+		String unit = "2";
+		NodeList fields = root.getElementsByTagName("TIFFField");
+		for (int i = 0; i < fields.getLength(); i++) {
+			Element field = (Element) fields.item(i);
+			int number = Integer.parseInt(field.getAttribute("number"));
+			if (number == 282) {
+				xRes = attribute(field, "TIFFRational", "value");
+			} else if (number == 283) {
+				yRes = attribute(field, "TIFFRational", "value");
+			} else if (number == 296) {
+				unit = attribute(field, "TIFFShort", "value");
+			} else if (number == 34675) {
+				byte[] data = tiffBytes(field);
+				if (data != null) {
+					setProfile(info, data);
+				}
+			}
+		}
+		if (xRes != null && yRes != null) {
+			info.resolutionUnit = unit.equals("2") ? "in."
+				: unit.equals("3") ? "cm" : "no absolute unit of measurement";
+			info.xResolution = xRes;
+			info.yResolution = yRes;
+		}
+	}
+
+
+	/**
+	 * Take the version and description from an ICC profile's header and
+	 * tag table.
+	 */
+	static void setProfile(ImageInfo info, byte[] profile) {
+		if (profile.length < 132) {
+			log.warn("Invalid ICC profile of " + profile.length + " bytes");
+			return;
+		}
+		int minor = profile[9] & 0xff;
+		info.iccProfileVersion = (profile[8] & 0xff) + "." + (minor >> 4)
+			+ "." + (minor & 0xf);
+		int numTags = readInt(profile, 128);
+		for (int i = 0; i < numTags && 132 + i * 12 + 12 <= profile.length;
+				i++) {
+			int entry = 132 + i * 12;
+			if (readInt(profile, entry) == 0x64657363) {
+				// 'desc'
+				int offset = readInt(profile, entry + 4);
+				int size = readInt(profile, entry + 8);
+				if (offset >= 0 && size >= 0 && offset + size <= profile.length) {
+					byte[] desc = new byte[size];
+					System.arraycopy(profile, offset, desc, 0, size);
+					info.iccProfileName = profileDescription(desc);
+				}
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * The text of a profile description tag, in either the ICC v2
+	 * textDescription or the v4 multiLocalizedUnicode form.
+	 */
+	static String profileDescription(byte[] desc) {
+		if (desc.length < 12) {
+			return null;
+		}
+		try {
+			String type = new String(desc, 0, 4, "US-ASCII");
+			if (type.equals("desc")) {
+				int length = Math.min(readInt(desc, 8), desc.length - 12);
+				return new String(desc, 12, Math.max(length, 0), "ISO-8859-1")
+					.replaceAll("\u0000.*", "").trim();
+			} else if (type.equals("mluc") && desc.length >= 28
+					&& readInt(desc, 8) > 0) {
+				int length = readInt(desc, 20);
+				int offset = readInt(desc, 24);
+				if (offset >= 0 && length >= 0
+						&& offset + length <= desc.length) {
+					return new String(desc, offset, length, "UTF-16BE")
+						.replaceAll("\u0000.*", "").trim();
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return null;
+	}
+
+
+	static int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+			| (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+	}
+
+
+	/**
+	 * The bytes of an UNDEFINED TIFF field, which the TIFF plugin lists as
+	 * comma separated numbers.
+	 */
+	static byte[] tiffBytes(Element field) {
+		String value = attribute(field, "TIFFUndefined", "value");
+		if (value == null) {
+			return null;
+		}
+		String[] values = value.split(",");
+		byte[] data = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			data[i] = (byte) Integer.parseInt(values[i].trim());
+		}
+		return data;
+	}
+
+
+	static Element element(Element root, String name) {
+		NodeList nodes = root.getElementsByTagName(name);
+		return nodes.getLength() == 0 ? null : (Element) nodes.item(0);
+	}
+
+
+	static String attribute(Element root, String name, String attribute) {
+		Element element = element(root, name);
+		if (element == null) {
+			return null;
+		}
+		Node node = element.getAttributeNode(attribute);
+		return node == null ? null : node.getNodeValue();
+	}
+
+
+	/**
+	 * Write the MIX document for an image.
+	 */
+	public static void writeMix(ImageInfo info, OutputStream out)
+			throws XMLStreamException {
+		XMLStreamWriter writer = XMLOutputFactory.newInstance()
+			.createXMLStreamWriter(out, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeCharacters("\n");
+		writer.setPrefix("mix", MIX_NS);
+		writer.writeStartElement(MIX_NS, "mix");
+		writer.writeNamespace("mix", MIX_NS);
+		writer.writeNamespace("xsi", XSI_NS);
+		writer.writeAttribute(XSI_NS, "schemaLocation",
+			MIX_NS + " " + MIX_SCHEMA_LOCATION);
+
+		start(writer, 1, "BasicDigitalObjectInformation");
+		element(writer, 2, "fileSize", String.valueOf(info.fileSize));
+		start(writer, 2, "FormatDesignation");
+		element(writer, 3, "formatName", info.mimeType);
+		end(writer, 2);
+		element(writer, 2, "byteOrder", info.byteOrder);
+		start(writer, 2, "Compression");
+		element(writer, 3, "compressionScheme", info.compression);
+		end(writer, 2);
+		end(writer, 1);
+
+		start(writer, 1, "BasicImageInformation");
+		start(writer, 2, "BasicImageCharacteristics");
+		element(writer, 3, "imageWidth", String.valueOf(info.width));
+		element(writer, 3, "imageHeight", String.valueOf(info.height));
+		start(writer, 3, "PhotometricInterpretation");
+		element(writer, 4, "colorSpace", info.colorSpace);
+		if (info.iccProfileName != null) {
+			start(writer, 4, "ColorProfile");
+			start(writer, 5, "IccProfile");
+			element(writer, 6, "iccProfileName", info.iccProfileName);
+			element(writer, 6, "iccProfileVersion", info.iccProfileVersion);
+			end(writer, 5);
+			end(writer, 4);
+		}
+		end(writer, 3);
+		end(writer, 2);
+		end(writer, 1);
+
+		start(writer, 1, "ImageAssessmentMetadata");
+		if (info.resolutionUnit != null) {
+			start(writer, 2, "SpatialMetrics");
+			element(writer, 3, "samplingFrequencyUnit", info.resolutionUnit);
+			rational(writer, 3, "xSamplingFrequency", info.xResolution);
+			rational(writer, 3, "ySamplingFrequency", info.yResolution);
+			end(writer, 2);
+		}
+		start(writer, 2, "ImageColorEncoding");
+		if (info.bitsPerSample != null) {
+			start(writer, 3, "BitsPerSample");
+			element(writer, 4, "bitsPerSampleValue", info.bitsPerSample);
+			element(writer, 4, "bitsPerSampleUnit", "integer");
+			end(writer, 3);
+		}
+		if (info.samplesPerPixel > 0) {
+			element(writer, 3, "samplesPerPixel",
+				String.valueOf(info.samplesPerPixel));
+		}
+		end(writer, 2);
+		end(writer, 1);
+
+		writer.writeCharacters("\n");
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		writer.writeEndDocument();
+		writer.close();
+	}
+
+
+	static void start(XMLStreamWriter writer, int depth, String name)
+			throws XMLStreamException {
+		indent(writer, depth);
+		writer.writeStartElement(MIX_NS, name);
+	}
+
+
+	static void end(XMLStreamWriter writer, int depth)
+			throws XMLStreamException {
+		indent(writer, depth);
+		writer.writeEndElement();
+	}
+
+
+	/**
+	 * A simple element, left out if value is null.
+	 */
+	static void element(XMLStreamWriter writer, int depth, String name,
+			String value) throws XMLStreamException {
+		if (value != null) {
+			start(writer, depth, name);
+			writer.writeCharacters(value);
+			writer.writeEndElement();
+		}
+	}
+
+
+	/**
+	 * A rational element from a value like "300" or "1200/4".
+	 */
+	static void rational(XMLStreamWriter writer, int depth, String name,
+			String value) throws XMLStreamException {
+		String[] parts = value.split("/");
+		start(writer, depth, name);
+		element(writer, depth + 1, "numerator", parts[0].trim());
+		element(writer, depth + 1, "denominator",
+			parts.length > 1 ? parts[1].trim() : "1");
+		end(writer, depth);
+	}
+
+
+	static void indent(XMLStreamWriter writer, int depth)
+			throws XMLStreamException {
+		StringBuilder buf = new StringBuilder("\n");
+		for (int i = 0; i < depth; i++) {
+			buf.append("  ");
+		}
+		writer.writeCharacters(buf.toString());
+	}
+
+
+	public long getNumFailed() {
+		return numFailed.get();
+	}
+
+
+	/**
+	 * Log the images inspected so far and the time spent, see
+	 * {@link PhaseTimer} for where the summary goes.
+	 */
+	public void report() {
+		long wallNanos = System.nanoTime() - start;
+		long images = numImages.get();
+		StringBuilder buf = new StringBuilder();
+		buf.append("{\"type\":\"mix\"");
+		buf.append(",\"images\":").append(images);
+		buf.append(",\"failed\":").append(numFailed.get());
+		buf.append(",\"ms\":").append(PhaseTimer.millis(wallNanos));
+		buf.append(",\"images_per_s\":").append(wallNanos == 0 ? 0
+			: Math.round(images / (wallNanos / 1e9) * 10) / 10.0);
+		buf.append('}');
+		PhaseTimer.emit(buf.toString());
+	}
+
+
+	/**
+	 * What the headers say about an image. Fields that aren't known are
+	 * null or 0.
+	 */
+	public static class ImageInfo {
+		public String mimeType;
+		public long fileSize;
+		public String byteOrder;
+		public String compression;
+		public int width;
+		public int height;
+		public String colorSpace;
+		public String iccProfileName;
+		public String iccProfileVersion;
+		public String resolutionUnit;
+		public String xResolution;
+		public String yResolution;
+		public String bitsPerSample;
+		public int samplesPerPixel;
+
+		/**
+		 * The color space the image decodes to, so RGB for YCbCr and
+		 * CMYK for YCCK, as pdfimages reports it.
+		 */
+		public String getColorModel() {
+			return "YCbCr".equals(colorSpace) ? "RGB"
+				: "YCCK".equals(colorSpace) ? "CMYK" : colorSpace;
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package edu.nyu.dlib.nyup;
+
+/**
+ * SHA-1, MD5 and SHA-256 checksums of a single file, as lowercase hex.
+ */
+public class FileDigests {
+
+	private final String sha1;
+	private final String md5;
+	private final String sha256;
+	private final long size;
+
+	public FileDigests(String sha1, String md5, String sha256, long size) {
+		this.sha1 = sha1;
+		this.md5 = md5;
+		this.sha256 = sha256;
+		this.size = size;
+	}
+
+	public String getSha1() {
+		return sha1;
+	}
+
+	public String getMd5() {
+		return md5;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Number of bytes that were hashed.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Look up a digest by its BagIt manifest algorithm name
+	 * ("md5", "sha1" or "sha256").
+	 *
+	 * @param algorithm
+	 *            manifest algorithm name
+	 * @return hex digest
+	 */
+	public String get(String algorithm) {
+		if (algorithm.equals("sha1")) {
+			return sha1;
+		} else if (algorithm.equals("md5")) {
+			return md5;
+		} else if (algorithm.equals("sha256")) {
+			return sha256;
+		}
+		throw new IllegalArgumentException("Unsupported algorithm: "
+			+ algorithm);
+	}
+
+}
@@ -2,14 +2,14 @@ package edu.nyu.dlib.nyup;
 
 import org.apache.log4j.Logger;
 import au.edu.apsr.mtk.base.*;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.FileNameMap;
 import java.net.URI;
 import java.net.URLConnection;
-import java.security.MessageDigest;
+import java.nio.file.NotDirectoryException;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -17,27 +17,34 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.TimeZone;
+import javax.xml.transform.dom.DOMSource;
 
 // @SuppressWarnings("unchecked")
 
-public class GenNyupAipMets {
+/**
+ * Generates the METS document for one version of an NYU Press AIP using
+ * the METS toolkit (MTK).
+ *
+ * A generator instance holds the state for a single AIP and must not be
+ * shared between threads, but any number of instances can run
+ * concurrently in the same JVM. The command line {@link #main} and the
+ * batch mode are thin wrappers around this class.
+ */
+public class GenNyupAipMets implements AipMetsGenerator {
 
 	static final String DMD_REGEX = "_(onix|mods)\\.xml$";
-	static Matcher dmdMatcher = Pattern.compile(DMD_REGEX).matcher("");
 
-	static final String TECHMD_REGEX = "_(exiftool|jhove|pdftk)";
-	static Matcher techmdMatcher = Pattern.compile(TECHMD_REGEX).matcher("");
+	static final String TECHMD_REGEX = "_(exiftool|jhove|mix|pdftk|xmp)";
 
 	static final String DIGIPROV_REGEX = "digiprov";
-	static Matcher digiprovMatcher
-		= Pattern.compile(DIGIPROV_REGEX).matcher("");
 
 	static final String RMD_REGEX = "rights";
-	static Matcher rmdMatcher = Pattern.compile(RMD_REGEX).matcher("");
 
 	static final String EPUB_REGEX = "ePub/\\d+\\.epub$";
 
@@ -58,230 +65,468 @@ public class GenNyupAipMets {
 
 	static final String COVER_IMG_REGEX = "Cover.*\\.(jpe?g|tiff?)$";
 
+	static final String COVER_GRP_NAME = "COVER";
+
+	/** Data file groups in fileSec order: regex, group name. */
+	static final String[][] FILE_GROUPS = {
+		{ EPUB_REGEX,                "EPUB" },
+		{ UNIVERSAL_PDF_REGEX,       "UNIVERSAL" },
+		{ PAPERBACK_PRINT_PDF_REGEX, "PAPERBACK_PRINT" },
+		{ POD_PDF_REGEX,             "PRINT_ON_DEMAND" },
+		{ CLOTH_PDF_REGEX,           "CLOTH_ORIGINAL" },
+		{ WEB_PDF_REGEX,             "WEB" },
+		{ PRINT_PDF_REGEX,           "PRINT" },
+		{ COVER_PDF_REGEX,           "COVER_PDF" },
+		{ COVER_IMG_REGEX,           COVER_GRP_NAME },
+	};
+
+	/** metsHdr agents: role, type, name. */
+	static final String[][] AGENTS = {
+		{ "CREATOR",      "INDIVIDUAL",   "Rasch, Rasan" },
+		{ "CUSTODIAN",    "ORGANIZATION", "NYU DLTS" },
+		{ "DISSEMINATOR", "ORGANIZATION", "NYU DLTS" },
+	};
+
 	static final String MDTYPE_REGEX = ".*_(dc|ead|marc|mods)\\.xml$";
-	static Matcher mdtypeMatcher = Pattern.compile(MDTYPE_REGEX).matcher("");
+	static final Pattern MDTYPE_PATTERN = Pattern.compile(MDTYPE_REGEX);
 
 	static final String OTHER_MDTYPE_REGEX
-		= ".*_(droid|exiftool|jhove|onix|pbcore|pdftk)\\.(txt|xml)$";
-	static Matcher otherMdtypeMatcher
-		= Pattern.compile(OTHER_MDTYPE_REGEX).matcher("");
+		= ".*_(droid|exiftool|jhove|onix|pbcore|pdftk|xmp)\\.(txt|xml)$";
+	static final Pattern OTHER_MDTYPE_PATTERN
+		= Pattern.compile(OTHER_MDTYPE_REGEX);
 
 	static Logger log = Logger.getLogger(GenNyupAipMets.class);
 
-	static int aipDirNameLength = 0;
-	static int metaDirNameLength = 0;
-	static int dataDirNameLength = 0;
-	
-	static METS mets;
+	// Per-AIP state. Matchers aren't thread safe, so each generator
+	// gets its own and several AIPs can be built at once.
+	Matcher mdtypeMatcher = MDTYPE_PATTERN.matcher("");
+	Matcher otherMdtypeMatcher = OTHER_MDTYPE_PATTERN.matcher("");
+
+	String aipId;
+	String aipVersion;
+	String aipDirName;
+
+	int aipDirNameLength = 0;
+	int versionDirNameLength = 0;
+	int metaDirNameLength = 0;
+	int dataDirNameLength = 0;
+
+	ChecksumEngine checksumEngine = new ChecksumEngine();
+
+	PhaseTimer timer;
+
+	PreviousMets previousMets;
 
 	public static void main(String[] args) {
 
+		if (args.length > 0 && args[0].equals("-batch")) {
+			System.exit(GenNyupAipMetsBatch.run(args));
+		}
+
+		PreviousMets previousMets = null;
+		if (args.length == 6 && args[0].equals("-previous")) {
+			try {
+				previousMets = new PreviousMets(new java.io.File(args[1]),
+					new java.io.File(args[4]));
+			} catch (IOException e) {
+				log.fatal(e.getMessage());
+				System.exit(1);
+			}
+			String[] rest = new String[4];
+			System.arraycopy(args, 2, rest, 0, 4);
+			args = rest;
+		}
+
 		if (args.length != 4) {
 			System.err
-					.println("Usage: java GenNyupAipMets <aip id> <aip version> <aip directory> <output file>");
+					.println("Usage: java GenNyupAipMets [-previous <previous mets file>] <aip id> <aip version> <aip directory> <output file>");
+			System.err
+					.println("       java GenNyupAipMets -batch <manifest file> [-threads <n>] [-results <results file>]");
 			System.exit(1);
 		}
 
-		String aipId = args[0];
-		String aipVersion = args[1];
-		String aipDirName = args[2];
-		String outputFile = args[3];
+		try {
+			GenNyupAipMets gen = newGenerator(args[0], args[1], args[2]);
+			gen.setPreviousMets(previousMets);
+			gen.write(args[3]);
+			if (previousMets != null) {
+				log.info(previousMets.report());
+			}
+			ChecksumCache cache = ChecksumCache.getDefault();
+			if (cache != null) {
+				cache.save();
+			}
+			ValidationResults results = ValidationResults.getDefault();
+			if (results != null) {
+				log.info(results.report());
+			}
+		} catch (NotDirectoryException e) {
+			log.fatal("aip directory " + e.getFile() + " isn't a directory.");
+			System.exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Create a generator for one version of an AIP.
+	 *
+	 * @param aipId
+	 *            AIP identifier, used as the METS OBJID
+	 * @param aipVersion
+	 *            version directory name below files/
+	 * @param aipDirName
+	 *            AIP root directory
+	 */
+	public GenNyupAipMets(String aipId, String aipVersion,
+			String aipDirName) {
+		this.aipId = aipId;
+		this.aipVersion = aipVersion;
+		this.aipDirName = aipDirName;
+		this.timer = new PhaseTimer(aipId, aipVersion);
+	}
+
+
+	/**
+	 * Create a generator for the METS backend selected with the
+	 * nyup.mets.backend system property: "stream" (the default) writes
+	 * and validates the document as it goes, "mtk" builds it in memory
+	 * with the METS toolkit first.
+	 */
+	public static GenNyupAipMets newGenerator(String aipId,
+			String aipVersion, String aipDirName) {
+		String backend = System.getProperty("nyup.mets.backend", "stream");
+		if (backend.equals("mtk")) {
+			return new GenNyupAipMets(aipId, aipVersion, aipDirName);
+		} else if (backend.equals("stream")) {
+			return new GenNyupAipMetsStreaming(aipId, aipVersion, aipDirName);
+		}
+		throw new IllegalArgumentException("Unknown METS backend: " + backend);
+	}
+
+
+	/**
+	 * Use a shared checksum engine, e.g. to reuse digests that were
+	 * already computed for a bag of the same files.
+	 */
+	public void setChecksumEngine(ChecksumEngine checksumEngine) {
+		this.checksumEngine = checksumEngine;
+	}
+
+
+	public ChecksumEngine getChecksumEngine() {
+		return checksumEngine;
+	}
+
+
+	/**
+	 * Reuse checksums of unchanged files from the METS of the previous
+	 * version instead of hashing them again.
+	 */
+	public void setPreviousMets(PreviousMets previousMets) {
+		this.previousMets = previousMets;
+	}
+
+
+	/**
+	 * Name of this backend for the nyup.mets.backend property.
+	 */
+	public String getBackend() {
+		return "mtk";
+	}
+
+
+	/**
+	 * Phase times of the last {@link #write(String)}.
+	 */
+	public PhaseTimer getTimer() {
+		return timer;
+	}
+
 
+	/**
+	 * Generate the METS document for this AIP version and write it to
+	 * outputFile.
+	 */
+	public void write(String outputFile) throws Exception {
+		timer = new PhaseTimer(aipId, aipVersion);
+		FileOutputStream out = new FileOutputStream(outputFile);
+		boolean written = false;
 		try {
-			SimpleDateFormat df
-				= new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-			Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-			String currentTime = df.format(cal.getTime());	
+			write(out);
+			written = true;
+		} finally {
+			out.close();
+			if (!written) {
+				new java.io.File(outputFile).delete();
+			}
+			timer.finish(getBackend(), written);
+		}
+		log.info("Wrote " + outputFile);
+	}
+
+
+	/**
+	 * Generate the METS document for this AIP version and write it to
+	 * out. The stream is not closed.
+	 */
+	public void write(OutputStream out) throws Exception {
+		Map<String, ArrayList<java.io.File>> fileGroups = scan();
+		hashAll(fileGroups);
+
+		METSWrapper metsWrapper = new METSWrapper();
+		METS mets = metsWrapper.getMETSObject();
+		mets.setObjID(aipId);
+		mets.setType("Text");
 
-			METSWrapper metsWrapper = new METSWrapper();
-			mets = metsWrapper.getMETSObject();
-			mets.setObjID(aipId);
-			mets.setType("Text");
+		String currentTime = timestamp();
 
-			MetsHdr metsHdr = mets.newMetsHdr();
-			metsHdr.setCreateDate(currentTime);
-        	metsHdr.setLastModDate(currentTime);
-			metsHdr.setRecordStatus("Completed");
+		MetsHdr metsHdr = mets.newMetsHdr();
+		metsHdr.setCreateDate(currentTime);
+		metsHdr.setLastModDate(currentTime);
+		metsHdr.setRecordStatus("Completed");
 
+		for (int i = 0; i < AGENTS.length; i++) {
 			Agent agent = metsHdr.newAgent();
-			agent.setRole("CREATOR");
-			agent.setType("INDIVIDUAL");
-			agent.setName("Rasch, Rasan");
+			agent.setRole(AGENTS[i][0]);
+			agent.setType(AGENTS[i][1]);
+			agent.setName(AGENTS[i][2]);
 			metsHdr.addAgent(agent);
+		}
 
-			agent = metsHdr.newAgent();
-			agent.setRole("CUSTODIAN");
-			agent.setType("ORGANIZATION");
-			agent.setName("NYU DLTS");
-			metsHdr.addAgent(agent);
+		mets.setMetsHdr(metsHdr);
+
+		ArrayList<java.io.File> dmdFiles = fileGroups.get("DMD");
+		log.debug("There are " + dmdFiles.size() + " DMD files.");
+		for (int i = 0; i < dmdFiles.size(); i++) {
+			java.io.File dmdFile = dmdFiles.get(i);
+			log.debug("DMD filename: " + dmdFile.getName());
+			DmdSec dmdSec = mets.newDmdSec();
+			dmdSec.setID(createId("dmd", i + 1));
+			addMdRef(dmdSec, dmdFile);
+			mets.addDmdSec(dmdSec);
+		}
 
-			agent = metsHdr.newAgent();
-			agent.setRole("DISSEMINATOR");
-			agent.setType("ORGANIZATION");
-			agent.setName("NYU DLTS");
-			metsHdr.addAgent(agent);
+		AmdSec amdSec = mets.newAmdSec();
 
-			mets.setMetsHdr(metsHdr);
+		ArrayList<java.io.File> techmdFiles = fileGroups.get("TECHMD");
+		log.debug("There are " + techmdFiles.size() + " TechMD files.");
+		addTechMD(amdSec, techmdFiles, "techMD.");
 
-			java.io.File aipDir = new java.io.File(aipDirName);
-			if (!aipDir.isDirectory()) {
-				log.fatal("aip directory " + aipDir + " isn't a directory.");
-				System.exit(1);
-			}
+		ArrayList<java.io.File> rmdFiles = fileGroups.get("RIGHTS");
+		for (int i = 0; i < rmdFiles.size(); i++) {
+			java.io.File rmdFile = rmdFiles.get(i);
+			RightsMD rightsMD = amdSec.newRightsMD();
+			rightsMD.setID(basename(rmdFile));
+			addMdRef(rightsMD, rmdFile);
+			amdSec.addRightsMD(rightsMD);
+		}
 
-			String aipVersionDirName = aipDirName + "/files/" + aipVersion;
-
-			java.io.File dataDir
-				= new java.io.File(aipVersionDirName + "/data");	
-			log.debug("data directory: " + dataDir);
-			java.io.File metaDir
-				= new java.io.File(aipVersionDirName + "/metadata");
-			log.debug("metadata directory: " + metaDir);
-
-			aipDirNameLength = aipDir.getCanonicalPath().length();
-			metaDirNameLength = metaDir.getCanonicalPath().length();
-			dataDirNameLength = dataDir.getCanonicalPath().length();
-
-			ArrayList<java.io.File> dmdFiles
-				= getFileList(metaDir, dmdMatcher);
-			log.debug("There are " + dmdFiles.size() + " DMD files.");
-			for (int i = 0; i < dmdFiles.size(); i++) {
-				java.io.File dmdFile = dmdFiles.get(i);
-				log.debug("DMD filename: " + dmdFile.getName());
-				DmdSec dmdSec = mets.newDmdSec();
-				dmdSec.setID(createId("dmd", i + 1));
-				addMdRef(dmdSec, dmdFile);
-				mets.addDmdSec(dmdSec);
-			}
+		ArrayList<java.io.File> digiprovFiles = fileGroups.get("DIGIPROV");
+		for (int i = 0; i < digiprovFiles.size(); i++) {
+			java.io.File digiprovFile = digiprovFiles.get(i);
+			DigiprovMD digiprovMD = amdSec.newDigiprovMD();
+			digiprovMD.setID(basename(digiprovFile));
+			addMdRef(digiprovMD, digiprovFile);
+			amdSec.addDigiprovMD(digiprovMD);
+		}
+		
+		mets.addAmdSec(amdSec);
 
-			AmdSec amdSec = mets.newAmdSec();
-
-			ArrayList<java.io.File> techmdFiles
-				= getFileList(metaDir, techmdMatcher);
-			log.debug("There are " + techmdFiles.size() + " TechMD files.");
-			addTechMD(amdSec, techmdFiles, "techMD.");
-
-			ArrayList<java.io.File> rmdFiles
-				= getFileList(metaDir, rmdMatcher);
-			for (int i = 0; i < rmdFiles.size(); i++) {
-				java.io.File rmdFile = rmdFiles.get(i);
-				RightsMD rightsMD = amdSec.newRightsMD();
-				rightsMD.setID(basename(rmdFile));
-				addMdRef(rightsMD, rmdFile);
-				amdSec.addRightsMD(rightsMD);
-			}
+		FileSec fileSec = mets.newFileSec();
 
-			ArrayList<java.io.File> digiprovFiles
-				= getFileList(metaDir, digiprovMatcher);
-			for (int i = 0; i < digiprovFiles.size(); i++) {
-				java.io.File digiprovFile = digiprovFiles.get(i);
-				DigiprovMD digiprovMD = amdSec.newDigiprovMD();
-				digiprovMD.setID(basename(digiprovFile));
-				addMdRef(digiprovMD, digiprovFile);
-				amdSec.addDigiprovMD(digiprovMD);
-			}
-			
-			mets.addAmdSec(amdSec);
-
-			FileSec fileSec = mets.newFileSec();
-
-			StructMap structMap = mets.newStructMap();
-			structMap.setType("PHYSICAL");
-			Div outerDiv = structMap.newDiv();
-
-			TreeMap<String, Div> divMap = new TreeMap<String, Div>();
-			divMap.put("0-images", outerDiv.newDiv());
-			divMap.put("1-books",  outerDiv.newDiv());
-
-			mets.setFileSec(fileSec);
-
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				EPUB_REGEX, "EPUB");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				UNIVERSAL_PDF_REGEX, "UNIVERSAL");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				PAPERBACK_PRINT_PDF_REGEX, "PAPERBACK_PRINT");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				POD_PDF_REGEX, "PRINT_ON_DEMAND");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				CLOTH_PDF_REGEX, "CLOTH_ORIGINAL");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				WEB_PDF_REGEX, "WEB");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				PRINT_PDF_REGEX, "PRINT");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				COVER_PDF_REGEX, "COVER_PDF");
-			createFileGrpAndFptr(fileSec, divMap, dataDir,
-				COVER_IMG_REGEX, "COVER", true);
-
-			int i = 0;
-			for (Div innerDiv : divMap.values()) {
-				innerDiv.setOrder(String.valueOf(i++));
-				outerDiv.addDiv(innerDiv);
-			}
-			
-			structMap.addDiv(outerDiv);
-			mets.addStructMap(structMap);
+		StructMap structMap = mets.newStructMap();
+		structMap.setType("PHYSICAL");
+		Div outerDiv = structMap.newDiv();
 
-			metsWrapper.validate();
+		TreeMap<String, Div> divMap = new TreeMap<String, Div>();
+		divMap.put("0-images", outerDiv.newDiv());
+		divMap.put("1-books",  outerDiv.newDiv());
 
-			metsWrapper.write(new FileOutputStream(outputFile));
-			log.info("Wrote " + outputFile);
+		mets.setFileSec(fileSec);
 
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+		for (int i = 0; i < FILE_GROUPS.length; i++) {
+			String grpName = FILE_GROUPS[i][1];
+			createFileGrpAndFptr(fileSec, divMap,
+				fileGroups.get(grpName), grpName,
+				grpName.equals(COVER_GRP_NAME));
+		}
+
+		int i = 0;
+		for (Div innerDiv : divMap.values()) {
+			innerDiv.setOrder(String.valueOf(i++));
+			outerDiv.addDiv(innerDiv);
 		}
+		
+		structMap.addDiv(outerDiv);
+		mets.addStructMap(structMap);
+
+		// METSWrapper.validate() would fetch and compile the schema for
+		// every document.
+		PhaseTimer.Phase phase = timer.start("validate");
+		SchemaRegistry.getDefault().getSchema(SchemaRegistry.METS)
+			.newValidator()
+			.validate(new DOMSource(metsWrapper.getMETSDocument()));
+		phase.end();
+
+		phase = timer.start("write");
+		metsWrapper.write(out);
+		phase.end();
 	}
 
 
-	static String getChecksum(java.io.File datafile) throws Exception {
+	/**
+	 * Check the AIP directory and sort the files of this version into
+	 * the DMD, TECHMD, RIGHTS, DIGIPROV and data file groups.
+	 */
+	Map<String, ArrayList<java.io.File>> scan() throws IOException {
+		if (checksumEngine.getCache() == null) {
+			checksumEngine.setCache(ChecksumCache.getDefault());
+		}
+
+		java.io.File aipDir = new java.io.File(aipDirName);
+		if (!aipDir.isDirectory()) {
+			throw new NotDirectoryException(aipDir.getPath());
+		}
 
-		MessageDigest md = MessageDigest.getInstance("SHA1");
-		FileInputStream fis = new FileInputStream(datafile);
-		byte[] dataBytes = new byte[1024];
+		String aipVersionDirName = aipDirName + "/files/" + aipVersion;
+
+		java.io.File dataDir
+			= new java.io.File(aipVersionDirName + "/data");	
+		log.debug("data directory: " + dataDir);
+		java.io.File metaDir
+			= new java.io.File(aipVersionDirName + "/metadata");
+		log.debug("metadata directory: " + metaDir);
+
+		aipDirNameLength = aipDir.getCanonicalPath().length();
+		versionDirNameLength = new java.io.File(aipVersionDirName)
+			.getCanonicalPath().length();
+		metaDirNameLength = metaDir.getCanonicalPath().length();
+		dataDirNameLength = dataDir.getCanonicalPath().length();
+
+		AipFileScanner scanner = new AipFileScanner();
+		scanner.addGroup("DMD", metaDir, DMD_REGEX);
+		scanner.addGroup("TECHMD", metaDir, TECHMD_REGEX);
+		scanner.addGroup("RIGHTS", metaDir, RMD_REGEX);
+		scanner.addGroup("DIGIPROV", metaDir, DIGIPROV_REGEX);
+		for (int i = 0; i < FILE_GROUPS.length; i++) {
+			scanner.addGroup(FILE_GROUPS[i][1], dataDir,
+				FILE_GROUPS[i][0], Pattern.CASE_INSENSITIVE);
+		}
+		PhaseTimer.Phase phase = timer.start("scan");
+		Map<String, ArrayList<java.io.File>> fileGroups
+			= scanner.scan(new java.io.File(aipVersionDirName));
+		int numFiles = 0;
+		for (ArrayList<java.io.File> files : fileGroups.values()) {
+			numFiles += files.size();
+		}
+		timer.setGroups(fileGroups);
+		phase.end(numFiles, 0);
+		return fileGroups;
+	}
 
-		int nread = 0;
 
-		while ((nread = fis.read(dataBytes)) != -1) {
-			md.update(dataBytes, 0, nread);
+	static String timestamp() {
+		SimpleDateFormat df
+			= new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		return df.format(cal.getTime());
+	}
+
+
+	/**
+	 * Hash every file of this version on nyup.hash.threads threads,
+	 * except those whose checksum comes from the previous METS, so
+	 * reading and digesting overlap across files. The document is then
+	 * built from the checksum engine's memo.
+	 */
+	void hashAll(Map<String, ArrayList<java.io.File>> fileGroups)
+			throws Exception {
+		LinkedHashSet<java.io.File> files = new LinkedHashSet<java.io.File>();
+		for (ArrayList<java.io.File> group : fileGroups.values()) {
+			for (java.io.File file : group) {
+				if (getPreviousChecksum(file) == null) {
+					files.add(file);
+				}
+			}
 		}
-		byte[] mdbytes = md.digest();
+		PhaseTimer.Phase phase = timer.start("checksum");
+		long hashed = ChecksumEngine.getBytesHashed();
+		checksumEngine.digestAll(files);
+		phase.end(0, ChecksumEngine.getBytesHashed() - hashed);
+	}
+
 
-		// convert the byte to hex format
-		StringBuffer sb = new StringBuffer("");
-		for (int i = 0; i < mdbytes.length; i++) {
-			sb.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16)
-					.substring(1));
+	String getChecksum(java.io.File datafile) throws Exception {
+		PhaseTimer.Phase phase = timer.start("checksum");
+		String sha1 = getPreviousChecksum(datafile);
+		if (sha1 != null) {
+			phase.end(1, 0);
+			return sha1;
 		}
+		long hashed = ChecksumEngine.getBytesHashed();
+		FileDigests digests = checksumEngine.digest(datafile);
+		phase.end(1, ChecksumEngine.getBytesHashed() - hashed);
+		if (datafile.getName().endsWith(".pdfa")) {
+			checkValidation(datafile, digests);
+		}
+		return digests.getSha1();
+	}
+
 
-		return sb.toString();
+	/**
+	 * SHA-1 of an unchanged file from the previous METS, or null.
+	 */
+	String getPreviousChecksum(java.io.File datafile) throws IOException {
+		if (previousMets == null) {
+			return null;
+		}
+		// PDF/A files are looked up in the validation results by
+		// SHA-256, which the previous METS doesn't have.
+		if (datafile.getName().endsWith(".pdfa")
+				&& ValidationResults.getDefault() != null) {
+			return null;
+		}
+		return previousMets.getChecksum(datafile,
+			getRelPathToVersion(datafile));
 	}
 
 
-	static void createFileGrpAndFptr(FileSec fileSec,
-			TreeMap<String, Div> divMap,
-			java.io.File dir,
-			String regex,
-			String grpName) throws Exception {
-		createFileGrpAndFptr(fileSec, divMap, dir, regex, grpName, false);
+	/**
+	 * Look a PDF/A file up in the validation results named by
+	 * nyup.validation.cache, if set, and warn if it isn't known to be
+	 * valid. With nyup.validation.required the run fails instead.
+	 */
+	void checkValidation(java.io.File file, FileDigests digests)
+			throws IOException {
+		ValidationResults results = ValidationResults.getDefault();
+		if (results == null) {
+			return;
+		}
+		String status = results.getStatus(digests.getSha256());
+		if (ValidationResults.PASS.equals(status)) {
+			return;
+		}
+		String msg = file + (status == null
+			? " has not been validated as PDF/A"
+			: " failed PDF/A validation");
+		if (Boolean.getBoolean("nyup.validation.required")) {
+			throw new IOException(msg);
+		}
+		log.warn(msg);
 	}
 
 
-	static void createFileGrpAndFptr(FileSec fileSec,
+	void createFileGrpAndFptr(FileSec fileSec,
 			TreeMap<String, Div> divMap,
-			java.io.File dir,
-			String regex,
+			ArrayList<java.io.File> fileList,
 			String grpName,
 			boolean isCoverImg) throws Exception {
 
-		Matcher matcher
-			= Pattern.compile(regex, Pattern.CASE_INSENSITIVE).matcher("");
-
 		String grpNameLower = grpName.toLowerCase();
 
-		ArrayList<java.io.File> fileList = getFileList(dir, matcher);
-
 		log.debug("There are " + fileList.size() + " " + grpName + " files.");
 
 		if (fileList.isEmpty()) {
@@ -319,7 +564,7 @@ public class GenNyupAipMets {
 			file.setID(id);
 			file.setChecksumType("SHA-1");
 			file.setChecksum(getChecksum(aipFile));
-			file.setMIMEType(getMimeType(aipFile));
+			file.setMIMEType(mimeType(aipFile));
 
 			FLocat fLocat = file.newFLocat();
 			fLocat.setLocType("URL");
@@ -366,7 +611,7 @@ public class GenNyupAipMets {
 	}
 
 
-	static void addTechMD(AmdSec amdSec, ArrayList<java.io.File> fileList,
+	void addTechMD(AmdSec amdSec, ArrayList<java.io.File> fileList,
 			String idPrefix) throws Exception {
 
 		if (fileList.isEmpty()) {
@@ -384,7 +629,7 @@ public class GenNyupAipMets {
 	}
 
 
-	static void addMdRef(MdSec mdSec, java.io.File mdFile)
+	void addMdRef(MdSec mdSec, java.io.File mdFile)
 			throws Exception {
 
 		String mdFileName = mdFile.getName();
@@ -394,71 +639,71 @@ public class GenNyupAipMets {
 		mdRef.setHref(getRelPathToRoot(mdFile));
 		mdRef.setChecksumType("SHA-1");
 		mdRef.setChecksum(getChecksum(mdFile));
-		mdRef.setMIMEType(getMimeType(mdFile));
+		mdRef.setMIMEType(mimeType(mdFile));
 
+		String[] mdType = getMdType(mdFileName);
+		mdRef.setMDType(mdType[0]);
+		if (mdType[1] != null) {
+			mdRef.setOtherMDType(mdType[1]);
+		}
+		
+		mdSec.setMdRef(mdRef);
+	}
+
+
+	/**
+	 * Work out the MDTYPE of a metadata file from its name.
+	 *
+	 * @return MDTYPE and OTHERMDTYPE, which is null unless MDTYPE is
+	 *         "OTHER"
+	 */
+	String[] getMdType(String mdFileName) {
 		mdtypeMatcher.reset(mdFileName);
 		otherMdtypeMatcher.reset(mdFileName);
 
 		if (mdFileName.matches(".*_digiprov.xml$")) {
-			mdRef.setMDType("PREMIS");
+			return new String[] { "PREMIS", null };
+		} else if (mdFileName.endsWith(CoverImageInspector.SUFFIX)) {
+			return new String[] { "NISOIMG", null };
 		} else if (mdtypeMatcher.find()) {
-			mdRef.setMDType(mdtypeMatcher.group(1).toUpperCase());
+			return new String[] { mdtypeMatcher.group(1).toUpperCase(), null };
+		} else if (otherMdtypeMatcher.find()) {
+			return new String[] { "OTHER",
+				otherMdtypeMatcher.group(1).toUpperCase() };
 		} else {
-			mdRef.setMDType("OTHER");
-			if (otherMdtypeMatcher.find()) {
-				mdRef.setOtherMDType(otherMdtypeMatcher.group(1).toUpperCase());
-			} else {
-				mdRef.setOtherMDType("UNKNOWN");
-			}
+			return new String[] { "OTHER", "UNKNOWN" };
 		}
-		
-		mdSec.setMdRef(mdRef);
-	}
-
-	
-	static ArrayList<java.io.File> getFileList(java.io.File dir,
-			Matcher matcher) {
-		ArrayList<java.io.File> fileList =  new ArrayList<java.io.File>();
-		traverseDirTree(dir, fileList, matcher);
-		Collections.sort(fileList);
-		return fileList;
 	}
 
 	
-	static void traverseDirTree(java.io.File dir,
-			ArrayList<java.io.File> fileList,
-			Matcher matcher) {
-		if (dir.exists()) {
-			if (dir.isDirectory()) {
-				java.io.File[] children = dir.listFiles();
-				for (int i = 0; i < children.length; i++) {
-					traverseDirTree(children[i], fileList, matcher);
-				}
-			} else {
-				log.trace("filename: " + dir.getName());
-				matcher.reset(dir.getPath());
-				if (matcher.find()) {
-					log.trace("Found match for regex: " +  matcher.pattern());
-					fileList.add(dir);
-				}
-			}
-		}
+	String getRelPathToRoot(java.io.File file) throws IOException {
+		return file.getCanonicalPath().substring(aipDirNameLength + 1);
 	}
 
-
-	static String getRelPathToRoot(java.io.File file) throws IOException {
-		return file.getCanonicalPath().substring(aipDirNameLength + 1);
+	String getRelPathToVersion(java.io.File file) throws IOException {
+		return file.getCanonicalPath().substring(versionDirNameLength + 1);
 	}
 
-	static String getRelPathToMetadata(java.io.File file) throws IOException {
+	String getRelPathToMetadata(java.io.File file) throws IOException {
 		return file.getCanonicalPath().substring(metaDirNameLength + 1);
 	}
 
-	static String getRelPathToData(java.io.File file) throws IOException {
+	String getRelPathToData(java.io.File file) throws IOException {
 		return file.getCanonicalPath().substring(dataDirNameLength + 1);
 	}
 
 	
+	/**
+	 * {@link #getMimeType}, timed as the "mimetype" phase.
+	 */
+	String mimeType(java.io.File file) throws IOException {
+		PhaseTimer.Phase phase = timer.start("mimetype");
+		String type = getMimeType(file);
+		phase.end(1, 0);
+		return type;
+	}
+
+
 	static String getMimeType(java.io.File file) throws IOException {
 		FileNameMap fileNameMap = URLConnection.getFileNameMap();
 		String type = fileNameMap.getContentTypeFor(file.toURI().toString());
@@ -480,7 +725,7 @@ public class GenNyupAipMets {
 	}
 
 
-	static String genId(java.io.File file, boolean isData) throws IOException {
+	String genId(java.io.File file, boolean isData) throws IOException {
 		String id = isData ?
 			getRelPathToData(file) : getRelPathToMetadata(file);
 		id = id.replaceAll("[/.]", "_");
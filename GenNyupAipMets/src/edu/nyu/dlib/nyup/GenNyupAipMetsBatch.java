@@ -0,0 +1,295 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.xml.sax.SAXException;
+
+/**
+ * Generates METS for many AIPs in one JVM on a fixed size worker pool.
+ * The workers share the checksum engine's pool of nyup.hash.threads
+ * hashing threads, so -threads doesn't multiply the number of files
+ * hashed at once.
+ *
+ * The manifest lists one AIP per line as four whitespace separated
+ * fields: aip id, aip version, aip directory and output file, plus
+ * optionally the METS of the previous version to reuse checksums of
+ * unchanged files from (see {@link PreviousMets}). Blank lines and
+ * lines starting with '#' are skipped.
+ *
+ * For every AIP a tab separated result line is written with the aip id,
+ * aip version, result code, result name and the output file or error
+ * message, followed by a summary comment line. The exit status is 0 if
+ * every AIP succeeded, 2 if any failed and 1 for usage errors.
+ *
+ * If the nyup.journal system property names a {@link JobJournal}, the
+ * outcome of every AIP is recorded there under "aip id/aip version" and
+ * stage "mets", and AIPs whose METS is already done and still exists are
+ * skipped, so a batch that was interrupted can simply be run again.
+ */
+public class GenNyupAipMetsBatch {
+
+	static final int OK = 0;
+	static final int ERROR = 1;
+	static final int NOT_A_DIRECTORY = 2;
+	static final int INVALID = 3;
+	static final int IO_ERROR = 4;
+
+	static final String[] RESULT_NAMES = {
+		"OK", "ERROR", "NOT_A_DIRECTORY", "INVALID", "IO_ERROR"
+	};
+
+	static final int EXIT_FAILURES = 2;
+
+	static final String METS_STAGE = "mets";
+
+	static Logger log = Logger.getLogger(GenNyupAipMetsBatch.class);
+
+	/**
+	 * Run a batch from the command line arguments
+	 * "-batch manifest [-threads n] [-results file]".
+	 *
+	 * @return process exit status
+	 */
+	static int run(String[] args) {
+		String manifestFile = null;
+		String resultsFile = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length) {
+				try {
+					numThreads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					// reported with the usage below
+					numThreads = 0;
+				}
+			} else if (args[i].equals("-results") && i + 1 < args.length) {
+				resultsFile = args[++i];
+			} else if (manifestFile == null) {
+				manifestFile = args[i];
+			} else {
+				manifestFile = null;
+				break;
+			}
+		}
+
+		if (manifestFile == null || numThreads < 1) {
+			System.err.println("Usage: java GenNyupAipMets -batch "
+				+ "<manifest file> [-threads <n>] [-results <results file>]");
+			return 1;
+		}
+
+		try {
+			ArrayList<String[]> rows = readManifest(manifestFile);
+			PrintWriter out = resultsFile == null
+				? new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"))
+				: new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(resultsFile), "UTF-8"));
+			try {
+				int numFailed = process(rows, numThreads, out);
+				ChecksumCache cache = ChecksumCache.getDefault();
+				if (cache != null) {
+					cache.save();
+				}
+				ValidationResults results = ValidationResults.getDefault();
+				if (results != null) {
+					log.info(results.report());
+				}
+				return numFailed == 0 ? 0 : EXIT_FAILURES;
+			} finally {
+				out.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	static ArrayList<String[]> readManifest(String manifestFile)
+			throws IOException {
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(manifestFile), "UTF-8"));
+		try {
+			String line;
+			int lineNum = 0;
+			while ((line = in.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 4 && fields.length != 5) {
+					throw new IOException(manifestFile + " line " + lineNum
+						+ ": expected 4 or 5 fields but found "
+						+ fields.length);
+				}
+				rows.add(fields);
+			}
+		} finally {
+			in.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Generate METS for every manifest row and write one result line
+	 * per row in manifest order.
+	 *
+	 * @return number of AIPs that failed
+	 */
+	static int process(ArrayList<String[]> rows, int numThreads,
+			PrintWriter out) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		log.info("Generating METS for " + rows.size() + " AIPs using "
+			+ numThreads + " threads.");
+
+		final PhaseTimer batchTimer = new PhaseTimer(null, null);
+		final JobJournal journal = getJournal();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+		try {
+			for (final String[] row : rows) {
+				futures.add(pool.submit(new Callable<Result>() {
+					public Result call() {
+						if (journal == null) {
+							return generate(row, batchTimer);
+						}
+						String jobKey = row[0] + "/" + row[1];
+						if (journal.isDone(jobKey, METS_STAGE)
+								&& new File(row[3]).isFile()) {
+							log.info(row[0] + ": METS already generated.");
+							return new Result(OK, row[3]);
+						}
+						Result result = generate(row, batchTimer);
+						try {
+							journal.record(jobKey, METS_STAGE,
+								result.code == OK ? JobJournal.DONE
+									: JobJournal.FAILED);
+						} catch (IOException e) {
+							log.error(row[0] + ": can't record status", e);
+							return new Result(IO_ERROR, oneLine(e));
+						}
+						return result;
+					}
+				}));
+			}
+
+			int numFailed = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				String[] row = rows.get(i);
+				Result result;
+				try {
+					result = futures.get(i).get();
+				} catch (ExecutionException e) {
+					result = new Result(ERROR, String.valueOf(e.getCause()));
+				}
+				if (result.code != OK) {
+					numFailed++;
+				}
+				out.println(row[0] + "\t" + row[1] + "\t" + result.code
+					+ "\t" + RESULT_NAMES[result.code] + "\t"
+					+ result.detail);
+				out.flush();
+			}
+
+			long elapsed = System.currentTimeMillis() - start;
+			String summary = rows.size() + " AIPs: "
+				+ (rows.size() - numFailed) + " succeeded, " + numFailed
+				+ " failed in " + (elapsed / 1000.0) + "s";
+			out.println("# " + summary);
+			log.info(summary);
+			batchTimer.finishBatch();
+
+			return numFailed;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The journal to record the outcome of each AIP in, or null. A
+	 * journal that can't be opened is logged and ignored, it only makes
+	 * a rerun redo AIPs.
+	 */
+	static JobJournal getJournal() {
+		try {
+			return JobJournal.getDefault();
+		} catch (IOException e) {
+			log.error("Can't open job journal", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Generate the METS for one manifest row, mapping any failure to a
+	 * result code. The phase times are added to batchTimer.
+	 */
+	static Result generate(String[] row, PhaseTimer batchTimer) {
+		String aipId = row[0];
+		String outputFile = row[3];
+		GenNyupAipMets gen = null;
+		try {
+			gen = GenNyupAipMets.newGenerator(aipId, row[1], row[2]);
+			PreviousMets previousMets = null;
+			if (row.length > 4) {
+				previousMets = new PreviousMets(new File(row[4]),
+					new File(row[2]));
+				gen.setPreviousMets(previousMets);
+			}
+			gen.write(outputFile);
+			if (previousMets != null) {
+				log.info(aipId + ": " + previousMets.report());
+			}
+			return new Result(OK, outputFile);
+		} catch (NotDirectoryException e) {
+			log.error(aipId + ": aip directory " + e.getFile()
+				+ " isn't a directory.");
+			return new Result(NOT_A_DIRECTORY, e.getFile());
+		} catch (SAXException e) {
+			log.error(aipId + ": METS is invalid", e);
+			return new Result(INVALID, oneLine(e));
+		} catch (IOException e) {
+			log.error(aipId + ": I/O error", e);
+			return new Result(IO_ERROR, oneLine(e));
+		} catch (Exception e) {
+			log.error(aipId + ": METS generation failed", e);
+			return new Result(ERROR, oneLine(e));
+		} finally {
+			if (gen != null) {
+				batchTimer.add(gen.getTimer());
+			}
+		}
+	}
+
+	static String oneLine(Exception e) {
+		return String.valueOf(e).replaceAll("\\s+", " ");
+	}
+
+	static class Result {
+
+		final int code;
+		final String detail;
+
+		Result(int code, String detail) {
+			this.code = code;
+			this.detail = detail;
+		}
+	}
+
+}
@@ -3,79 +3,80 @@ package edu.nyu.dlib.nyup;
 import org.apache.log4j.Logger;
 import edu.harvard.hul.ois.mets.*;
 import edu.harvard.hul.ois.mets.helper.*;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.FileNameMap;
 import java.net.URI;
 import java.net.URLConnection;
-import java.security.MessageDigest;
+import java.nio.file.NotDirectoryException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Generates AIP METS with the Harvard METS toolkit. Like
+ * {@link GenNyupAipMets}, each instance holds the state of one AIP.
+ */
 @SuppressWarnings("unchecked")
-
-public class GenNyupAipMetsHarvardToolkit {
+public class GenNyupAipMetsHarvardToolkit implements AipMetsGenerator {
 
 	static final String DMD_REGEX = "_(onix|mods)\\.xml$";
-	static Matcher dmdMatcher = Pattern.compile(DMD_REGEX).matcher("");
 
-	static final String TECHMD_REGEX = "_(exiftool|jhove|pdftk)";
-	static Matcher techmdMatcher = Pattern.compile(TECHMD_REGEX).matcher("");
+	static final String TECHMD_REGEX = "_(exiftool|jhove|mix|pdftk|xmp)";
 
 	static final String DIGIPROV_REGEX = "digiprov";
-	static Matcher digiprovMatcher
-		= Pattern.compile(DIGIPROV_REGEX).matcher("");
 
 	static final String RMD_REGEX = "rights";
-	static Matcher rmdMatcher = Pattern.compile(RMD_REGEX).matcher("");
 
 	static final String EPUB_REGEX = "ePub/\\d+\\.epub$";
-	static Matcher epubMatcher = Pattern.compile(EPUB_REGEX).matcher("");
 
 	static final String PAPERACK_PRINT_PDF_REGEX
 		= "Paperback_Print/\\d+\\.pdfa?$";
-	static Matcher paperbackPrintPdfMatcher
-		= Pattern.compile(PAPERACK_PRINT_PDF_REGEX).matcher("");
 
 	static final String POD_PDF_REGEX = "POD_PDF/\\d+\\.pdfa?$";
-	static Matcher podPdfMatcher
-		= Pattern.compile(POD_PDF_REGEX).matcher("");
 
 	static final String CLOTH_PDF_REGEX = "Cloth_Originals/\\d+\\.pdfa?$";
-	static Matcher clothPdfMatcher
-		= Pattern.compile(CLOTH_PDF_REGEX).matcher("");
 
 	static final String WEB_PDF_REGEX = "WebPDF/\\d+\\.pdfa?$";
-	static Matcher webPdfMatcher = Pattern.compile(WEB_PDF_REGEX).matcher("");
 
 	static final String PRINT_PDF_REGEX = "Print_PDF/\\d+\\.pdfa?$";
-	static Matcher printPdfMatcher
-		= Pattern.compile(PRINT_PDF_REGEX).matcher("");
 
 	static final String COVER_JPG_REGEX = "Cover_JPE?G/\\d+\\.jpe?g$";
-	static Matcher coverJpgMatcher
-		= Pattern.compile(COVER_JPG_REGEX).matcher("");
+
+	/** File groups: regex, group name. */
+	static final String[][] FILE_GROUPS = {
+		{ EPUB_REGEX,               "EPUB" },
+		{ PAPERACK_PRINT_PDF_REGEX, "PAPERBACK_PRINT" },
+		{ POD_PDF_REGEX,            "PRINT_ON_DEMAND" },
+		{ CLOTH_PDF_REGEX,          "CLOTH_ORIGINAL" },
+		{ WEB_PDF_REGEX,            "WEB" },
+		{ PRINT_PDF_REGEX,          "PRINT" },
+		{ COVER_JPG_REGEX,          "COVER" },
+	};
 
 	static final String MDTYPE_REGEX = ".*_(dc|ead|marc|mods)\\.xml$";
-	static Matcher mdtypeMatcher = Pattern.compile(MDTYPE_REGEX).matcher("");
+	Matcher mdtypeMatcher = Pattern.compile(MDTYPE_REGEX).matcher("");
 
 	static final String OTHER_MDTYPE_REGEX
-		= ".*_(droid|exiftool|jhove|onix|pbcore|pdftk)\\.(txt|xml)$";
-	static Matcher otherMdtypeMatcher
+		= ".*_(droid|exiftool|jhove|onix|pbcore|pdftk|xmp)\\.(txt|xml)$";
+	Matcher otherMdtypeMatcher
 		= Pattern.compile(OTHER_MDTYPE_REGEX).matcher("");
 
 	static Logger log = Logger.getLogger(GenNyupAipMets.class);
 
-	static int aipDirNameLength = 0;
-	static int metaDirNameLength = 0;
-	static int dataDirNameLength = 0;
+	String aipId;
+	String aipVersion;
+	String aipDirName;
+
+	int aipDirNameLength = 0;
+	int metaDirNameLength = 0;
+	int dataDirNameLength = 0;
 
 	public static void main(String[] args) {
 
@@ -85,181 +86,177 @@ public class GenNyupAipMetsHarvardToolkit {
 			System.exit(1);
 		}
 
-		String aipId = args[0];
-		String aipVersion = args[1];
-		String aipDirName = args[2];
-		String outputFile = args[3];
-
 		try {
-			Date now = new Date();
-
-			Mets mets = new Mets();
-			mets.setOBJID(aipId);
-			mets.setTYPE("Text");
-
-			MetsHdr metsHdr = new MetsHdr();
-			metsHdr.setCREATEDATE(now);
-			metsHdr.setLASTMODDATE(now);
-			metsHdr.setRECORDSTATUS("Completed");
-
-			Agent agent = new Agent();
-			Name name = new Name();
-			agent.setROLE(Role.CREATOR);
-			agent.setTYPE(Type.INDIVIDUAL);
-			name.getContent().add(new PCData("Rasch, Rasan"));
-			agent.getContent().add(name);
-			metsHdr.getContent().add(agent);
-
-			agent = new Agent();
-			name = new Name();
-			agent.setROLE(Role.CUSTODIAN);
-			agent.setTYPE(Type.ORGANIZATION);
-			name.getContent().add(new PCData("NYU DLTS"));
-			agent.getContent().add(name);
-			metsHdr.getContent().add(agent);
-
-			agent = new Agent();
-			name = new Name();
-			agent.setROLE(Role.DISSEMINATOR);
-			agent.setTYPE(Type.ORGANIZATION);
-			name.getContent().add(new PCData("NYU DLTS"));
-			agent.getContent().add(name);
-			metsHdr.getContent().add(agent);
-
-			mets.getContent().add(metsHdr);
-
-			java.io.File aipDir = new java.io.File(aipDirName);
-			if (!aipDir.isDirectory()) {
-				log.fatal("aip directory " + aipDir + " isn't a directory.");
-				System.exit(1);
-			}
-
-			String aipVersionDirName = aipDirName + "/files/" + aipVersion;
-
-			java.io.File dataDir
-				= new java.io.File(aipVersionDirName + "/data");	
-			log.debug("data directory: " + dataDir);
-			java.io.File metaDir
-				= new java.io.File(aipVersionDirName + "/metadata");
-			log.debug("metadata directory: " + metaDir);
-
-			aipDirNameLength = aipDir.getCanonicalPath().length();
-			metaDirNameLength = metaDir.getCanonicalPath().length();
-			dataDirNameLength = dataDir.getCanonicalPath().length();
-
-			ArrayList<java.io.File> dmdFiles
-				= getFileList(metaDir, dmdMatcher);
-			log.debug("There are " + dmdFiles.size() + " DMD files.");
-			for (int i = 0; i < dmdFiles.size(); i++) {
-				java.io.File dmdFile = dmdFiles.get(i);
-				log.debug("DMD filename: " + dmdFile.getName());
-				DmdSec dmdSec = new DmdSec();
-				dmdSec.setID(createId("dmd", i + 1));
-				MdRef mdRef = getMdRef(dmdFile);
-				dmdSec.getContent().add(mdRef);
-				mets.getContent().add(dmdSec);
-			}
+			new GenNyupAipMetsHarvardToolkit(args[0], args[1], args[2])
+				.write(args[3]);
+		} catch (NotDirectoryException e) {
+			log.fatal("aip directory " + e.getFile() + " isn't a directory.");
+			System.exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
 
-			ArrayList<java.io.File> techmdFiles
-				= getFileList(metaDir, techmdMatcher);
-			log.debug("There are " + techmdFiles.size() + " TechMD files.");
-			AmdSec amdSec = new AmdSec();
-			addTechMD(amdSec, techmdFiles, "techMD.");
-			mets.getContent().add(amdSec);
-
-			ArrayList<java.io.File> rmdFiles
-				= getFileList(metaDir, rmdMatcher);
-			for (int i = 0; i < rmdFiles.size(); i++) {
-				java.io.File rmdFile = rmdFiles.get(i);
-				RightsMD rightsMD = new RightsMD();
-				rightsMD.setID(basename(rmdFile));
-				MdRef mdRef = getMdRef(rmdFile);
-				rightsMD.getContent().add(mdRef);
-				amdSec.getContent().add(rightsMD);
-			}
 
-			ArrayList<java.io.File> digiprovFiles
-				= getFileList(metaDir, digiprovMatcher);
-			for (int i = 0; i < digiprovFiles.size(); i++) {
-				java.io.File digiprovFile = digiprovFiles.get(i);
-				DigiprovMD digiprovMD = new DigiprovMD();
-				digiprovMD.setID(basename(digiprovFile));
-				MdRef mdRef = getMdRef(digiprovFile);
-				digiprovMD.getContent().add(mdRef);
-				amdSec.getContent().add(digiprovMD);
-			}
+	public GenNyupAipMetsHarvardToolkit(String aipId, String aipVersion,
+			String aipDirName) {
+		this.aipId = aipId;
+		this.aipVersion = aipVersion;
+		this.aipDirName = aipDirName;
+	}
 
-			FileSec fileSec = new FileSec();
-			ArrayList<StructMap> structMapList = new ArrayList<StructMap>();
-
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				epubMatcher, "EPUB");
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				paperbackPrintPdfMatcher, "PAPERBACK_PRINT");
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				podPdfMatcher, "PRINT_ON_DEMAND");
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				clothPdfMatcher, "CLOTH_ORIGINAL");
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				webPdfMatcher, "WEB");
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				printPdfMatcher, "PRINT");
-			createFileGrpAndStructMap(fileSec, structMapList, dataDir,
-				coverJpgMatcher, "COVER");
-
-			mets.getContent().add(fileSec);
-
-			for (int i = 0; i < structMapList.size(); i++) {
-				StructMap structMap = structMapList.get(i);
-				mets.getContent().add(structMap);
-			}
 
-			mets.validate(new MetsValidator());
+	public void write(String outputFile) throws Exception {
+		FileOutputStream out = new FileOutputStream(outputFile);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+		log.info("Wrote " + outputFile);
+	}
 
-			mets.write(new MetsWriter(new FileOutputStream(outputFile)));
-			log.info("Wrote " + outputFile);
 
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+	public void write(OutputStream out) throws Exception {
+		Date now = new Date();
+
+		Mets mets = new Mets();
+		mets.setOBJID(aipId);
+		mets.setTYPE("Text");
+
+		MetsHdr metsHdr = new MetsHdr();
+		metsHdr.setCREATEDATE(now);
+		metsHdr.setLASTMODDATE(now);
+		metsHdr.setRECORDSTATUS("Completed");
+
+		Agent agent = new Agent();
+		Name name = new Name();
+		agent.setROLE(Role.CREATOR);
+		agent.setTYPE(Type.INDIVIDUAL);
+		name.getContent().add(new PCData("Rasch, Rasan"));
+		agent.getContent().add(name);
+		metsHdr.getContent().add(agent);
+
+		agent = new Agent();
+		name = new Name();
+		agent.setROLE(Role.CUSTODIAN);
+		agent.setTYPE(Type.ORGANIZATION);
+		name.getContent().add(new PCData("NYU DLTS"));
+		agent.getContent().add(name);
+		metsHdr.getContent().add(agent);
+
+		agent = new Agent();
+		name = new Name();
+		agent.setROLE(Role.DISSEMINATOR);
+		agent.setTYPE(Type.ORGANIZATION);
+		name.getContent().add(new PCData("NYU DLTS"));
+		agent.getContent().add(name);
+		metsHdr.getContent().add(agent);
+
+		mets.getContent().add(metsHdr);
+
+		java.io.File aipDir = new java.io.File(aipDirName);
+		if (!aipDir.isDirectory()) {
+			throw new NotDirectoryException(aipDir.getPath());
 		}
-	}
 
+		String aipVersionDirName = aipDirName + "/files/" + aipVersion;
+
+		java.io.File dataDir
+			= new java.io.File(aipVersionDirName + "/data");	
+		log.debug("data directory: " + dataDir);
+		java.io.File metaDir
+			= new java.io.File(aipVersionDirName + "/metadata");
+		log.debug("metadata directory: " + metaDir);
+
+		aipDirNameLength = aipDir.getCanonicalPath().length();
+		metaDirNameLength = metaDir.getCanonicalPath().length();
+		dataDirNameLength = dataDir.getCanonicalPath().length();
+
+		AipFileScanner scanner = new AipFileScanner();
+		scanner.addGroup("DMD", metaDir, DMD_REGEX);
+		scanner.addGroup("TECHMD", metaDir, TECHMD_REGEX);
+		scanner.addGroup("RIGHTS", metaDir, RMD_REGEX);
+		scanner.addGroup("DIGIPROV", metaDir, DIGIPROV_REGEX);
+		for (int i = 0; i < FILE_GROUPS.length; i++) {
+			scanner.addGroup(FILE_GROUPS[i][1], dataDir, FILE_GROUPS[i][0]);
+		}
+		Map<String, ArrayList<java.io.File>> fileGroups
+			= scanner.scan(new java.io.File(aipVersionDirName));
+
+		ArrayList<java.io.File> dmdFiles = fileGroups.get("DMD");
+		log.debug("There are " + dmdFiles.size() + " DMD files.");
+		for (int i = 0; i < dmdFiles.size(); i++) {
+			java.io.File dmdFile = dmdFiles.get(i);
+			log.debug("DMD filename: " + dmdFile.getName());
+			DmdSec dmdSec = new DmdSec();
+			dmdSec.setID(createId("dmd", i + 1));
+			MdRef mdRef = getMdRef(dmdFile);
+			dmdSec.getContent().add(mdRef);
+			mets.getContent().add(dmdSec);
+		}
 
-	static String getChecksum(java.io.File datafile) throws Exception {
+		ArrayList<java.io.File> techmdFiles = fileGroups.get("TECHMD");
+		log.debug("There are " + techmdFiles.size() + " TechMD files.");
+		AmdSec amdSec = new AmdSec();
+		addTechMD(amdSec, techmdFiles, "techMD.");
+		mets.getContent().add(amdSec);
+
+		ArrayList<java.io.File> rmdFiles = fileGroups.get("RIGHTS");
+		for (int i = 0; i < rmdFiles.size(); i++) {
+			java.io.File rmdFile = rmdFiles.get(i);
+			RightsMD rightsMD = new RightsMD();
+			rightsMD.setID(basename(rmdFile));
+			MdRef mdRef = getMdRef(rmdFile);
+			rightsMD.getContent().add(mdRef);
+			amdSec.getContent().add(rightsMD);
+		}
 
-		MessageDigest md = MessageDigest.getInstance("SHA1");
-		FileInputStream fis = new FileInputStream(datafile);
-		byte[] dataBytes = new byte[1024];
+		ArrayList<java.io.File> digiprovFiles = fileGroups.get("DIGIPROV");
+		for (int i = 0; i < digiprovFiles.size(); i++) {
+			java.io.File digiprovFile = digiprovFiles.get(i);
+			DigiprovMD digiprovMD = new DigiprovMD();
+			digiprovMD.setID(basename(digiprovFile));
+			MdRef mdRef = getMdRef(digiprovFile);
+			digiprovMD.getContent().add(mdRef);
+			amdSec.getContent().add(digiprovMD);
+		}
 
-		int nread = 0;
+		FileSec fileSec = new FileSec();
+		ArrayList<StructMap> structMapList = new ArrayList<StructMap>();
 
-		while ((nread = fis.read(dataBytes)) != -1) {
-			md.update(dataBytes, 0, nread);
+		for (int i = 0; i < FILE_GROUPS.length; i++) {
+			String grpName = FILE_GROUPS[i][1];
+			createFileGrpAndStructMap(fileSec, structMapList,
+				fileGroups.get(grpName), grpName);
 		}
-		byte[] mdbytes = md.digest();
 
-		// convert the byte to hex format
-		StringBuffer sb = new StringBuffer("");
-		for (int i = 0; i < mdbytes.length; i++) {
-			sb.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16)
-					.substring(1));
+		mets.getContent().add(fileSec);
+
+		for (int i = 0; i < structMapList.size(); i++) {
+			StructMap structMap = structMapList.get(i);
+			mets.getContent().add(structMap);
 		}
 
-		return sb.toString();
+		mets.validate(new MetsValidator());
+
+		mets.write(new MetsWriter(out));
+	}
+
+
+	static String getChecksum(java.io.File datafile) throws Exception {
+		return ChecksumEngine.hash(datafile).getSha1();
 	}
 
 
-	static void createFileGrpAndStructMap(FileSec fileSec,
+	void createFileGrpAndStructMap(FileSec fileSec,
 			ArrayList<StructMap> structMapList,
-			java.io.File dir,
-			Matcher matcher,
+			ArrayList<java.io.File> fileList,
 			String grpName) throws Exception {
 
 		String grpNameLower = grpName.toLowerCase();
 
-		ArrayList<java.io.File> fileList = getFileList(dir, matcher);
-
 		log.debug("There are " + fileList.size() + " " + grpName + " files.");
 
 		if (fileList.isEmpty()) {
@@ -353,7 +350,7 @@ public class GenNyupAipMetsHarvardToolkit {
 	}
 
 
-	static void addTechMD(AmdSec amdSec, ArrayList<java.io.File> fileList,
+	void addTechMD(AmdSec amdSec, ArrayList<java.io.File> fileList,
 			String idPrefix) throws IOException {
 
 		if (fileList.isEmpty()) {
@@ -372,7 +369,7 @@ public class GenNyupAipMetsHarvardToolkit {
 	}
 
 
-	static MdRef getMdRef(java.io.File mdFile) throws IOException {
+	MdRef getMdRef(java.io.File mdFile) throws IOException {
 		
 		String mdFileName = mdFile.getName();
 
@@ -385,6 +382,8 @@ public class GenNyupAipMetsHarvardToolkit {
 
 		if (mdFileName.matches("_digiprov.xml$")) {
 			mdRef.setMDTYPE(Mdtype.PREMIS);
+		} else if (mdFileName.endsWith(CoverImageInspector.SUFFIX)) {
+			mdRef.setMDTYPE(Mdtype.NISOIMG);
 		} else if (mdtypeMatcher.find()) {
 			mdRef.setMDTYPE(new Mdtype(mdtypeMatcher.group(1).toUpperCase()));
 		} else {
@@ -400,46 +399,15 @@ public class GenNyupAipMetsHarvardToolkit {
 
 	}
 
-	
-	static ArrayList<java.io.File> getFileList(java.io.File dir,
-			Matcher matcher) {
-		ArrayList<java.io.File> fileList =  new ArrayList<java.io.File>();
-		traverseDirTree(dir, fileList, matcher);
-		Collections.sort(fileList);
-		return fileList;
-	}
-
-	
-	static void traverseDirTree(java.io.File dir,
-			ArrayList<java.io.File> fileList,
-			Matcher matcher) {
-		if (dir.exists()) {
-			if (dir.isDirectory()) {
-				java.io.File[] children = dir.listFiles();
-				for (int i = 0; i < children.length; i++) {
-					traverseDirTree(children[i], fileList, matcher);
-				}
-			} else {
-				log.trace("filename: " + dir.getName());
-				matcher.reset(dir.getPath());
-				if (matcher.find()) {
-					log.trace("Found match for regex: " +  matcher.pattern());
-					fileList.add(dir);
-				}
-			}
-		}
-	}
-
-
-	static String getRelPathToRoot(java.io.File file) throws IOException {
+	String getRelPathToRoot(java.io.File file) throws IOException {
 		return file.getCanonicalPath().substring(aipDirNameLength + 1);
 	}
 
-	static String getRelPathToMetadata(java.io.File file) throws IOException {
+	String getRelPathToMetadata(java.io.File file) throws IOException {
 		return file.getCanonicalPath().substring(metaDirNameLength + 1);
 	}
 
-	static String getRelPathToData(java.io.File file) throws IOException {
+	String getRelPathToData(java.io.File file) throws IOException {
 		return file.getCanonicalPath().substring(dataDirNameLength + 1);
 	}
 
@@ -465,7 +433,7 @@ public class GenNyupAipMetsHarvardToolkit {
 	}
 
 
-	static String genId(java.io.File file, boolean isData) throws IOException {
+	String genId(java.io.File file, boolean isData) throws IOException {
 		String id = isData ?
 			getRelPathToData(file) : getRelPathToMetadata(file);
 // 		int dot = id.lastIndexOf('.');
@@ -0,0 +1,199 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Generates the same METS document as {@link GenNyupAipMets}, but writes
+ * each section to the output as soon as it is produced and validates it
+ * on the way out with a {@link MetsStreamWriter}. Only the file lists of
+ * the AIP are kept in memory, never the document itself.
+ */
+public class GenNyupAipMetsStreaming extends GenNyupAipMets {
+
+	public GenNyupAipMetsStreaming(String aipId, String aipVersion,
+			String aipDirName) {
+		super(aipId, aipVersion, aipDirName);
+	}
+
+
+	public String getBackend() {
+		return "stream";
+	}
+
+
+	/**
+	 * Generate the METS document for this AIP version and write it to
+	 * out. The stream is not closed.
+	 */
+	public void write(OutputStream out) throws Exception {
+		Map<String, ArrayList<File>> fileGroups = scan();
+		hashAll(fileGroups);
+
+		MetsStreamWriter mets = new MetsStreamWriter(out);
+		mets.startDocument();
+		mets.start("mets");
+		mets.attribute("OBJID", aipId);
+		mets.attribute("TYPE", "Text");
+
+		String currentTime = timestamp();
+
+		mets.start("metsHdr");
+		mets.attribute("CREATEDATE", currentTime);
+		mets.attribute("LASTMODDATE", currentTime);
+		mets.attribute("RECORDSTATUS", "Completed");
+		for (int i = 0; i < AGENTS.length; i++) {
+			mets.start("agent");
+			mets.attribute("ROLE", AGENTS[i][0]);
+			mets.attribute("TYPE", AGENTS[i][1]);
+			mets.start("name");
+			mets.text(AGENTS[i][2]);
+			mets.end();
+			mets.end();
+		}
+		mets.end();
+
+		ArrayList<File> dmdFiles = fileGroups.get("DMD");
+		log.debug("There are " + dmdFiles.size() + " DMD files.");
+		for (int i = 0; i < dmdFiles.size(); i++) {
+			File dmdFile = dmdFiles.get(i);
+			log.debug("DMD filename: " + dmdFile.getName());
+			mets.start("dmdSec");
+			mets.attribute("ID", createId("dmd", i + 1));
+			writeMdRef(mets, dmdFile);
+			mets.end();
+		}
+
+		mets.start("amdSec");
+
+		ArrayList<File> techmdFiles = fileGroups.get("TECHMD");
+		log.debug("There are " + techmdFiles.size() + " TechMD files.");
+		for (File techmdFile : techmdFiles) {
+			mets.start("techMD");
+			mets.attribute("ID", "techMD." + genId(techmdFile, false));
+			writeMdRef(mets, techmdFile);
+			mets.end();
+		}
+
+		for (File rmdFile : fileGroups.get("RIGHTS")) {
+			mets.start("rightsMD");
+			mets.attribute("ID", basename(rmdFile));
+			writeMdRef(mets, rmdFile);
+			mets.end();
+		}
+
+		for (File digiprovFile : fileGroups.get("DIGIPROV")) {
+			mets.start("digiprovMD");
+			mets.attribute("ID", basename(digiprovFile));
+			writeMdRef(mets, digiprovFile);
+			mets.end();
+		}
+
+		mets.end();
+
+		mets.start("fileSec");
+		for (int i = 0; i < FILE_GROUPS.length; i++) {
+			String grpName = FILE_GROUPS[i][1];
+			writeFileGrp(mets, fileGroups.get(grpName), grpName);
+		}
+		mets.end();
+
+		// The fptrs are regenerated from the file lists rather than
+		// remembered while writing the fileSec.
+		mets.start("structMap");
+		mets.attribute("TYPE", "PHYSICAL");
+		mets.start("div");
+		for (int order = 0; order < 2; order++) {
+			boolean images = order == 0;
+			mets.start("div");
+			mets.attribute("ORDER", String.valueOf(order));
+			for (int i = 0; i < FILE_GROUPS.length; i++) {
+				String grpName = FILE_GROUPS[i][1];
+				if (grpName.equals(COVER_GRP_NAME) != images) {
+					continue;
+				}
+				for (File aipFile : fileGroups.get(grpName)) {
+					mets.start("fptr");
+					mets.attribute("FILEID", genId(aipFile, true));
+					mets.end();
+				}
+			}
+			mets.end();
+		}
+		mets.end();
+		mets.end();
+
+		mets.end();
+		mets.endDocument();
+	}
+
+
+	void writeFileGrp(MetsStreamWriter mets, ArrayList<File> fileList,
+			String grpName) throws Exception {
+
+		log.debug("There are " + fileList.size() + " " + grpName + " files.");
+
+		if (fileList.isEmpty()) {
+			log.warn(grpName + " file list is empty.");
+			return;
+		}
+
+		mets.start("fileGrp");
+		mets.attribute("ID", grpName.toLowerCase());
+		mets.attribute("USE", grpName);
+
+		mets.start("fileGrp");
+		mets.attribute("USE", "MASTER");
+		for (File aipFile : fileList) {
+			if (aipFile.getName().endsWith("pdfa")) {
+				writeFile(mets, aipFile);
+			}
+		}
+		mets.end();
+
+		mets.start("fileGrp");
+		mets.attribute("USE", "ORIGINAL");
+		for (File aipFile : fileList) {
+			if (!aipFile.getName().endsWith("pdfa")) {
+				writeFile(mets, aipFile);
+			}
+		}
+		mets.end();
+
+		mets.end();
+	}
+
+
+	void writeFile(MetsStreamWriter mets, File aipFile) throws Exception {
+		log.debug("aip file: " + aipFile.getCanonicalPath());
+
+		mets.start("file");
+		mets.attribute("CHECKSUM", getChecksum(aipFile));
+		mets.attribute("CHECKSUMTYPE", "SHA-1");
+		mets.attribute("ID", genId(aipFile, true));
+		mets.attribute("MIMETYPE", mimeType(aipFile));
+		mets.start("FLocat");
+		mets.attribute("LOCTYPE", "URL");
+		mets.href(getRelPathToRoot(aipFile));
+		mets.end();
+		mets.end();
+	}
+
+
+	void writeMdRef(MetsStreamWriter mets, File mdFile) throws Exception {
+		String[] mdType = getMdType(mdFile.getName());
+
+		mets.start("mdRef");
+		mets.attribute("CHECKSUM", getChecksum(mdFile));
+		mets.attribute("CHECKSUMTYPE", "SHA-1");
+		mets.attribute("LOCTYPE", "URL");
+		mets.attribute("MDTYPE", mdType[0]);
+		mets.attribute("MIMETYPE", mimeType(mdFile));
+		mets.attribute("OTHERMDTYPE", mdType[1]);
+		mets.href(getRelPathToRoot(mdFile));
+		mets.end();
+	}
+
+}
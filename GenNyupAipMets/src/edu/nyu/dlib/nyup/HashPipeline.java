@@ -0,0 +1,247 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hashes files with reading and digesting overlapped: reader threads
+ * read ahead into a shared pool of direct buffers while the thread that
+ * asked for the checksums digests the chunks already read.
+ *
+ * The number of reader threads is the I/O depth, i.e. how many files
+ * are read from storage at the same time across the whole JVM. A local
+ * disk is usually saturated at 2, NFS needs more requests in flight to
+ * hide its latency. Each file may have at most buffers / depth chunks
+ * read ahead, so one large file can't starve the others.
+ *
+ * The pipeline is shared by every {@link ChecksumEngine}; to keep
+ * several files in flight hash them from several threads, see
+ * {@link ChecksumEngine#digestAll}.
+ */
+public class HashPipeline {
+
+	/** Default I/O depth, nyup.hash.io.depth. */
+	static final int DEFAULT_IO_DEPTH = 2;
+
+	/** Chunks read ahead per reader by default, see nyup.hash.buffers. */
+	static final int DEFAULT_BUFFERS_PER_READER = 4;
+
+	/** Marks the end of a file in a chunk queue. */
+	static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+	static Logger log = Logger.getLogger(HashPipeline.class);
+
+	private static HashPipeline defaultPipeline;
+
+	private static final ThreadLocal<byte[]> heapBuffer
+		= new ThreadLocal<byte[]>() {
+			protected byte[] initialValue() {
+				return new byte[ChecksumEngine.BUFFER_SIZE];
+			}
+		};
+
+	private final int ioDepth;
+	private final int readAhead;
+	private final BlockingQueue<ByteBuffer> pool;
+	private final ExecutorService readers;
+
+	/**
+	 * @param ioDepth
+	 *            number of files read at the same time
+	 * @param numBuffers
+	 *            number of direct buffers of
+	 *            {@link ChecksumEngine#BUFFER_SIZE} bytes in the pool, at
+	 *            least two per reader
+	 */
+	public HashPipeline(int ioDepth, int numBuffers) {
+		if (ioDepth < 1 || numBuffers < 2 * ioDepth) {
+			throw new IllegalArgumentException("Need at least one reader "
+				+ "and two buffers per reader, got " + ioDepth
+				+ " readers and " + numBuffers + " buffers");
+		}
+		this.ioDepth = ioDepth;
+		this.readAhead = numBuffers / ioDepth;
+		this.pool = new ArrayBlockingQueue<ByteBuffer>(numBuffers);
+		for (int i = 0; i < numBuffers; i++) {
+			pool.add(ByteBuffer.allocateDirect(ChecksumEngine.BUFFER_SIZE));
+		}
+		this.readers = Executors.newFixedThreadPool(ioDepth,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "hash-reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * Return the pipeline configured with the nyup.hash.io.depth and
+	 * nyup.hash.buffers system properties, or null if the I/O depth is
+	 * 0, in which case files are read and digested by the calling
+	 * thread. The same instance is returned for every caller in the JVM.
+	 */
+	public static synchronized HashPipeline getDefault() {
+		if (defaultPipeline == null) {
+			int ioDepth = Integer.getInteger("nyup.hash.io.depth",
+				DEFAULT_IO_DEPTH);
+			if (ioDepth == 0) {
+				return null;
+			}
+			int numBuffers = Integer.getInteger("nyup.hash.buffers",
+				ioDepth * DEFAULT_BUFFERS_PER_READER);
+			defaultPipeline = new HashPipeline(ioDepth, numBuffers);
+			log.debug("Hash pipeline with I/O depth " + ioDepth + " and "
+				+ numBuffers + " buffers");
+		}
+		return defaultPipeline;
+	}
+
+	public int getIoDepth() {
+		return ioDepth;
+	}
+
+	/**
+	 * Hash a file with all supported algorithms, digesting in the calling
+	 * thread while a reader thread reads ahead.
+	 */
+	public FileDigests hash(File file) throws IOException {
+		MessageDigest sha1 = ChecksumEngine.newDigest("SHA-1");
+		MessageDigest md5 = ChecksumEngine.newDigest("MD5");
+		MessageDigest sha256 = ChecksumEngine.newDigest("SHA-256");
+
+		byte[] bytes = heapBuffer.get();
+		long size = 0;
+
+		ReadAhead reader = new ReadAhead(file);
+		Future<?> future = readers.submit(reader);
+		boolean done = false;
+		try {
+			ByteBuffer buf;
+			while ((buf = reader.chunks.take()) != EOF) {
+				try {
+					while (buf.hasRemaining()) {
+						int nread = Math.min(buf.remaining(), bytes.length);
+						buf.get(bytes, 0, nread);
+						sha1.update(bytes, 0, nread);
+						md5.update(bytes, 0, nread);
+						sha256.update(bytes, 0, nread);
+						size += nread;
+					}
+				} finally {
+					release(buf);
+				}
+			}
+			done = true;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted hashing " + file);
+		} finally {
+			if (!done) {
+				reader.cancel(future);
+			}
+		}
+		if (reader.error != null) {
+			throw reader.error;
+		}
+
+		return new FileDigests(ChecksumEngine.toHex(sha1.digest()),
+			ChecksumEngine.toHex(md5.digest()),
+			ChecksumEngine.toHex(sha256.digest()), size);
+	}
+
+	void release(ByteBuffer buf) {
+		if (buf != EOF) {
+			buf.clear();
+			pool.add(buf);
+		}
+	}
+
+	/**
+	 * Reads one file into pooled buffers and queues them for digesting,
+	 * followed by {@link #EOF}.
+	 */
+	class ReadAhead implements Runnable {
+
+		final File file;
+		final BlockingQueue<ByteBuffer> chunks;
+		volatile IOException error;
+		volatile boolean cancelled = false;
+
+		ReadAhead(File file) {
+			this.file = file;
+			this.chunks = new ArrayBlockingQueue<ByteBuffer>(readAhead);
+		}
+
+		public void run() {
+			ByteBuffer buf = null;
+			try {
+				try {
+					FileChannel channel = FileChannel.open(file.toPath(),
+						StandardOpenOption.READ);
+					try {
+						boolean eof = false;
+						while (!eof) {
+							buf = pool.take();
+							while (buf.hasRemaining()) {
+								if (channel.read(buf) == -1) {
+									eof = true;
+									break;
+								}
+							}
+							buf.flip();
+							if (buf.hasRemaining()) {
+								chunks.put(buf);
+							} else {
+								release(buf);
+							}
+							buf = null;
+						}
+					} finally {
+						channel.close();
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				chunks.put(EOF);
+			} catch (InterruptedException e) {
+				// Cancelled by the digesting thread.
+			} finally {
+				if (buf != null) {
+					release(buf);
+				}
+				if (cancelled) {
+					drain();
+				}
+			}
+		}
+
+		/**
+		 * Stop reading and return the buffers read ahead to the pool.
+		 */
+		void cancel(Future<?> future) {
+			cancelled = true;
+			future.cancel(true);
+			drain();
+		}
+
+		void drain() {
+			ByteBuffer buf;
+			while ((buf = chunks.poll()) != null) {
+				release(buf);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,458 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Status of the stages of a job, such as the METS of an AIP or the
+ * processing of a book, kept in an append-only journal file.
+ *
+ * Every change is appended as one line "key TAB stage TAB status TAB
+ * time TAB crc32" and is on disk when {@link #record} returns. Threads
+ * recording at the same time share one fsync. A line that was cut short
+ * by a crash or fails its checksum is skipped when the journal is read,
+ * so the journal always holds the last status that was recorded
+ * completely.
+ *
+ * The latest status of each key and stage is kept in memory. Several
+ * processes may append to the same journal: each holds a shared lock on
+ * journal + ".lock" while it has the journal open. A process that opens
+ * the journal while nobody else has it open rewrites it with only the
+ * latest statuses once it holds more than {@link #COMPACT_RATIO} times
+ * as many lines.
+ *
+ * gen-aips.pl uses it through the command line, see {@link #main}; the
+ * METS batch records the METS of every AIP if the nyup.journal system
+ * property names a journal, see {@link #getDefault}.
+ */
+public class JobJournal implements Closeable {
+
+	public static final String STARTED = "STARTED";
+	public static final String DONE = "DONE";
+	public static final String FAILED = "FAILED";
+
+	/** Compact when the journal has this many lines per live status. */
+	static final int COMPACT_RATIO = 4;
+
+	/** Don't bother compacting journals shorter than this. */
+	static final int COMPACT_MIN_LINES = 1000;
+
+	static Logger log = Logger.getLogger(JobJournal.class);
+
+	private static JobJournal defaultJournal;
+	private static boolean defaultOpened = false;
+
+	private final File file;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final FileChannel channel;
+
+	/** Latest status by key TAB stage. */
+	private final Map<String, String> index
+		= new ConcurrentHashMap<String, String>();
+
+	private final Object writeLock = new Object();
+	private final Object syncLock = new Object();
+	private long numLines = 0;
+	private long written = 0;
+	private long synced = 0;
+
+	public static void main(String[] args) {
+		if (args.length < 2
+				|| !(args[1].equals("dump") && args.length == 2
+					|| args[1].equals("get") && args.length == 3
+					|| args[1].equals("append") && args.length == 2
+					|| args[1].equals("compact") && args.length == 2)) {
+			System.err.println("Usage: java edu.nyu.dlib.nyup.JobJournal <journal file> (dump | get <key> | append | compact)");
+			System.err.println("\tdump\tprint the latest status of every key and stage");
+			System.err.println("\tget\tprint the latest status of every stage of a key");
+			System.err.println("\tappend\trecord \"key TAB stage TAB status\" lines read from stdin");
+			System.err.println("\tcompact\trewrite the journal with only the latest statuses");
+			System.exit(1);
+		}
+
+		File journalFile = new File(args[0]);
+		String command = args[1];
+		JobJournal journal = null;
+		try {
+			journal = new JobJournal(journalFile, command.equals("compact"));
+			if (command.equals("dump") || command.equals("get")) {
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					System.out, "UTF-8"));
+				Map<String, String> statuses = command.equals("get")
+					? journal.getStatuses(args[2]) : journal.getAll();
+				for (Map.Entry<String, String> entry : statuses.entrySet()) {
+					out.println((command.equals("get") ? args[2] + "\t" : "")
+						+ entry.getKey() + "\t" + entry.getValue());
+				}
+				out.flush();
+			} else if (command.equals("append")) {
+				journal.append(new BufferedReader(new InputStreamReader(
+					System.in, "UTF-8")));
+			}
+		} catch (Exception e) {
+			log.fatal(journalFile + ": " + e.getMessage(), e);
+			System.exit(1);
+		} finally {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					log.error("Can't close " + journalFile, e);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Open a journal, creating it if it doesn't exist.
+	 */
+	public JobJournal(File file) throws IOException {
+		this(file, false);
+	}
+
+
+	/**
+	 * @param compact
+	 *            compact the journal now, failing if another process has
+	 *            it open
+	 */
+	JobJournal(File file, boolean compact) throws IOException {
+		this.file = file;
+		lockChannel = FileChannel.open(
+			new File(file.getPath() + ".lock").toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		FileLock exclusive = null;
+		FileLock shared = null;
+		FileChannel appendChannel = null;
+		boolean opened = false;
+		try {
+			exclusive = lockChannel.tryLock();
+			if (exclusive == null && compact) {
+				throw new IOException("Can't compact " + file
+					+ ", it's in use");
+			}
+			if (exclusive != null) {
+				// nobody else is writing, so the journal can be repaired
+				// and compacted
+				load(true);
+				if (compact || numLines >= COMPACT_MIN_LINES
+						&& numLines > COMPACT_RATIO * index.size()) {
+					compact();
+				}
+				exclusive.release();
+				exclusive = null;
+				shared = lockChannel.lock(0, Long.MAX_VALUE, true);
+			} else {
+				shared = lockChannel.lock(0, Long.MAX_VALUE, true);
+				load(false);
+			}
+			appendChannel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+			opened = true;
+		} finally {
+			if (!opened) {
+				// closing the channel releases its locks
+				lockChannel.close();
+			}
+		}
+		lock = shared;
+		channel = appendChannel;
+	}
+
+
+	/**
+	 * Return the journal named by the nyup.journal system property, or
+	 * null if it isn't set. The same instance is returned for every
+	 * caller in the JVM.
+	 */
+	public static synchronized JobJournal getDefault() throws IOException {
+		if (!defaultOpened) {
+			String path = System.getProperty("nyup.journal");
+			if (path != null && path.length() > 0) {
+				defaultJournal = new JobJournal(new File(path));
+				log.debug("Recording job status in " + path);
+			}
+			defaultOpened = true;
+		}
+		return defaultJournal;
+	}
+
+
+	/**
+	 * Read the journal into the index, skipping incomplete and corrupt
+	 * lines.
+	 *
+	 * @param repair
+	 *            end a last line cut short by a crash so that appended
+	 *            lines start on a line of their own; only safe while
+	 *            nobody else is appending
+	 */
+	void load(boolean repair) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		int numBad = 0;
+		boolean terminated = true;
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while (true) {
+				c = in.read();
+				if (c == -1) {
+					terminated = line.length() == 0;
+					break;
+				}
+				if (c != '\n') {
+					line.append((char) c);
+					continue;
+				}
+				numLines++;
+				if (!parse(line.toString())) {
+					numBad++;
+				}
+				line.setLength(0);
+			}
+		} finally {
+			in.close();
+		}
+		if (numBad > 0) {
+			log.warn("Skipped " + numBad + " corrupt lines in " + file);
+		}
+		if (!terminated && repair) {
+			log.warn("Ending incomplete last line of " + file);
+			FileChannel out = FileChannel.open(file.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			try {
+				out.write(ByteBuffer.wrap(new byte[] { '\n' }));
+				out.force(false);
+			} finally {
+				out.close();
+			}
+		}
+		log.debug("Read " + numLines + " lines, " + index.size()
+			+ " statuses from " + file + " in "
+			+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+
+	boolean parse(String line) {
+		if (line.length() == 0) {
+			return true;
+		}
+		int crcStart = line.lastIndexOf('\t');
+		String[] fields = line.split("\t");
+		if (fields.length != 5 || !crc(line.substring(0, crcStart))
+				.equals(line.substring(crcStart + 1))) {
+			return false;
+		}
+		index.put(fields[0] + "\t" + fields[1], fields[2]);
+		return true;
+	}
+
+
+	/**
+	 * Rewrite the journal with one line per key and stage.
+	 */
+	void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileChannel out = FileChannel.open(tmpFile.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		long now = System.currentTimeMillis();
+		try {
+			for (Map.Entry<String, String> entry
+					: new TreeMap<String, String>(index).entrySet()) {
+				out.write(ByteBuffer.wrap(format(entry.getKey(),
+					entry.getValue(), now)));
+			}
+			out.force(false);
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		log.info("Compacted " + file + " from " + numLines + " to "
+			+ index.size() + " lines in "
+			+ (System.currentTimeMillis() - start) + " ms");
+		numLines = index.size();
+	}
+
+
+	/**
+	 * Record the status of a stage of a job and wait until it's on disk.
+	 */
+	public void record(String key, String stage, String status)
+			throws IOException {
+		sync(append(key, stage, status));
+	}
+
+
+	/**
+	 * Record statuses read as "key TAB stage TAB status" lines, forcing
+	 * them to disk whenever no more input is waiting.
+	 */
+	void append(BufferedReader in) throws IOException {
+		String line;
+		long seq = 0;
+		while ((line = in.readLine()) != null) {
+			if (line.trim().length() == 0) {
+				continue;
+			}
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 3) {
+				throw new IOException("Expected key, stage and status "
+					+ "separated by tabs but got \"" + line + "\"");
+			}
+			seq = append(fields[0], fields[1], fields[2]);
+			if (!in.ready()) {
+				sync(seq);
+			}
+		}
+		sync(seq);
+	}
+
+
+	/**
+	 * Append a status without waiting for it to reach the disk.
+	 *
+	 * @return sequence number to pass to {@link #sync}
+	 */
+	long append(String key, String stage, String status) throws IOException {
+		check(key);
+		check(stage);
+		check(status);
+		String indexKey = key + "\t" + stage;
+		ByteBuffer buf = ByteBuffer.wrap(format(indexKey, status,
+			System.currentTimeMillis()));
+		synchronized (writeLock) {
+			// one write, so appends from other processes don't interleave
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			index.put(indexKey, status);
+			numLines++;
+			return ++written;
+		}
+	}
+
+
+	/**
+	 * Wait until the status with the given sequence number, and every one
+	 * before it, is on disk. One thread forces the journal to disk for
+	 * all statuses appended so far while the others wait.
+	 */
+	void sync(long seq) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= seq) {
+				return;
+			}
+			long target;
+			synchronized (writeLock) {
+				target = written;
+			}
+			channel.force(false);
+			synced = target;
+		}
+	}
+
+
+	static void check(String field) {
+		if (field.length() == 0 || field.indexOf('\t') != -1
+				|| field.indexOf('\n') != -1 || field.indexOf('\r') != -1) {
+			throw new IllegalArgumentException("Journal fields must be "
+				+ "non-empty and without tabs or newlines: \"" + field + "\"");
+		}
+	}
+
+
+	static byte[] format(String indexKey, String status, long time)
+			throws IOException {
+		String record = indexKey + "\t" + status + "\t" + time;
+		return (record + "\t" + crc(record) + "\n").getBytes("UTF-8");
+	}
+
+
+	static String crc(String record) {
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(record.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+
+	/**
+	 * Latest status of a stage of a job, or null if none was recorded.
+	 */
+	public String getStatus(String key, String stage) {
+		return index.get(key + "\t" + stage);
+	}
+
+
+	public boolean isDone(String key, String stage) {
+		return DONE.equals(getStatus(key, stage));
+	}
+
+
+	/**
+	 * Latest status of every stage of a job, by stage.
+	 */
+	public Map<String, String> getStatuses(String key) {
+		TreeMap<String, String> statuses = new TreeMap<String, String>();
+		String prefix = key + "\t";
+		for (Map.Entry<String, String> entry : index.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				statuses.put(entry.getKey().substring(prefix.length()),
+					entry.getValue());
+			}
+		}
+		return statuses;
+	}
+
+
+	/**
+	 * Latest status of every job and stage, by key TAB stage.
+	 */
+	public Map<String, String> getAll() {
+		return new TreeMap<String, String>(index);
+	}
+
+
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			lock.release();
+			lockChannel.close();
+		}
+	}
+
+}
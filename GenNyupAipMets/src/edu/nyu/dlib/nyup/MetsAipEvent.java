@@ -0,0 +1,39 @@
+package edu.nyu.dlib.nyup;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a whole METS run of one AIP. See
+ * {@link PhaseTimer}.
+ */
+@Name("edu.nyu.dlib.nyup.MetsAip")
+@Label("METS AIP")
+@Category({ "NYU Press", "METS" })
+@Description("Generating the METS for one AIP")
+public class MetsAipEvent extends Event {
+
+	@Label("AIP Id")
+	String aipId;
+
+	@Label("AIP Version")
+	String aipVersion;
+
+	@Label("Backend")
+	String backend;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+	@Label("Files")
+	long files;
+
+	@Label("Bytes Hashed")
+	@DataAmount
+	long bytes;
+
+}
@@ -0,0 +1,36 @@
+package edu.nyu.dlib.nyup;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one step of METS generation, e.g. the
+ * directory scan or hashing one file. See {@link PhaseTimer}.
+ */
+@Name("edu.nyu.dlib.nyup.MetsPhase")
+@Label("METS Phase")
+@Category({ "NYU Press", "METS" })
+@Description("One phase of generating the METS for an AIP")
+public class MetsPhaseEvent extends Event {
+
+	@Label("AIP Id")
+	String aipId;
+
+	@Label("AIP Version")
+	String aipVersion;
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Files")
+	long files;
+
+	@Label("Bytes Hashed")
+	@DataAmount
+	long bytes;
+
+}
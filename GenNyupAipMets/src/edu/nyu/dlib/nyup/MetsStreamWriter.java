@@ -0,0 +1,187 @@
+package edu.nyu.dlib.nyup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Writes a METS document one element at a time with StAX and feeds the
+ * same events to a METS schema validator, so the document is validated
+ * while it is written instead of being held in memory.
+ *
+ * Start tags are held back until their first child, text or end tag,
+ * which lets childless elements be written as empty elements the same
+ * way the DOM serializer of the METS toolkit writes them.
+ */
+public class MetsStreamWriter {
+
+	static final String METS_NS = "http://www.loc.gov/METS/";
+
+	static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	static final String METS_SCHEMA_URL = SchemaRegistry.METS;
+
+	private final XMLStreamWriter writer;
+	private final ValidatorHandler validator;
+
+	private final ArrayList<String> openElements = new ArrayList<String>();
+
+	private String pendingName;
+	private final AttributesImpl pendingAtts = new AttributesImpl();
+
+	/**
+	 * @param out
+	 *            stream to write the UTF-8 encoded document to, which is
+	 *            flushed but not closed by {@link #endDocument}
+	 */
+	public MetsStreamWriter(OutputStream out)
+			throws XMLStreamException, SAXException, IOException {
+		writer = XMLOutputFactory.newInstance()
+			.createXMLStreamWriter(out, "UTF-8");
+		validator = getSchema().newValidatorHandler();
+		validator.setErrorHandler(new ErrorHandler() {
+			public void warning(SAXParseException e) {
+			}
+
+			public void error(SAXParseException e) throws SAXException {
+				throw new SAXException("METS is invalid at " + path()
+					+ ": " + e.getMessage(), e);
+			}
+
+			public void fatalError(SAXParseException e) throws SAXException {
+				error(e);
+			}
+		});
+	}
+
+	/**
+	 * The METS schema, compiled once and shared by all writers.
+	 */
+	static Schema getSchema() throws SAXException, IOException {
+		return SchemaRegistry.getDefault().getSchema(METS_SCHEMA_URL);
+	}
+
+	public void startDocument() throws XMLStreamException, SAXException {
+		writer.writeStartDocument("UTF-8", "1.0");
+		validator.startDocument();
+		validator.startPrefixMapping("", METS_NS);
+		validator.startPrefixMapping("xlink", XLINK_NS);
+	}
+
+	public void endDocument() throws XMLStreamException, SAXException {
+		writer.writeEndDocument();
+		writer.flush();
+		validator.endPrefixMapping("xlink");
+		validator.endPrefixMapping("");
+		validator.endDocument();
+	}
+
+	/**
+	 * Start a METS element. Attributes may be added until the first child
+	 * or text is written.
+	 */
+	public void start(String name) throws XMLStreamException, SAXException {
+		flush(false);
+		pendingName = name;
+		pendingAtts.clear();
+	}
+
+	/**
+	 * Add an attribute to the element just started. Null values are
+	 * skipped.
+	 */
+	public void attribute(String name, String value) {
+		if (value != null) {
+			pendingAtts.addAttribute("", name, name, "CDATA", value);
+		}
+	}
+
+	/**
+	 * Add an xlink:href attribute to the element just started.
+	 */
+	public void href(String value) {
+		pendingAtts.addAttribute(XLINK_NS, "href", "xlink:href", "CDATA",
+			value);
+	}
+
+	public void text(String text) throws XMLStreamException, SAXException {
+		flush(false);
+		writer.writeCharacters(text);
+		char[] chars = text.toCharArray();
+		validator.characters(chars, 0, chars.length);
+	}
+
+	public void end() throws XMLStreamException, SAXException {
+		String name = openElements.get(openElements.size() - 1);
+		if (pendingName != null) {
+			flush(true);
+		} else {
+			writer.writeEndElement();
+		}
+		validator.endElement(METS_NS, name, name);
+		openElements.remove(openElements.size() - 1);
+	}
+
+	/**
+	 * Write out the pending start tag, if any.
+	 */
+	void flush(boolean empty) throws XMLStreamException, SAXException {
+		if (pendingName == null) {
+			return;
+		}
+
+		if (empty) {
+			writer.writeEmptyElement("", pendingName, METS_NS);
+		} else {
+			writer.writeStartElement("", pendingName, METS_NS);
+		}
+		if (openElements.isEmpty()) {
+			writer.writeDefaultNamespace(METS_NS);
+		}
+
+		boolean xlinkDeclared = false;
+		for (int i = 0; i < pendingAtts.getLength(); i++) {
+			String uri = pendingAtts.getURI(i);
+			if (uri.length() == 0) {
+				writer.writeAttribute(pendingAtts.getLocalName(i),
+					pendingAtts.getValue(i));
+			} else {
+				if (!xlinkDeclared) {
+					writer.writeNamespace("xlink", XLINK_NS);
+					xlinkDeclared = true;
+				}
+				writer.writeAttribute("xlink", uri,
+					pendingAtts.getLocalName(i), pendingAtts.getValue(i));
+			}
+		}
+
+		String name = pendingName;
+		pendingName = null;
+		openElements.add(name);
+		validator.startElement(METS_NS, name, name, pendingAtts);
+	}
+
+	/**
+	 * Path of the element being written, for error messages.
+	 */
+	String path() {
+		StringBuilder path = new StringBuilder();
+		for (String name : openElements) {
+			path.append('/').append(name);
+		}
+		if (pendingName != null) {
+			path.append('/').append(pendingName);
+		}
+		return path.toString();
+	}
+
+}
@@ -0,0 +1,613 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.Attributes2;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Splits a combined ONIX feed into one file per product in a single
+ * streaming pass that also validates the feed against its DTD, in place
+ * of split-onix.pl.
+ *
+ * Each output file, named prefix + ISBN-13 + "_onix.xml", holds the
+ * feed's DOCTYPE, root element and everything in the root before the
+ * first Product, followed by one Product. Only one product is held in
+ * memory while parsing; finished products are written out on a pool of
+ * threads, so memory use doesn't grow with the size of the feed.
+ *
+ * Files are written to a temporary directory next to them and only
+ * moved into place once the whole feed has been found valid, so an
+ * invalid feed leaves nothing behind. Existing files are an error unless
+ * forced.
+ *
+ * The JDK's StAX parser can't validate against a DTD, so the feed is
+ * read with a validating SAX parser; the output is written with StAX.
+ */
+public class OnixSplitter {
+
+	static final String PRODUCT = "Product";
+
+	static final String ISBN13_TYPE = "15";
+
+	static final String SUFFIX = "_onix.xml";
+
+	static final String INDENT = "  ";
+
+	static final String ENTITY_EXPANSION_LIMIT
+		= "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+
+	/**
+	 * Entity references allowed per feed by default, see
+	 * nyup.onix.entity.limit.
+	 */
+	static final int DEFAULT_ENTITY_LIMIT = 10000000;
+
+	static Logger log = Logger.getLogger(OnixSplitter.class);
+
+	private final String prefix;
+	private final boolean force;
+	private final int numThreads;
+
+	public static void main(String[] args) {
+		boolean force = false;
+		String prefix = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-f")) {
+				force = true;
+			} else if (args[i].equals("-p") && i + 1 < args.length) {
+				prefix = args[++i];
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				numThreads = Integer.parseInt(args[++i]);
+			} else {
+				i = args.length;
+			}
+		}
+
+		if (i >= args.length || numThreads < 1) {
+			System.err.println("Usage: java edu.nyu.dlib.nyup.OnixSplitter [-f] [-p <prefix>] [-threads <n>] <onix file> ...");
+			System.exit(1);
+		}
+
+		File onixFile = null;
+		try {
+			for (; i < args.length; i++) {
+				onixFile = new File(args[i]).getAbsoluteFile();
+				String filePrefix = prefix != null ? prefix
+					: onixFile.getPath().replaceFirst("onix\\.xml$", "");
+				new OnixSplitter(filePrefix, force, numThreads)
+					.split(onixFile);
+			}
+		} catch (SAXParseException e) {
+			log.fatal("Onix file " + onixFile + " is invalid at line "
+				+ e.getLineNumber() + ": " + e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * @param prefix
+	 *            path prefix of the product files
+	 * @param force
+	 *            overwrite existing product files
+	 * @param numThreads
+	 *            number of threads writing product files
+	 */
+	public OnixSplitter(String prefix, boolean force, int numThreads) {
+		this.prefix = prefix;
+		this.force = force;
+		this.numThreads = numThreads;
+	}
+
+
+	/**
+	 * Validate and split an ONIX feed.
+	 *
+	 * @return the number of products in the feed
+	 */
+	public int split(File onixFile) throws IOException, SAXException {
+		log.debug("Splitting " + onixFile);
+		File dir = new File(prefix + "x").getAbsoluteFile().getParentFile();
+		File tmpDir = Files.createTempDirectory(dir.toPath(), ".onix-split")
+			.toFile();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Splitter splitter = new Splitter(pool, tmpDir);
+		boolean done = false;
+		try {
+			XMLReader reader = newReader();
+			reader.setContentHandler(splitter);
+			reader.setErrorHandler(splitter);
+			reader.setProperty("http://xml.org/sax/properties/lexical-handler",
+				splitter);
+			reader.setProperty(
+				"http://xml.org/sax/properties/declaration-handler",
+				splitter);
+			reader.setEntityResolver(
+				SchemaRegistry.getDefault().getEntityResolver());
+			reader.parse(onixFile.toURI().toString());
+			splitter.finish();
+			done = true;
+		} finally {
+			pool.shutdownNow();
+			if (!done) {
+				splitter.discard();
+			}
+		}
+		log.info("Split " + onixFile + " into " + splitter.numProducts
+			+ " products");
+		return splitter.numProducts;
+	}
+
+
+	static XMLReader newReader() throws SAXException {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setValidating(true);
+		factory.setNamespaceAware(false);
+		try {
+			XMLReader reader = factory.newSAXParser().getXMLReader();
+			// Feeds use the DTD's character entities throughout, far more
+			// than the JDK's default limit of 64000 in a large feed. The
+			// limit stays finite so a nested entity bomb is still caught.
+			reader.setProperty(ENTITY_EXPANSION_LIMIT, String.valueOf(
+				Integer.getInteger("nyup.onix.entity.limit",
+					DEFAULT_ENTITY_LIMIT)));
+			return reader;
+		} catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		}
+	}
+
+
+	/**
+	 * Write one product file under its temporary name.
+	 */
+	static void write(File tmpFile, byte[] header, byte[] product,
+			byte[] footer) throws IOException {
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			out.write(header);
+			out.write(product);
+			out.write(footer);
+		} finally {
+			out.close();
+		}
+	}
+
+
+	/**
+	 * SAX handler that copies the feed to the product files.
+	 */
+	class Splitter extends DefaultHandler2 {
+
+		final ExecutorService pool;
+		final File tmpDir;
+		final Semaphore inFlight = new Semaphore(numThreads * 2);
+		final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+		/**
+		 * Tasks writing product files by ISBN, pruned of those done so
+		 * only the few in flight are kept.
+		 */
+		final Map<String, Future<?>> writing
+			= new HashMap<String, Future<?>>();
+
+		/** Elements whose content model allows text. */
+		final Set<String> mixed = new HashSet<String>();
+
+		/** Per open element: whether it has child elements. */
+		final ArrayList<Boolean> hasChildren = new ArrayList<Boolean>();
+		final ArrayList<String> openElements = new ArrayList<String>();
+
+		final ByteArrayOutputStream headerBuf = new ByteArrayOutputStream();
+		final XMLStreamWriter header;
+		byte[] headerBytes;
+		byte[] footerBytes;
+
+		ByteArrayOutputStream productBuf;
+		XMLStreamWriter out;
+
+		String pendingName;
+		Attributes pendingAtts;
+
+		boolean inDtd = false;
+		int numProducts = 0;
+
+		// ISBN-13 of the current product
+		String isbn;
+		String idType;
+		StringBuilder text;
+
+		Splitter(ExecutorService pool, File tmpDir) throws SAXException {
+			this.pool = pool;
+			this.tmpDir = tmpDir;
+			try {
+				header = outputFactory.createXMLStreamWriter(headerBuf,
+					"UTF-8");
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+			out = header;
+		}
+
+		public void startDocument() throws SAXException {
+			try {
+				header.writeStartDocument("UTF-8", "1.0");
+				header.writeCharacters("\n");
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+		}
+
+		public void startDTD(String name, String publicId, String systemId)
+				throws SAXException {
+			inDtd = true;
+			StringBuilder dtd = new StringBuilder("<!DOCTYPE ").append(name);
+			if (publicId != null) {
+				dtd.append(" PUBLIC \"").append(publicId).append('"');
+			} else if (systemId != null) {
+				dtd.append(" SYSTEM");
+			}
+			if (systemId != null) {
+				dtd.append(" \"").append(systemId).append('"');
+			}
+			try {
+				header.writeDTD(dtd.append(">\n").toString());
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+		}
+
+		public void endDTD() {
+			inDtd = false;
+		}
+
+		public void elementDecl(String name, String model) {
+			if (model.indexOf("#PCDATA") != -1 || model.equals("ANY")) {
+				mixed.add(name);
+			}
+		}
+
+		public void startElement(String uri, String localName, String qName,
+				Attributes atts) throws SAXException {
+			int depth = openElements.size();
+			if (depth == 1) {
+				if (qName.equals(PRODUCT)) {
+					startProduct();
+				} else if (numProducts > 0) {
+					throw new SAXException(qName + " after " + PRODUCT
+						+ " in the root element isn't supported");
+				}
+			}
+			if (productBuf != null) {
+				if (depth == 2 && qName.equals("ProductIdentifier")) {
+					idType = null;
+				} else if (depth == 3) {
+					text = new StringBuilder();
+				}
+			}
+
+			try {
+				writePending(false);
+				if (depth > 0) {
+					hasChildren.set(depth - 1, true);
+					if (!isMixed(depth - 1)) {
+						indent(depth);
+					}
+				}
+				pendingName = qName;
+				pendingAtts = atts instanceof Attributes2
+					? specified((Attributes2) atts) : new AttributesImpl(atts);
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+			openElements.add(qName);
+			hasChildren.add(false);
+		}
+
+		public void endElement(String uri, String localName, String qName)
+				throws SAXException {
+			int depth = openElements.size() - 1;
+			try {
+				if (pendingName != null) {
+					writePending(true);
+				} else {
+					if (hasChildren.get(depth) && !isMixed(depth)) {
+						indent(depth);
+					}
+					out.writeEndElement();
+				}
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+			openElements.remove(depth);
+			hasChildren.remove(depth);
+
+			if (productBuf != null) {
+				if (depth == 3) {
+					if (qName.equals("ProductIDType")) {
+						idType = text.toString().trim();
+					} else if (qName.equals("IDValue") && isbn == null
+							&& ISBN13_TYPE.equals(idType)) {
+						isbn = text.toString().trim();
+					}
+					text = null;
+				} else if (depth == 1) {
+					endProduct();
+				}
+			}
+		}
+
+		public void characters(char[] ch, int start, int length)
+				throws SAXException {
+			if (openElements.isEmpty()) {
+				return;
+			}
+			if (text != null) {
+				text.append(ch, start, length);
+			}
+			try {
+				writePending(false);
+				out.writeCharacters(ch, start, length);
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+		}
+
+		public void ignorableWhitespace(char[] ch, int start, int length) {
+			// replaced by our own indentation
+		}
+
+		public void comment(char[] ch, int start, int length)
+				throws SAXException {
+			if (inDtd || (openElements.isEmpty() && header != out)) {
+				return;
+			}
+			try {
+				writePending(false);
+				if (openElements.isEmpty()) {
+					// Prolog, after the DOCTYPE
+					out.writeComment(new String(ch, start, length));
+					out.writeCharacters("\n");
+					return;
+				}
+				if (!isMixed(openElements.size() - 1)) {
+					indent(openElements.size());
+				}
+				out.writeComment(new String(ch, start, length));
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+		}
+
+		public void warning(SAXParseException e) {
+			log.warn(e.getSystemId() + " line " + e.getLineNumber() + ": "
+				+ e.getMessage());
+		}
+
+		public void error(SAXParseException e) throws SAXException {
+			throw e;
+		}
+
+		public void fatalError(SAXParseException e) throws SAXException {
+			throw e;
+		}
+
+		boolean isMixed(int depth) {
+			return mixed.contains(openElements.get(depth));
+		}
+
+		void indent(int depth) throws XMLStreamException {
+			StringBuilder buf = new StringBuilder("\n");
+			for (int i = 0; i < depth; i++) {
+				buf.append(INDENT);
+			}
+			out.writeCharacters(buf.toString());
+		}
+
+		/**
+		 * Write the start tag held back so childless elements can be
+		 * written as empty elements.
+		 */
+		void writePending(boolean empty) throws XMLStreamException {
+			if (pendingName == null) {
+				return;
+			}
+			if (empty) {
+				out.writeEmptyElement(pendingName);
+			} else {
+				out.writeStartElement(pendingName);
+			}
+			for (int i = 0; i < pendingAtts.getLength(); i++) {
+				out.writeAttribute(pendingAtts.getQName(i),
+					pendingAtts.getValue(i));
+			}
+			pendingName = null;
+			pendingAtts = null;
+		}
+
+		/**
+		 * Attributes that are in the document rather than defaulted from
+		 * the DTD. ONIX declares fixed refname and shortname attributes on
+		 * every element.
+		 */
+		Attributes specified(Attributes2 atts) {
+			AttributesImpl result = new AttributesImpl();
+			for (int i = 0; i < atts.getLength(); i++) {
+				if (atts.isSpecified(i)) {
+					result.addAttribute(atts.getURI(i), atts.getLocalName(i),
+						atts.getQName(i), atts.getType(i), atts.getValue(i));
+				}
+			}
+			return result;
+		}
+
+		void startProduct() throws SAXException {
+			try {
+				if (numProducts == 0) {
+					// close the root start tag
+					writePending(false);
+					header.writeCharacters("");
+					header.flush();
+					headerBytes = headerBuf.toByteArray();
+					footerBytes = ("\n</" + openElements.get(0) + ">\n")
+						.getBytes("UTF-8");
+				}
+				productBuf = new ByteArrayOutputStream();
+				out = outputFactory.createXMLStreamWriter(productBuf,
+					"UTF-8");
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			} catch (IOException e) {
+				throw new SAXException(e);
+			}
+			numProducts++;
+			isbn = null;
+		}
+
+		void endProduct() throws SAXException {
+			try {
+				out.flush();
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+			if (isbn == null || isbn.length() == 0) {
+				throw new SAXException(PRODUCT + " " + numProducts
+					+ " has no ISBN-13");
+			}
+			final File file = new File(prefix + isbn + SUFFIX);
+			final File tmpFile = new File(tmpDir, isbn);
+			final byte[] product = productBuf.toByteArray();
+			productBuf = null;
+			out = header;
+
+			try {
+				prune();
+				Future<?> previous = writing.get(isbn);
+				if (previous != null) {
+					// the same ISBN twice: the last one wins
+					previous.get();
+				} else if (file.exists() && !force) {
+					throw new SAXException(file + " already exists.");
+				}
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				throw new SAXException(e);
+			} catch (ExecutionException e) {
+				throw new SAXException("Can't write " + file, e);
+			}
+			writing.put(isbn, pool.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					try {
+						write(tmpFile, headerBytes, product, footerBytes);
+					} finally {
+						inFlight.release();
+					}
+					log.debug("Wrote " + file);
+					return null;
+				}
+			}));
+		}
+
+		/**
+		 * Forget the writes that are done, failing if one of them did.
+		 */
+		void prune() throws InterruptedException, ExecutionException {
+			Iterator<Future<?>> it = writing.values().iterator();
+			while (it.hasNext()) {
+				Future<?> future = it.next();
+				if (future.isDone()) {
+					future.get();
+					it.remove();
+				}
+			}
+		}
+
+		/**
+		 * Wait for every product file and move them all into place.
+		 */
+		void finish() throws IOException {
+			for (Map.Entry<String, Future<?>> entry : writing.entrySet()) {
+				try {
+					entry.getValue().get();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted writing "
+						+ entry.getKey());
+				} catch (ExecutionException e) {
+					throw new IOException("Can't write " + prefix
+						+ entry.getKey() + SUFFIX, e.getCause());
+				}
+			}
+			DirectoryStream<Path> tmpFiles
+				= Files.newDirectoryStream(tmpDir.toPath());
+			try {
+				for (Path tmpFile : tmpFiles) {
+					File file = new File(prefix + tmpFile.getFileName()
+						+ SUFFIX);
+					Files.move(tmpFile, file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				}
+			} finally {
+				tmpFiles.close();
+			}
+			Files.delete(tmpDir.toPath());
+		}
+
+		/**
+		 * Remove the temporary files of a feed that failed.
+		 */
+		void discard() {
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			File[] tmpFiles = tmpDir.listFiles();
+			if (tmpFiles != null) {
+				for (File tmpFile : tmpFiles) {
+					tmpFile.delete();
+				}
+			}
+			tmpDir.delete();
+		}
+	}
+
+}
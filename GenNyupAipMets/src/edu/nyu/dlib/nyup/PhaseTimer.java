@@ -0,0 +1,289 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Times the phases of METS generation for one AIP, or adds up the
+ * times of a whole batch.
+ *
+ * The phases are "scan" (sorting the version directory into file
+ * groups), "checksum", "mimetype", "validate" and "write". The last two
+ * are only timed separately by the MTK backend; the streaming backend
+ * validates while it writes, so that time ends up in "other" with
+ * building the document.
+ *
+ * Every phase is also recorded as a {@link MetsPhaseEvent} and every
+ * run as a {@link MetsAipEvent} for Java Flight Recorder. When a run or
+ * batch finishes a one line JSON summary is logged to the
+ * edu.nyu.dlib.nyup.timing logger at INFO and, if the nyup.timing
+ * system property names a file, appended to that file.
+ */
+public class PhaseTimer {
+
+	static final String[] PHASES = {
+		"scan", "checksum", "mimetype", "validate", "write"
+	};
+
+	static Logger log = Logger.getLogger("edu.nyu.dlib.nyup.timing");
+
+	static final String TIMING_FILE = System.getProperty("nyup.timing");
+
+	final String aipId;
+	final String aipVersion;
+	final long start = System.nanoTime();
+	final MetsAipEvent event = new MetsAipEvent();
+
+	/** Per phase: calls, nanoseconds, files, bytes hashed. */
+	final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+	/** Files per file group. */
+	final Map<String, Long> groups = new TreeMap<String, Long>();
+
+	long totalNanos = 0;
+	int numAips = 0;
+	int numFailed = 0;
+
+	/**
+	 * @param aipId
+	 *            AIP being timed, null for a batch
+	 */
+	public PhaseTimer(String aipId, String aipVersion) {
+		this.aipId = aipId;
+		this.aipVersion = aipVersion;
+		for (int i = 0; i < PHASES.length; i++) {
+			phases.put(PHASES[i], new long[4]);
+		}
+		event.begin();
+	}
+
+
+	/**
+	 * Start timing a phase. The returned handle must be ended once the
+	 * phase is done.
+	 */
+	public Phase start(String name) {
+		return new Phase(name);
+	}
+
+
+	/**
+	 * Record the number of files found in each file group.
+	 */
+	public void setGroups(Map<String, ArrayList<File>> fileGroups) {
+		for (Map.Entry<String, ArrayList<File>> entry
+				: fileGroups.entrySet()) {
+			groups.put(entry.getKey(), (long) entry.getValue().size());
+		}
+	}
+
+
+	/**
+	 * End the run of one AIP: record the AIP event and emit its summary.
+	 */
+	public void finish(String backend, boolean succeeded) {
+		totalNanos = System.nanoTime() - start;
+		numAips = 1;
+		numFailed = succeeded ? 0 : 1;
+
+		event.end();
+		event.aipId = aipId;
+		event.aipVersion = aipVersion;
+		event.backend = backend;
+		event.succeeded = succeeded;
+		event.files = getFiles();
+		event.bytes = getBytesHashed();
+		event.commit();
+
+		emit(toJson("aip", backend, totalNanos));
+	}
+
+
+	/**
+	 * Add a finished AIP run to this batch total.
+	 */
+	public synchronized void add(PhaseTimer other) {
+		for (Map.Entry<String, long[]> entry : other.phases.entrySet()) {
+			long[] sums = phases.get(entry.getKey());
+			for (int i = 0; i < sums.length; i++) {
+				sums[i] += entry.getValue()[i];
+			}
+		}
+		for (Map.Entry<String, Long> entry : other.groups.entrySet()) {
+			Long count = groups.get(entry.getKey());
+			groups.put(entry.getKey(), (count == null ? 0 : count)
+				+ entry.getValue());
+		}
+		totalNanos += other.totalNanos;
+		numAips += other.numAips;
+		numFailed += other.numFailed;
+	}
+
+
+	/**
+	 * Emit the batch summary. Throughput is worked out from wall clock
+	 * time; the phase times are summed over all threads.
+	 */
+	public synchronized void finishBatch() {
+		emit(toJson("batch", null, System.nanoTime() - start));
+	}
+
+
+	long getFiles() {
+		return phases.get("scan")[2];
+	}
+
+
+	long getBytesHashed() {
+		return phases.get("checksum")[3];
+	}
+
+
+	String toJson(String type, String backend, long wallNanos) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("{\"type\":").append(quote(type));
+		if (aipId != null) {
+			buf.append(",\"aip\":").append(quote(aipId));
+			buf.append(",\"version\":").append(quote(aipVersion));
+		}
+		if (backend != null) {
+			buf.append(",\"backend\":").append(quote(backend));
+		}
+		buf.append(",\"aips\":").append(numAips);
+		buf.append(",\"failed\":").append(numFailed);
+		buf.append(",\"ms\":").append(millis(wallNanos));
+		buf.append(",\"files\":").append(getFiles());
+		buf.append(",\"bytes_hashed\":").append(getBytesHashed());
+		buf.append(",\"mb_per_s\":")
+			.append(mbPerSecond(getBytesHashed(), wallNanos));
+
+		buf.append(",\"groups\":{");
+		String sep = "";
+		for (Map.Entry<String, Long> entry : groups.entrySet()) {
+			buf.append(sep).append(quote(entry.getKey())).append(':')
+				.append(entry.getValue());
+			sep = ",";
+		}
+
+		buf.append("},\"phases\":{");
+		long phaseNanos = 0;
+		for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+			long[] sums = entry.getValue();
+			buf.append(quote(entry.getKey()))
+				.append(":{\"calls\":").append(sums[0])
+				.append(",\"ms\":").append(millis(sums[1]))
+				.append(",\"files\":").append(sums[2])
+				.append(",\"bytes\":").append(sums[3])
+				.append(",\"mb_per_s\":")
+				.append(mbPerSecond(sums[3], sums[1]))
+				.append("},");
+			phaseNanos += sums[1];
+		}
+		buf.append("\"other\":{\"ms\":")
+			.append(millis(Math.max(0, totalNanos - phaseNanos)))
+			.append("}}}");
+		return buf.toString();
+	}
+
+
+	static String millis(long nanos) {
+		return String.valueOf(nanos / 1000 / 1000.0);
+	}
+
+
+	static String mbPerSecond(long bytes, long nanos) {
+		if (nanos == 0) {
+			return "0";
+		}
+		double mb = bytes / (1024.0 * 1024.0);
+		return String.valueOf(Math.round(mb / (nanos / 1e9) * 10) / 10.0);
+	}
+
+
+	static String quote(String s) {
+		StringBuilder buf = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				buf.append('\\').append(c);
+			} else if (c < 0x20) {
+				buf.append(String.format("\\u%04x", (int) c));
+			} else {
+				buf.append(c);
+			}
+		}
+		return buf.append('"').toString();
+	}
+
+
+	static synchronized void emit(String json) {
+		log.info(json);
+		if (TIMING_FILE == null) {
+			return;
+		}
+		try {
+			Writer out = new OutputStreamWriter(
+				new FileOutputStream(TIMING_FILE, true), "UTF-8");
+			try {
+				out.write(json + "\n");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			log.warn("Can't write timing file " + TIMING_FILE + ": " + e);
+		}
+	}
+
+
+	/**
+	 * One timed run of a phase.
+	 */
+	public class Phase {
+
+		final String name;
+		final long phaseStart = System.nanoTime();
+		final MetsPhaseEvent event = new MetsPhaseEvent();
+
+		Phase(String name) {
+			this.name = name;
+			event.begin();
+		}
+
+		public void end() {
+			end(0, 0);
+		}
+
+		/**
+		 * @param files
+		 *            files handled in this phase
+		 * @param bytes
+		 *            bytes read from storage for hashing
+		 */
+		public void end(long files, long bytes) {
+			long[] sums = phases.get(name);
+			sums[0]++;
+			sums[1] += System.nanoTime() - phaseStart;
+			sums[2] += files;
+			sums[3] += bytes;
+
+			event.end();
+			if (event.shouldCommit()) {
+				event.aipId = aipId;
+				event.aipVersion = aipVersion;
+				event.phase = name;
+				event.files = files;
+				event.bytes = bytes;
+				event.commit();
+			}
+		}
+	}
+
+}
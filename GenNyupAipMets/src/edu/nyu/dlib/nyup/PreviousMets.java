@@ -0,0 +1,164 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Checksums from the METS of an earlier version of an AIP, so only new
+ * or changed files have to be hashed when a new version is generated.
+ *
+ * The SHA-1 of every file and mdRef is read from the previous METS
+ * along with its href, e.g. files/v0001/data/ePub/1234.epub. A file of
+ * the new version reuses the checksum of the file at the same path
+ * below the previous version directory if that file still exists, has
+ * the same size and modification time as the new one and was last
+ * modified before the previous METS was written. Anything else is
+ * hashed as usual, so the output is the same as a full regeneration.
+ */
+public class PreviousMets {
+
+	static Logger log = Logger.getLogger(PreviousMets.class);
+
+	static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	/** Path below the version directory to { href, checksum }. */
+	private final Map<String, String[]> entries
+		= new HashMap<String, String[]>();
+
+	/** Path below the version directory to the checksum, or "". */
+	private final Map<String, String> decided
+		= new ConcurrentHashMap<String, String>();
+
+	private final File metsFile;
+	private final File aipDir;
+	private final long metsModified;
+
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong hashed = new AtomicLong();
+
+	/**
+	 * @param metsFile
+	 *            METS of the previous version
+	 * @param aipDir
+	 *            AIP root directory the METS hrefs are relative to
+	 */
+	public PreviousMets(File metsFile, File aipDir) throws IOException {
+		this.metsFile = metsFile;
+		this.aipDir = aipDir;
+		this.metsModified = metsFile.lastModified();
+		InputStream in = new FileInputStream(metsFile);
+		try {
+			load(in);
+		} catch (XMLStreamException e) {
+			throw new IOException("Can't read " + metsFile + ": " + e, e);
+		} finally {
+			in.close();
+		}
+		log.debug("Read " + entries.size() + " checksums from " + metsFile);
+	}
+
+	void load(InputStream in) throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			String fileChecksum = null;
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamReader.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getLocalName();
+				if (name.equals("file")) {
+					fileChecksum = sha1(reader);
+				} else if (name.equals("FLocat")) {
+					add(reader.getAttributeValue(XLINK_NS, "href"),
+						fileChecksum);
+					fileChecksum = null;
+				} else if (name.equals("mdRef")) {
+					add(reader.getAttributeValue(XLINK_NS, "href"),
+						sha1(reader));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	static String sha1(XMLStreamReader reader) {
+		if (!"SHA-1".equals(reader.getAttributeValue(null, "CHECKSUMTYPE"))) {
+			return null;
+		}
+		return reader.getAttributeValue(null, "CHECKSUM");
+	}
+
+	void add(String href, String checksum) {
+		if (href == null || checksum == null) {
+			return;
+		}
+		// files/<version>/<path>
+		String[] parts = href.split("/", 3);
+		if (parts.length == 3 && parts[0].equals("files")) {
+			entries.put(parts[2], new String[] { href, checksum });
+		}
+	}
+
+	/**
+	 * SHA-1 of a file of the new version from the previous METS, or
+	 * null if it has to be hashed. The answer for a path doesn't change
+	 * once given.
+	 *
+	 * @param file
+	 *            file of the new version
+	 * @param path
+	 *            path of the file below its version directory
+	 */
+	public String getChecksum(File file, String path) {
+		String checksum = decided.get(path);
+		if (checksum == null) {
+			checksum = check(file, path);
+			String old = decided.putIfAbsent(path, checksum);
+			if (old != null) {
+				checksum = old;
+			} else if (checksum.length() > 0) {
+				reused.incrementAndGet();
+			} else {
+				hashed.incrementAndGet();
+			}
+		}
+		return checksum.length() > 0 ? checksum : null;
+	}
+
+	String check(File file, String path) {
+		String[] entry = entries.get(path);
+		if (entry != null) {
+			File oldFile = new File(aipDir, entry[0]);
+			long modified = oldFile.lastModified();
+			if (modified != 0 && modified < metsModified
+					&& oldFile.length() == file.length()
+					&& modified == file.lastModified()) {
+				return entry[1];
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * One line summary of the files looked up so far.
+	 */
+	public String report() {
+		return "Previous METS " + metsFile + ": " + reused
+			+ " checksums reused, " + hashed + " files hashed";
+	}
+
+}
@@ -0,0 +1,238 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.catalog.Catalog;
+import javax.xml.catalog.CatalogFeatures;
+import javax.xml.catalog.CatalogManager;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Compiled XML schemas shared by every document validated in the JVM.
+ *
+ * A schema is compiled the first time it is asked for and the same
+ * thread-safe {@link Schema} is handed out afterwards, so a batch run
+ * compiles METS once instead of once per AIP.
+ *
+ * Schema locations, including those of imported and included schemas,
+ * are looked up in an OASIS XML catalog (conf/schema-catalog.xml, or
+ * the nyup.schema.catalog system property) that maps them to local
+ * copies; "ant fetch-schemas" downloads those. A schema without a local
+ * copy is fetched from its URL with a warning or, if the
+ * nyup.schema.offline system property is set, not at all. DTDs are
+ * resolved the same way by {@link #getEntityResolver}, and split-onix.pl
+ * validates ONIX against the same catalog.
+ */
+public class SchemaRegistry {
+
+	public static final String METS
+		= "http://www.loc.gov/standards/mets/mets.xsd";
+
+	public static final String MODS
+		= "http://www.loc.gov/standards/mods/v3/mods-3-4.xsd";
+
+	public static final String PREMIS
+		= "http://www.loc.gov/standards/premis/v2/premis-v2-2.xsd";
+
+	public static final String ONIX
+		= "http://www.editeur.org/onix/2.1/reference/onix-international.xsd";
+
+	static final String CATALOG_FILE = "conf/schema-catalog.xml";
+
+	static Logger log = Logger.getLogger(SchemaRegistry.class);
+
+	private static SchemaRegistry defaultRegistry;
+
+	private final Catalog catalog;
+	private final boolean offline;
+	private final Map<String, Schema> schemas = new HashMap<String, Schema>();
+
+	/**
+	 * @param catalogFile
+	 *            OASIS XML catalog of local schema copies, or null
+	 * @param offline
+	 *            fail instead of fetching schemas without a local copy
+	 */
+	public SchemaRegistry(File catalogFile, boolean offline) {
+		this.offline = offline;
+		if (catalogFile != null && catalogFile.isFile()) {
+			CatalogFeatures features = CatalogFeatures.builder()
+				.with(CatalogFeatures.Feature.RESOLVE, "continue").build();
+			catalog = CatalogManager.catalog(features, catalogFile.toURI());
+			log.debug("Using schema catalog " + catalogFile);
+		} else {
+			catalog = null;
+			log.warn("Schema catalog " + catalogFile + " not found");
+		}
+	}
+
+	/**
+	 * Return the registry configured with the nyup.schema.catalog and
+	 * nyup.schema.offline system properties. The same instance is
+	 * returned for every caller in the JVM.
+	 */
+	public static synchronized SchemaRegistry getDefault() {
+		if (defaultRegistry == null) {
+			String path = System.getProperty("nyup.schema.catalog");
+			File catalogFile = path != null && path.length() > 0
+				? new File(path) : defaultCatalogFile();
+			defaultRegistry = new SchemaRegistry(catalogFile,
+				Boolean.getBoolean("nyup.schema.offline"));
+		}
+		return defaultRegistry;
+	}
+
+	/**
+	 * conf/schema-catalog.xml of the GenNyupAipMets directory this class
+	 * was loaded from, i.e. the parent of bin or of lib/gennyupaipmets.jar.
+	 */
+	static File defaultCatalogFile() {
+		try {
+			File location = new File(SchemaRegistry.class
+				.getProtectionDomain().getCodeSource().getLocation().toURI());
+			File baseDir = location.isFile()
+				? location.getParentFile().getParentFile()
+				: location.getParentFile();
+			return new File(baseDir, CATALOG_FILE);
+		} catch (Exception e) {
+			return new File(CATALOG_FILE);
+		}
+	}
+
+	/**
+	 * The compiled schema at a URL, e.g. {@link #METS}.
+	 */
+	public synchronized Schema getSchema(String url)
+			throws SAXException, IOException {
+		Schema schema = schemas.get(url);
+		if (schema == null) {
+			long start = System.currentTimeMillis();
+			SchemaFactory factory = SchemaFactory
+				.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+			factory.setResourceResolver(new Resolver());
+			if (offline) {
+				factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA,
+					"file,jar");
+			}
+			schema = factory.newSchema(new StreamSource(locate(url)));
+			schemas.put(url, schema);
+			log.debug("Compiled " + url + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		}
+		return schema;
+	}
+
+	/**
+	 * Entity resolver pointing DTDs, such as the ONIX DTD, at their local
+	 * copies.
+	 */
+	public EntityResolver getEntityResolver() {
+		return new EntityResolver() {
+			public InputSource resolveEntity(String publicId, String systemId)
+					throws IOException {
+				String local = lookup(systemId);
+				if (local != null) {
+					InputSource source = new InputSource(local);
+					source.setPublicId(publicId);
+					return source;
+				}
+				if (systemId != null && !systemId.startsWith("file:")) {
+					if (offline) {
+						throw new IOException("No local copy of " + systemId
+							+ " in the schema catalog");
+					}
+					log.warn("No local copy of " + systemId + ", fetching it");
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Local copy of a schema from the catalog, or the URL itself.
+	 */
+	String locate(String url) throws IOException {
+		String local = lookup(url);
+		if (local != null) {
+			return local;
+		}
+		if (offline) {
+			throw new IOException("No local copy of " + url
+				+ " in the schema catalog");
+		}
+		log.warn("No local copy of " + url + ", fetching it");
+		return url;
+	}
+
+	String lookup(String systemId) {
+		if (catalog == null || systemId == null) {
+			return null;
+		}
+		String local = catalog.matchSystem(systemId);
+		if (local == null) {
+			local = catalog.matchURI(systemId);
+		}
+		if (local == null || !new File(URI.create(local)).isFile()) {
+			return null;
+		}
+		return local;
+	}
+
+	/**
+	 * Points imports and includes at their local copies.
+	 */
+	class Resolver implements LSResourceResolver {
+
+		private DOMImplementationLS ls;
+
+		public LSInput resolveResource(String type, String namespaceURI,
+				String publicId, String systemId, String baseURI) {
+			if (systemId == null) {
+				return null;
+			}
+			String absolute = baseURI == null ? systemId
+				: URI.create(baseURI).resolve(systemId).toString();
+			String local = lookup(absolute);
+			if (local == null) {
+				if (!absolute.startsWith("file:")) {
+					log.warn("No local copy of " + absolute);
+				}
+				return null;
+			}
+			LSInput input = getDOMImplementationLS().createLSInput();
+			input.setPublicId(publicId);
+			input.setSystemId(local);
+			input.setBaseURI(baseURI);
+			return input;
+		}
+
+		DOMImplementationLS getDOMImplementationLS() {
+			if (ls == null) {
+				try {
+					ls = (DOMImplementationLS) DocumentBuilderFactory
+						.newInstance().newDocumentBuilder()
+						.getDOMImplementation();
+				} catch (ParserConfigurationException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return ls;
+		}
+	}
+
+}
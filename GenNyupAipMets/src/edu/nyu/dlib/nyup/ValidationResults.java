@@ -0,0 +1,128 @@
+package edu.nyu.dlib.nyup;
+
+import org.apache.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only view of the PDF/A validation cache written by PdfaValidator,
+ * so the METS generator can tell whether the PDF/A files it lists were
+ * validated without running Preflight again.
+ *
+ * Files are looked up by SHA-256, which the generator has already
+ * computed. If a file was validated by more than one validator version
+ * the most recent result is used.
+ */
+public class ValidationResults {
+
+	public static final String PASS = "PASS";
+
+	static Logger log = Logger.getLogger(ValidationResults.class);
+
+	private static final Map<String, ValidationResults> openResults
+		= new HashMap<String, ValidationResults>();
+
+	/** sha256 to { status, category, date }. */
+	private final Map<String, String[]> results
+		= new HashMap<String, String[]>();
+
+	private final File cacheFile;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ValidationResults(File cacheFile) throws IOException {
+		this.cacheFile = cacheFile;
+		if (cacheFile.exists()) {
+			load();
+		}
+		log.debug("Loaded " + results.size() + " validation results from "
+			+ cacheFile);
+	}
+
+	/**
+	 * Return the results named by the nyup.validation.cache system
+	 * property, or null if none is set. The same instance is returned
+	 * for every caller in the JVM.
+	 */
+	public static ValidationResults getDefault() throws IOException {
+		String path = System.getProperty("nyup.validation.cache");
+		if (path == null || path.length() == 0) {
+			return null;
+		}
+		synchronized (openResults) {
+			ValidationResults results = openResults.get(path);
+			if (results == null) {
+				results = new ValidationResults(new File(path));
+				openResults.put(path, results);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Validation status (PASS, FAIL) of the file with this SHA-256, or
+	 * null if it was never validated.
+	 */
+	public String getStatus(String sha256) {
+		String[] result = results.get(sha256);
+		if (result == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return result[0];
+	}
+
+	/**
+	 * One line summary of lookups so far.
+	 */
+	public String report() {
+		long total = hits.get() + misses.get();
+		return "Validation cache " + cacheFile + ": " + hits + " hits, "
+			+ misses + " misses, hit rate "
+			+ (total == 0 ? 0 : Math.round(100.0 * hits.get() / total)) + "%";
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(cacheFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				// sha256, version, status, category, millis, date, errors
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 7) {
+					log.warn("Skipping malformed validation cache line: "
+						+ line);
+					continue;
+				}
+				String[] old = results.get(fields[0]);
+				if (old == null || old[2].compareTo(fields[5]) < 0) {
+					results.put(fields[0],
+						new String[] { fields[2], fields[3], fields[5] });
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
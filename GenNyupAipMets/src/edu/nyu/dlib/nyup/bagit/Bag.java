@@ -0,0 +1,437 @@
+package edu.nyu.dlib.nyup.bagit;
+
+import edu.nyu.dlib.nyup.AipFileScanner;
+import edu.nyu.dlib.nyup.ChecksumCache;
+import edu.nyu.dlib.nyup.ChecksumEngine;
+import edu.nyu.dlib.nyup.FileDigests;
+import org.apache.log4j.Logger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes and verifies BagIt bags without external tools.
+ *
+ * {@link #update} hashes every payload file once, in parallel and with
+ * all algorithms at the same time, then writes the payload manifests,
+ * the Payload-Oxum in bag-info.txt and the tag manifests.
+ * {@link #verify} checks a bag against its manifests. In fast mode it
+ * only compares the Payload-Oxum and the file list with the manifests
+ * and never reads the payload. With a persistent checksum cache set up
+ * only files that changed are actually read.
+ *
+ * Payload files are listed and named by the path they have below the
+ * bag directory, so a symbolic link gets a manifest entry of its own
+ * with the checksums of the file it points to.
+ *
+ * Checksums go through a {@link ChecksumEngine}, which can be shared
+ * with the METS generator so payload files are hashed only once.
+ */
+public class Bag {
+
+	static final String[] DEFAULT_ALGORITHMS = { "md5", "sha1", "sha256" };
+
+	static final String BAGIT_TXT = "bagit.txt";
+	static final String BAG_INFO_TXT = "bag-info.txt";
+	static final String PAYLOAD_OXUM = "Payload-Oxum";
+
+	static Logger log = Logger.getLogger(Bag.class);
+
+	private final File bagDir;
+	private final File dataDir;
+
+	private ChecksumEngine checksumEngine = new ChecksumEngine();
+
+	public static void main(String[] args) {
+		boolean fast = false;
+		int i = 0;
+		String command = args.length > 0 ? args[i++] : "";
+		if (i < args.length && args[i].equals("-fast")) {
+			fast = true;
+			i++;
+		}
+
+		if (i != args.length - 1
+				|| !(command.equals("update") || command.equals("verify"))
+				|| (fast && !command.equals("verify"))) {
+			System.err.println("Usage: java edu.nyu.dlib.nyup.bagit.Bag update <bag directory>");
+			System.err.println("       java edu.nyu.dlib.nyup.bagit.Bag verify [-fast] <bag directory>");
+			System.exit(1);
+		}
+
+		try {
+			Bag bag = new Bag(new File(args[i]));
+			int status = 0;
+			if (command.equals("update")) {
+				bag.update(DEFAULT_ALGORITHMS);
+			} else {
+				List<String> problems = bag.verify(fast);
+				for (String problem : problems) {
+					System.err.println(problem);
+				}
+				status = problems.isEmpty() ? 0 : 1;
+			}
+			ChecksumCache cache = ChecksumCache.getDefault();
+			if (cache != null) {
+				cache.save();
+			}
+			System.exit(status);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+
+	public Bag(File bagDir) {
+		this.bagDir = bagDir;
+		this.dataDir = new File(bagDir, "data");
+	}
+
+
+	/**
+	 * Use a shared checksum engine, e.g. the one of a METS generator.
+	 */
+	public void setChecksumEngine(ChecksumEngine checksumEngine) {
+		this.checksumEngine = checksumEngine;
+	}
+
+
+	public ChecksumEngine getChecksumEngine() {
+		return checksumEngine;
+	}
+
+
+	/**
+	 * Write bagit.txt if it's missing, the payload manifests for the
+	 * given algorithms, the Payload-Oxum and the tag manifests.
+	 *
+	 * @param algorithms
+	 *            manifest algorithms, any of "md5", "sha1" and "sha256"
+	 */
+	public void update(String[] algorithms) throws Exception {
+		long start = System.currentTimeMillis();
+
+		File bagitTxt = new File(bagDir, BAGIT_TXT);
+		if (!bagitTxt.exists()) {
+			writeLines(bagitTxt, new String[] {
+				"BagIt-Version: 0.97",
+				"Tag-File-Character-Encoding: UTF-8"
+			});
+		}
+
+		List<File> payload = listPayload();
+		Map<File, FileDigests> digests = hashAll(payload);
+
+		long totalSize = 0;
+		for (FileDigests d : digests.values()) {
+			totalSize += d.getSize();
+		}
+
+		ArrayList<File> tagFiles = new ArrayList<File>();
+		tagFiles.add(bagitTxt);
+		for (String algorithm : algorithms) {
+			File manifest = new File(bagDir, "manifest-" + algorithm + ".txt");
+			writeManifest(algorithm, manifest, digests);
+			tagFiles.add(manifest);
+		}
+
+		File bagInfo = new File(bagDir, BAG_INFO_TXT);
+		setBagInfo(bagInfo, PAYLOAD_OXUM, totalSize + "." + payload.size());
+		tagFiles.add(bagInfo);
+
+		for (String algorithm : algorithms) {
+			writeTagManifest(algorithm, tagFiles);
+		}
+
+		log.info("Updated " + bagDir + ": " + payload.size() + " files, "
+			+ totalSize + " bytes in "
+			+ (System.currentTimeMillis() - start) / 1000.0 + "s");
+	}
+
+
+	/**
+	 * Check the bag against its manifests.
+	 *
+	 * @param fast
+	 *            only check the Payload-Oxum and the payload file list
+	 *            against the manifests, without hashing; the payload is
+	 *            hashed anyway if bag-info.txt has no Payload-Oxum
+	 * @return problems found, empty if the bag is valid
+	 */
+	public List<String> verify(boolean fast) throws Exception {
+		ArrayList<String> problems = new ArrayList<String>();
+
+		if (!new File(bagDir, BAGIT_TXT).isFile()) {
+			problems.add(bagDir + ": " + BAGIT_TXT + " is missing");
+		}
+
+		Map<String, Map<String, String>> manifests = readManifests("manifest-");
+		if (manifests.isEmpty()) {
+			problems.add(bagDir + ": no payload manifest");
+			return problems;
+		}
+
+		List<File> payload = listPayload();
+		TreeMap<String, File> onDisk = new TreeMap<String, File>();
+		long totalSize = 0;
+		for (File file : payload) {
+			onDisk.put(relPath(file), file);
+			totalSize += file.length();
+		}
+		String oxum = totalSize + "." + payload.size();
+		String declaredOxum = getBagInfo(new File(bagDir, BAG_INFO_TXT),
+			PAYLOAD_OXUM);
+
+		if (declaredOxum != null && !declaredOxum.equals(oxum)) {
+			problems.add(bagDir + ": " + PAYLOAD_OXUM + " is " + declaredOxum
+				+ " but the payload has " + oxum);
+		}
+		if (fast && declaredOxum != null) {
+			checkFileList(manifests, onDisk, problems);
+			log.info(bagDir + ": " + (problems.isEmpty() ? "valid" : "invalid")
+				+ " by " + PAYLOAD_OXUM + " and file list, checksums skipped");
+			return problems;
+		}
+
+		Map<File, FileDigests> digests
+			= hashAll(new ArrayList<File>(onDisk.values()));
+		checkManifests(manifests, onDisk, digests, problems);
+
+		TreeMap<String, File> tagFiles = new TreeMap<String, File>();
+		Map<String, Map<String, String>> tagManifests
+			= readManifests("tagmanifest-");
+		for (Map<String, String> manifest : tagManifests.values()) {
+			for (String path : manifest.keySet()) {
+				File file = new File(bagDir, path);
+				if (file.exists()) {
+					tagFiles.put(path, file);
+				}
+			}
+		}
+		TreeMap<File, FileDigests> tagDigests = new TreeMap<File, FileDigests>();
+		for (File file : tagFiles.values()) {
+			tagDigests.put(file, ChecksumEngine.hash(file));
+		}
+		checkManifests(tagManifests, tagFiles, tagDigests, problems);
+
+		log.info(bagDir + ": " + (problems.isEmpty() ? "valid" : "invalid"));
+		return problems;
+	}
+
+
+	void checkManifests(Map<String, Map<String, String>> manifests,
+			Map<String, File> files, Map<File, FileDigests> digests,
+			List<String> problems) {
+		for (Map.Entry<String, Map<String, String>> manifest
+				: manifests.entrySet()) {
+			String algorithm = manifest.getKey();
+			for (Map.Entry<String, String> entry
+					: manifest.getValue().entrySet()) {
+				String path = entry.getKey();
+				File file = files.get(path);
+				if (file != null && !digests.get(file).get(algorithm)
+						.equalsIgnoreCase(entry.getValue())) {
+					problems.add(path + " has the wrong " + algorithm
+						+ " checksum");
+				}
+			}
+		}
+		checkFileList(manifests, files, problems);
+	}
+
+
+	/**
+	 * Report files listed in a manifest but missing and files present
+	 * but not listed.
+	 */
+	void checkFileList(Map<String, Map<String, String>> manifests,
+			Map<String, File> files, List<String> problems) {
+		for (Map.Entry<String, Map<String, String>> manifest
+				: manifests.entrySet()) {
+			String algorithm = manifest.getKey();
+			for (String path : manifest.getValue().keySet()) {
+				if (!files.containsKey(path)) {
+					problems.add(path + " is missing");
+				}
+			}
+			for (String path : files.keySet()) {
+				if (!manifest.getValue().containsKey(path)) {
+					problems.add(path + " isn't in the " + algorithm
+						+ " manifest");
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * All regular files below data/, sorted.
+	 */
+	List<File> listPayload() throws IOException {
+		AipFileScanner scanner = new AipFileScanner();
+		// An empty regex matches every file.
+		scanner.addGroup("PAYLOAD", dataDir, "");
+		return scanner.scan(dataDir).get("PAYLOAD");
+	}
+
+
+	/**
+	 * Hash files on the checksum engine's shared pool of
+	 * nyup.hash.threads threads.
+	 */
+	Map<File, FileDigests> hashAll(List<File> files) throws Exception {
+		if (checksumEngine.getCache() == null) {
+			checksumEngine.setCache(ChecksumCache.getDefault());
+		}
+		return checksumEngine.digestAll(files);
+	}
+
+
+	/**
+	 * Write a payload manifest ("checksum  path" per line) with one
+	 * line per payload file, named by its path below the bag directory.
+	 */
+	void writeManifest(String algorithm, File manifest,
+			Map<File, FileDigests> digests) throws IOException {
+		TreeMap<String, String> lines = new TreeMap<String, String>();
+		for (Map.Entry<File, FileDigests> entry : digests.entrySet()) {
+			lines.put(relPath(entry.getKey()),
+				entry.getValue().get(algorithm));
+		}
+		ArrayList<String> out = new ArrayList<String>();
+		for (Map.Entry<String, String> line : lines.entrySet()) {
+			out.add(line.getValue() + "  " + line.getKey());
+		}
+		writeLines(manifest, out.toArray(new String[out.size()]));
+		log.debug("Wrote " + out.size() + " entries to " + manifest);
+	}
+
+
+	void writeTagManifest(String algorithm, List<File> tagFiles)
+			throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (File file : tagFiles) {
+			lines.add(ChecksumEngine.hash(file).get(algorithm) + "  "
+				+ file.getName());
+		}
+		writeLines(new File(bagDir, "tagmanifest-" + algorithm + ".txt"),
+			lines.toArray(new String[lines.size()]));
+	}
+
+
+	/**
+	 * Read every manifest whose name starts with prefix.
+	 *
+	 * @return manifest entries (path to checksum) by algorithm
+	 */
+	Map<String, Map<String, String>> readManifests(String prefix)
+			throws IOException {
+		TreeMap<String, Map<String, String>> manifests
+			= new TreeMap<String, Map<String, String>>();
+		File[] files = bagDir.listFiles();
+		if (files == null) {
+			throw new IOException(bagDir + " isn't a directory");
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(prefix) || !name.endsWith(".txt")) {
+				continue;
+			}
+			String algorithm = name.substring(prefix.length(),
+				name.length() - ".txt".length());
+			TreeMap<String, String> entries = new TreeMap<String, String>();
+			for (String line : readLines(file)) {
+				int sep = line.indexOf(' ');
+				if (sep == -1) {
+					continue;
+				}
+				entries.put(line.substring(sep).trim().replaceFirst("^\\*", ""),
+					line.substring(0, sep));
+			}
+			manifests.put(algorithm, entries);
+		}
+		return manifests;
+	}
+
+
+	String relPath(File file) {
+		return file.getPath().substring(bagDir.getPath().length() + 1);
+	}
+
+
+	/**
+	 * Return the value of a bag-info.txt label, or null if it isn't set.
+	 */
+	static String getBagInfo(File bagInfo, String label) throws IOException {
+		if (!bagInfo.exists()) {
+			return null;
+		}
+		for (String line : readLines(bagInfo)) {
+			if (line.startsWith(label + ":")) {
+				return line.substring(label.length() + 1).trim();
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Set a bag-info.txt label, replacing any earlier value and keeping
+	 * the other lines.
+	 */
+	static void setBagInfo(File bagInfo, String label, String value)
+			throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		if (bagInfo.exists()) {
+			for (String line : readLines(bagInfo)) {
+				if (!line.startsWith(label + ":")) {
+					lines.add(line);
+				}
+			}
+		}
+		lines.add(label + ": " + value);
+		writeLines(bagInfo, lines.toArray(new String[lines.size()]));
+	}
+
+
+	static List<String> readLines(File file) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() > 0) {
+					lines.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+
+	static void writeLines(File file, String[] lines) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(file), "UTF-8"));
+		try {
+			for (String line : lines) {
+				out.print(line + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+
+
+/**
+ * Saves a document as an incremental update: the original bytes are
+ * kept as they are and only the objects marked with setNeedToBeUpdate
+ * are appended, together with a new xref section and trailer.
+ *
+ * Some files can't safely be updated that way, in which case
+ * {@link #whyNot} gives the reason and the caller does a full rewrite.
+ */
+public class IncrementalSave
+{
+
+	/** How much of the end of the file to search for startxref. */
+	static final int TAIL_SIZE = 2048;
+
+	static final Pattern STARTXREF
+	    = Pattern.compile("startxref\\s+(\\d+)\\s+%%EOF\\s*$");
+
+	static final Pattern XREF_STREAM = Pattern.compile("^\\d+\\s+\\d+\\s+obj");
+
+	/**
+	 * Return why inputFile can't be saved incrementally, or null if it
+	 * can.
+	 */
+	static String whyNot(PDDocument doc, File inputFile) throws Exception
+	{
+		if (doc.isEncrypted())
+		{
+			return "document is encrypted";
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(inputFile, "r");
+		try
+		{
+			long length = raf.length();
+			int tailSize = (int) Math.min(length, TAIL_SIZE);
+			byte[] tail = new byte[tailSize];
+			raf.seek(length - tailSize);
+			raf.readFully(tail);
+
+			Matcher m = STARTXREF.matcher(
+			    new String(tail, StandardCharsets.ISO_8859_1));
+			if (!m.find())
+			{
+				return "no startxref/%%EOF at end of file";
+			}
+
+			long offset = Long.parseLong(m.group(1));
+			if (offset >= length)
+			{
+				return "startxref points past end of file";
+			}
+			byte[] head = new byte[32];
+			raf.seek(offset);
+			int n = raf.read(head);
+			String xref = new String(head, 0, Math.max(n, 0),
+			                         StandardCharsets.ISO_8859_1);
+			if (XREF_STREAM.matcher(xref).find())
+			{
+				// An xref table appended to a file with xref streams
+				// makes a hybrid file, which PDF/A-1 doesn't allow.
+				return "file uses cross-reference streams";
+			}
+			if (!xref.startsWith("xref"))
+			{
+				return "startxref doesn't point at an xref section";
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		// PDF/A needs a file ID. A full save adds one, an update
+		// would keep the trailer without it.
+		if (isPdfA(doc) && doc.getDocument().getTrailer()
+		    .getDictionaryObject(COSName.getPDFName("ID")) == null)
+		{
+			return "PDF/A file has no ID";
+		}
+
+		return null;
+	}
+
+	static boolean isPdfA(PDDocument doc) throws Exception
+	{
+		PDMetadata meta = doc.getDocumentCatalog().getMetadata();
+		if (meta == null)
+		{
+			return false;
+		}
+		InputStream in = meta.createInputStream();
+		try
+		{
+			byte[] buf = new byte[8192];
+			StringBuilder sb = new StringBuilder();
+			int n;
+			while ((n = in.read(buf)) != -1)
+			{
+				sb.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+			}
+			return sb.indexOf("pdfaid:part") != -1;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the original file followed by an incremental update to
+	 * outputFile.
+	 */
+	static void save(PDDocument doc, File inputFile, File outputFile)
+	    throws Exception
+	{
+		FileInputStream in = new FileInputStream(inputFile);
+		OutputStream out = new FileOutputStream(outputFile);
+		try
+		{
+			doc.saveIncremental(in, out);
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+import org.apache.jempbox.xmp.XMPMetadata;
+import org.apache.jempbox.xmp.XMPSchemaBasic;
+import org.apache.jempbox.xmp.XMPSchemaDublinCore;
+import org.apache.jempbox.xmp.XMPSchemaPDF;
+import org.apache.pdfbox.tools.Version;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+
+
+/**
+ * Brings the Info dictionary in line with the XMP metadata (creator
+ * tool, keywords, author and title) and trims the dc:creator and
+ * dc:title values, as PDF/A requires the two to agree.
+ */
+public class MetadataSyncFixer implements PdfFixer
+{
+
+	public String getName()
+	{
+		return "metadata";
+	}
+
+	public int fix(PDDocument doc) throws Exception
+	{
+		int changes = 0;
+
+		PDMetadata meta = doc.getDocumentCatalog().getMetadata();
+		byte[] xmp = FixPdf.readXmp(meta);
+		XMPMetadata metadata = meta.exportXMPMetadata();
+		XMPSchemaBasic basic = metadata.getBasicSchema();
+		XMPSchemaDublinCore dc = metadata.getDublinCoreSchema();
+		XMPSchemaPDF pdf = metadata.getPDFSchema();
+
+		PDDocumentInformation info = doc.getDocumentInformation();
+
+		String pdfBoxVersion = "PDFBox " + Version.getVersion();
+
+		String creatorTool = basic.getCreatorTool();
+		if (creatorTool != null && !creatorTool.equals(info.getCreator()))
+		{
+			info.setCreator(creatorTool);
+			changes++;
+		}
+
+		String pdfKeywords = pdf.getKeywords();
+		String dictKeywords = info.getKeywords();
+		System.err.println("pdf keywords: " + pdfKeywords);
+		System.err.println("dict keywords: " + dictKeywords);
+		if (pdfKeywords != null && !pdfKeywords.equals(dictKeywords))
+		{
+			info.setKeywords(pdfKeywords);
+			changes++;
+		}
+
+		if (dc.getCreators() == null)
+		{
+			System.err.println("Adding missing dc.creator...");
+			dc.addCreator(pdfBoxVersion);
+			changes++;
+		}
+
+		String author = info.getAuthor();
+		String creator = dc.getCreators().get(0);
+		System.err.println("Author: [" + author + "]");
+		System.err.println("Creator: [" + creator + "]");
+
+		dc.removeCreator(creator);
+		String trimmed = creator.trim();
+		dc.addCreator(trimmed);
+		if (!trimmed.equals(creator))
+		{
+			changes++;
+		}
+
+		if (!trimmed.equals(author))
+		{
+			info.setAuthor(trimmed);
+			changes++;
+		}
+
+		String title = info.getTitle();
+		String dcTitle = dc.getTitle();
+		System.err.println("Title: '" + title + "'");
+		System.err.println("dc.title: '" + dcTitle + "'");
+		String trimmedTitle = dcTitle == null ? null : dcTitle.trim();
+		info.setTitle(trimmedTitle);
+		dc.setTitle(trimmedTitle);
+		if (trimmedTitle == null ? title != null || dcTitle != null
+		    : !trimmedTitle.equals(title) || !trimmedTitle.equals(dcTitle))
+		{
+			changes++;
+		}
+
+		meta.importXMPMetadata(metadata);
+		if (!Arrays.equals(xmp, FixPdf.readXmp(meta)))
+		{
+			// the rebuilt XMP is written out even if no value changed
+			changes++;
+		}
+		meta.getStream().setNeedToBeUpdate(true);
+		info.getDictionary().setNeedToBeUpdate(true);
+
+		return changes;
+	}
+
+}
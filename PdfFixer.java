@@ -0,0 +1,26 @@
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+
+/**
+ * One step of the FixPdf pipeline. Fixers change a loaded document in
+ * place and leave loading and saving to FixPdf.
+ *
+ * Every object a fixer changes must be marked with
+ * setNeedToBeUpdate(true), so that incremental saves include it.
+ */
+public interface PdfFixer
+{
+
+	/**
+	 * Name used to select the fixer on the FixPdf command line.
+	 */
+	String getName();
+
+	/**
+	 * Fix the document.
+	 *
+	 * @return number of changes made
+	 */
+	int fix(PDDocument doc) throws Exception;
+
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+
+/**
+ * Loads PDFs for the PDFBox tools within a fixed memory budget.
+ *
+ * Files no bigger than pdf.memory.max megabytes (default 64) are parsed
+ * in memory. Larger files keep their stream data in a scratch file
+ * under pdf.scratch.dir (default java.io.tmpdir), so a large book only
+ * needs as much heap as its object tree. Setting pdf.memory.max to -1
+ * keeps everything in memory.
+ *
+ * When a document is closed its peak heap use and scratch file size
+ * are reported on stderr, for sizing worker heaps. Heap peaks are kept
+ * for the whole JVM, so if other documents were loaded at the same
+ * time, as in PdfTechMetadata, FontAudit and PdfToTiff, the figure is
+ * reported as the JVM's peak rather than the document's.
+ */
+public class PdfLoader
+{
+
+	static final long MB = 1024 * 1024;
+
+	static final long MEMORY_MAX
+	    = Long.getLong("pdf.memory.max", 64).longValue();
+
+	static final File SCRATCH_DIR
+	    = new File(System.getProperty("pdf.scratch.dir",
+	                                  System.getProperty("java.io.tmpdir")));
+
+	/** Loaders with a document loaded. */
+	static final Set<PdfLoader> OPEN = new HashSet<PdfLoader>();
+
+	final File file;
+	PDDocument doc;
+	File scratchFile;
+	RandomAccessFile scratch;
+	long start;
+
+	/** Another document was loaded while this one was, guarded by OPEN */
+	boolean shared;
+
+	public PdfLoader(String file)
+	{
+		this.file = new File(file);
+	}
+
+	/**
+	 * Parse the file, using a scratch file if it is over the memory
+	 * budget.
+	 */
+	public PDDocument load() throws Exception
+	{
+		synchronized (OPEN)
+		{
+			if (OPEN.isEmpty())
+			{
+				resetPeakHeap();
+			}
+			else
+			{
+				for (PdfLoader other : OPEN)
+				{
+					other.shared = true;
+				}
+				shared = true;
+			}
+			OPEN.add(this);
+		}
+		start = System.currentTimeMillis();
+		long size = file.length();
+		if (MEMORY_MAX >= 0 && size > MEMORY_MAX * MB)
+		{
+			scratchFile = File.createTempFile("pdfbox", ".scratch",
+			                                  SCRATCH_DIR);
+			scratchFile.deleteOnExit();
+			scratch = new RandomAccessFile(scratchFile, "rw");
+			doc = PDDocument.load(file, scratch);
+		}
+		else
+		{
+			doc = PDDocument.load(file);
+		}
+		return doc;
+	}
+
+	/**
+	 * Close the document, report its memory use and remove the scratch
+	 * file. Safe to call if load failed.
+	 */
+	public void close()
+	{
+		long scratchBytes = scratchFile == null ? 0 : scratchFile.length();
+		boolean alone;
+		synchronized (OPEN)
+		{
+			OPEN.remove(this);
+			alone = !shared;
+			shared = false;
+		}
+		try
+		{
+			if (doc != null)
+			{
+				doc.close();
+			}
+			if (scratch != null)
+			{
+				scratch.close();
+			}
+		}
+		catch (Exception ex)
+		{
+			System.err.println("Error closing '" + file + "': " + ex);
+		}
+		finally
+		{
+			if (scratchFile != null)
+			{
+				scratchFile.delete();
+			}
+		}
+		if (start > 0)
+		{
+			System.err.println("memory: " + file.getName() + ": "
+			                   + (file.length() / MB) + "M file, "
+			                   + (peakHeap() / MB)
+			                   + (alone ? "M peak heap, "
+			                      : "M peak heap of the whole JVM, ")
+			                   + scratchBytes + " scratch bytes, "
+			                   + (System.currentTimeMillis() - start) / 1000.0
+			                   + "s");
+		}
+		doc = null;
+		scratch = null;
+		scratchFile = null;
+		start = 0;
+	}
+
+	static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Sum of the heap pools' peak usage since the last reset. Pools peak
+	 * at different times so this is an upper bound.
+	 */
+	static long peakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+}
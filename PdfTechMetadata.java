@@ -0,0 +1,394 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+
+
+/**
+ * Writes the technical metadata of PDF files without forking pdftk.
+ *
+ * Each line of the list file holds a PDF file and a metadata file
+ * prefix separated by a tab. Every PDF is opened once and two files
+ * are written next to the prefix: prefix_pdftk.txt in the format of
+ * "pdftk dump_data" (info dictionary, document ID, page count,
+ * bookmarks, page media and page labels) and prefix_xmp.xml with the
+ * document's XMP packet, if it has one. Files are processed in
+ * parallel.
+ */
+public class PdfTechMetadata
+{
+
+	public static void main(String[] args) throws Exception
+	{
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		String listFile = null;
+		if (args.length == 3 && args[0].equals("-threads"))
+		{
+			numThreads = Integer.parseInt(args[1]);
+			listFile = args[2];
+		}
+		else if (args.length == 1)
+		{
+			listFile = args[0];
+		}
+		else
+		{
+			usage();
+			System.exit(1);
+		}
+
+		List<String[]> jobs = readList(listFile);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (final String[] job : jobs)
+		{
+			results.add(pool.submit(new Callable<Boolean>()
+			{
+				public Boolean call()
+				{
+					return extract(job[0], job[1]);
+				}
+			}));
+		}
+
+		int numFailed = 0;
+		for (Future<Boolean> result : results)
+		{
+			if (!result.get())
+			{
+				numFailed++;
+			}
+		}
+		pool.shutdown();
+
+		System.err.println("Extracted metadata from "
+		                   + (jobs.size() - numFailed) + " of "
+		                   + jobs.size() + " PDF files");
+		System.exit(numFailed == 0 ? 0 : 1);
+	}
+
+	static List<String[]> readList(String listFile) throws Exception
+	{
+		List<String[]> jobs = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+		    new FileInputStream(listFile), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() == 0)
+				{
+					continue;
+				}
+				String[] job = line.split("\t");
+				if (job.length != 2)
+				{
+					throw new Exception("Bad line in " + listFile
+					                    + ": " + line);
+				}
+				jobs.add(job);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return jobs;
+	}
+
+	/**
+	 * Write the metadata files for one PDF.
+	 *
+	 * @return true on success
+	 */
+	static boolean extract(String pdfFile, String prefix)
+	{
+		PdfLoader loader = new PdfLoader(pdfFile);
+		try
+		{
+			PDDocument doc = loader.load();
+			writeDumpData(doc, new File(prefix + "_pdftk.txt"));
+			writeXmp(doc, new File(prefix + "_xmp.xml"));
+			return true;
+		}
+		catch (Exception ex)
+		{
+			System.err.println("Error extracting metadata from '"
+			                   + pdfFile + "': " + ex);
+			ex.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			loader.close();
+		}
+	}
+
+	static void writeDumpData(PDDocument doc, File outFile) throws Exception
+	{
+		PDDocumentCatalog catalog = doc.getDocumentCatalog();
+		List pages = catalog.getAllPages();
+
+		Map<COSBase, Integer> pageNumbers = new HashMap<COSBase, Integer>();
+		for (int i = 0; i < pages.size(); i++)
+		{
+			pageNumbers.put(((PDPage) pages.get(i)).getCOSObject(), i + 1);
+		}
+
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+		    new FileOutputStream(outFile), "UTF-8"));
+		try
+		{
+			COSDictionary info = doc.getDocumentInformation().getDictionary();
+			for (COSName key : info.keySet())
+			{
+				COSBase value = info.getDictionaryObject(key);
+				if (value instanceof COSString)
+				{
+					out.print("InfoBegin\n");
+					out.print("InfoKey: " + encode(key.getName()) + "\n");
+					out.print("InfoValue: "
+					          + encode(((COSString) value).getString()) + "\n");
+				}
+			}
+
+			COSBase ids = doc.getDocument().getTrailer()
+			    .getDictionaryObject(COSName.getPDFName("ID"));
+			if (ids instanceof COSArray)
+			{
+				COSArray idArray = (COSArray) ids;
+				for (int i = 0; i < idArray.size(); i++)
+				{
+					COSBase id = idArray.getObject(i);
+					if (id instanceof COSString)
+					{
+						out.print("PdfID" + i + ": "
+						          + toHex(((COSString) id).getBytes()) + "\n");
+					}
+				}
+			}
+
+			out.print("NumberOfPages: " + pages.size() + "\n");
+
+			PDDocumentOutline outline = catalog.getDocumentOutline();
+			if (outline != null)
+			{
+				writeBookmarks(doc, outline.getFirstChild(), 1,
+				               pageNumbers, out);
+			}
+
+			for (int i = 0; i < pages.size(); i++)
+			{
+				PDPage page = (PDPage) pages.get(i);
+				PDRectangle box = page.findMediaBox();
+				out.print("PageMediaBegin\n");
+				out.print("PageMediaNumber: " + (i + 1) + "\n");
+				out.print("PageMediaRotation: " + page.findRotation() + "\n");
+				out.print("PageMediaRect: "
+				          + number(box.getLowerLeftX()) + " "
+				          + number(box.getLowerLeftY()) + " "
+				          + number(box.getUpperRightX()) + " "
+				          + number(box.getUpperRightY()) + "\n");
+				out.print("PageMediaDimensions: " + number(box.getWidth())
+				          + " " + number(box.getHeight()) + "\n");
+			}
+
+			COSBase labels = ((COSDictionary) catalog.getCOSObject())
+			    .getDictionaryObject(COSName.getPDFName("PageLabels"));
+			if (labels instanceof COSDictionary)
+			{
+				writePageLabels((COSDictionary) labels, out);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	static void writeBookmarks(PDDocument doc, PDOutlineItem item, int level,
+	                           Map<COSBase, Integer> pageNumbers,
+	                           PrintWriter out) throws Exception
+	{
+		for (; item != null; item = item.getNextSibling())
+		{
+			PDPage page = item.findDestinationPage(doc);
+			Integer pageNumber = page == null
+			    ? null : pageNumbers.get(page.getCOSObject());
+			out.print("BookmarkBegin\n");
+			out.print("BookmarkTitle: " + encode(item.getTitle()) + "\n");
+			out.print("BookmarkLevel: " + level + "\n");
+			out.print("BookmarkPageNumber: "
+			          + (pageNumber == null ? 0 : pageNumber) + "\n");
+			writeBookmarks(doc, item.getFirstChild(), level + 1,
+			               pageNumbers, out);
+		}
+	}
+
+	/**
+	 * Walk the page label number tree in key order.
+	 */
+	static void writePageLabels(COSDictionary node, PrintWriter out)
+	{
+		COSBase kids = node.getDictionaryObject(COSName.getPDFName("Kids"));
+		if (kids instanceof COSArray)
+		{
+			COSArray kidArray = (COSArray) kids;
+			for (int i = 0; i < kidArray.size(); i++)
+			{
+				writePageLabels((COSDictionary) kidArray.getObject(i), out);
+			}
+		}
+
+		COSBase nums = node.getDictionaryObject(COSName.getPDFName("Nums"));
+		if (!(nums instanceof COSArray))
+		{
+			return;
+		}
+		COSArray numArray = (COSArray) nums;
+		for (int i = 0; i + 1 < numArray.size(); i += 2)
+		{
+			int pageIndex = ((COSNumber) numArray.getObject(i)).intValue();
+			COSDictionary label = (COSDictionary) numArray.getObject(i + 1);
+
+			int start = label.getInt(COSName.getPDFName("St"), 1);
+			String prefix = label.getString(COSName.getPDFName("P"));
+			String style = label.getNameAsString(COSName.getPDFName("S"));
+
+			out.print("PageLabelBegin\n");
+			out.print("PageLabelNewIndex: " + (pageIndex + 1) + "\n");
+			out.print("PageLabelStart: " + start + "\n");
+			if (prefix != null)
+			{
+				out.print("PageLabelPrefix: " + encode(prefix) + "\n");
+			}
+			out.print("PageLabelNumStyle: " + numStyle(style) + "\n");
+		}
+	}
+
+	static String numStyle(String style)
+	{
+		if ("D".equals(style))
+		{
+			return "DecimalArabicNumerals";
+		}
+		else if ("R".equals(style))
+		{
+			return "UppercaseRomanNumerals";
+		}
+		else if ("r".equals(style))
+		{
+			return "LowercaseRomanNumerals";
+		}
+		else if ("A".equals(style))
+		{
+			return "UppercaseLetters";
+		}
+		else if ("a".equals(style))
+		{
+			return "LowercaseLetters";
+		}
+		return "NoNumber";
+	}
+
+	static void writeXmp(PDDocument doc, File outFile) throws Exception
+	{
+		PDMetadata meta = doc.getDocumentCatalog().getMetadata();
+		if (meta == null)
+		{
+			return;
+		}
+		InputStream in = meta.createInputStream();
+		OutputStream out = new FileOutputStream(outFile);
+		try
+		{
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1)
+			{
+				out.write(buf, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Encode characters outside printable ASCII as XML numeric character
+	 * references, the way pdftk dump_data does.
+	 */
+	static String encode(String s)
+	{
+		if (s == null)
+		{
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '&' || c == '<' || c == '>' || c < 32 || c > 126)
+			{
+				sb.append("&#").append((int) c).append(';');
+			}
+			else
+			{
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String number(float f)
+	{
+		return f == Math.round(f) ? String.valueOf(Math.round(f))
+		                          : String.valueOf(f);
+	}
+
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+		{
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private static void usage()
+	{
+		System.err.println(
+		    "Usage: java PdfTechMetadata [-threads n] [list file]");
+	}
+
+}
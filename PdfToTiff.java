@@ -0,0 +1,527 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.w3c.dom.Element;
+
+
+/**
+ * Renders PDF pages to G3 or G4 fax TIFFs or to JPEGs, as an alternative
+ * to ghostscript's tiffg3 device that pdf2tif runs when
+ * PDF2TIF_RENDERER=pdfbox is set.
+ *
+ * Pages are handed out one at a time to -threads worker threads, each
+ * with its own copy of the document since a PDDocument can't be shared
+ * between threads. JPEGs are rendered a whole page at a time.
+ *
+ * Fax pages are rendered in 8 bit gray and then reduced to black and
+ * white with a fixed threshold: a pixel is black if it is darker than
+ * mid gray. PDFBox always antialiases, so along edges this means a
+ * pixel is black when at least half of it is covered, which keeps text
+ * close to ghostscript's. Gray fills and images are thresholded too
+ * rather than halftoned as gs's tiffg3 device does, so the output is
+ * not the same as gs's. A page whose gray raster is bigger than -band-mb
+ * megabytes is rendered and compressed in bands, so a thread never
+ * holds more than one band of a page uncompressed. PDFBox interprets
+ * the whole page for every band, so a page in n bands costs about n
+ * times the CPU; the default of 32M holds a letter or tabloid page at
+ * 300 dpi in one band.
+ *
+ * If the output name has a printf style page number in it, like
+ * pdf2tif's default book-%02d.tif, each page goes to its own file,
+ * numbered by its page in the PDF. Otherwise the pages are written in
+ * order to one multipage TIFF.
+ */
+public class PdfToTiff
+{
+
+	static final int MB = 1024 * 1024;
+
+	/** Gray levels below this are black in fax pages. */
+	static final int THRESHOLD = 128;
+
+	final String inputFile;
+	final String output;
+	final String format;
+	final float dpi;
+	final float quality;
+	final int bandBytes;
+	final int numThreads;
+
+	/** Zero based indexes of the pages to render. */
+	List<Integer> pages;
+
+	/** Multipage output, or null for a file per page. */
+	FaxTiffWriter tiff;
+
+	final AtomicInteger nextPage = new AtomicInteger();
+
+	/** Pages rendered but waiting for an earlier one to be written. */
+	final Map<Integer, FaxTiffWriter.Page> rendered
+	    = new HashMap<Integer, FaxTiffWriter.Page>();
+	int nextToWrite = 0;
+
+	/** Limits how far rendering gets ahead of writing. */
+	Semaphore window;
+
+	volatile Throwable error;
+
+	public static void main(String[] args) throws Exception
+	{
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		float dpi = 300;
+		String pageRanges = null;
+		String format = "g3";
+		float quality = 0.9f;
+		int bandMb = 32;
+
+		int i = 0;
+		try
+		{
+			for (; i < args.length && args[i].startsWith("-"); i += 2)
+			{
+				if (args[i].equals("-threads"))
+				{
+					numThreads = Integer.parseInt(args[i + 1]);
+				}
+				else if (args[i].equals("-dpi"))
+				{
+					dpi = Float.parseFloat(args[i + 1]);
+				}
+				else if (args[i].equals("-pages"))
+				{
+					pageRanges = args[i + 1];
+				}
+				else if (args[i].equals("-format"))
+				{
+					format = args[i + 1];
+				}
+				else if (args[i].equals("-quality"))
+				{
+					quality = Float.parseFloat(args[i + 1]);
+				}
+				else if (args[i].equals("-band-mb"))
+				{
+					bandMb = Integer.parseInt(args[i + 1]);
+				}
+				else
+				{
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException ex)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		if (args.length - i < 1 || args.length - i > 2 || numThreads < 1
+		    || dpi <= 0 || bandMb < 1 || quality < 0 || quality > 1
+		    || !(format.equals("g3") || format.equals("g4")
+		         || format.equals("jpeg")))
+		{
+			usage();
+			System.exit(1);
+		}
+
+		String inputFile = args[i];
+		String output;
+		if (args.length - i == 2)
+		{
+			output = args[i + 1];
+		}
+		else
+		{
+			output = new File(inputFile).getName().replaceFirst("\\.pdf$", "")
+			         + "-%02d" + (format.equals("jpeg") ? ".jpg" : ".tif");
+		}
+
+		PdfToTiff rasterizer = new PdfToTiff(inputFile, output, format, dpi,
+		                                     quality, bandMb * MB,
+		                                     numThreads);
+		System.exit(rasterizer.run(pageRanges) ? 0 : 1);
+	}
+
+	PdfToTiff(String inputFile, String output, String format, float dpi,
+	          float quality, int bandBytes, int numThreads)
+	{
+		this.inputFile = inputFile;
+		this.output = output;
+		this.format = format;
+		this.dpi = dpi;
+		this.quality = quality;
+		this.bandBytes = bandBytes;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Render the pages in pageRanges, or every page if it's null.
+	 *
+	 * @return whether every page was written
+	 */
+	boolean run(String pageRanges) throws Exception
+	{
+		long start = System.currentTimeMillis();
+
+		// The first worker's document is loaded here to count the pages.
+		Worker first = new Worker(new PdfLoader(inputFile));
+		try
+		{
+			PDDocument doc = first.loader.load();
+			pages = parsePages(pageRanges, doc.getNumberOfPages());
+		}
+		catch (Exception ex)
+		{
+			first.loader.close();
+			System.err.println("Error reading '" + inputFile + "': " + ex);
+			return false;
+		}
+
+		boolean perPage = output.indexOf('%') >= 0;
+		if (!perPage && format.equals("jpeg") && pages.size() > 1)
+		{
+			first.loader.close();
+			System.err.println("JPEG output of more than one page needs "
+			                   + "a page number in the output name");
+			return false;
+		}
+		if (!perPage && !format.equals("jpeg"))
+		{
+			tiff = new FaxTiffWriter(new File(output));
+		}
+		window = new Semaphore(4 * numThreads);
+
+		int threads = Math.min(numThreads, pages.size());
+		System.err.println("Rendering " + pages.size() + " pages of "
+		                   + inputFile + " at " + dpi + " dpi to " + output
+		                   + " (" + format + ") on " + threads + " threads");
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < Math.max(threads, 1); t++)
+		{
+			Thread worker = new Thread(t == 0 ? first
+			    : new Worker(new PdfLoader(inputFile)), "render-" + t);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers)
+		{
+			worker.join();
+		}
+
+		if (tiff != null)
+		{
+			tiff.close();
+			if (error != null)
+			{
+				new File(output).delete();
+			}
+		}
+
+		if (error != null)
+		{
+			System.err.println("Error rendering '" + inputFile + "': "
+			                   + error);
+			return false;
+		}
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		System.err.println("Rendered " + pages.size() + " pages in "
+		                   + elapsed / 1000.0 + "s ("
+		                   + Math.round(pages.size() * 10000.0 / elapsed)
+		                     / 10.0
+		                   + " pages/s)");
+		return true;
+	}
+
+	/**
+	 * Parse page ranges like "1-10,15,20-", numbered from 1, into zero
+	 * based page indexes.
+	 */
+	static List<Integer> parsePages(String pageRanges, int numPages)
+	{
+		List<Integer> pages = new ArrayList<Integer>();
+		if (pageRanges == null)
+		{
+			for (int i = 0; i < numPages; i++)
+			{
+				pages.add(i);
+			}
+			return pages;
+		}
+		for (String range : pageRanges.split(","))
+		{
+			String[] ends = range.trim().split("-", -1);
+			if (ends.length > 2 || ends[0].length() == 0)
+			{
+				throw new IllegalArgumentException("bad page range "
+				                                   + range);
+			}
+			int from = Integer.parseInt(ends[0]);
+			int to = ends.length == 1 ? from
+			    : ends[1].length() == 0 ? numPages : Integer.parseInt(ends[1]);
+			if (from < 1 || to > numPages || from > to)
+			{
+				throw new IllegalArgumentException("page range " + range
+				                                   + " not in 1-" + numPages);
+			}
+			for (int i = from; i <= to; i++)
+			{
+				pages.add(i - 1);
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * Renders pages from the shared list with its own document.
+	 */
+	class Worker implements Runnable
+	{
+		final PdfLoader loader;
+
+		Worker(PdfLoader loader)
+		{
+			this.loader = loader;
+		}
+
+		public void run()
+		{
+			try
+			{
+				PDDocument doc = loader.doc != null ? loader.doc
+				    : loader.load();
+				List<?> allPages = doc.getDocumentCatalog().getAllPages();
+				PDFRenderer renderer = new PDFRenderer(doc);
+				while (error == null)
+				{
+					if (!window.tryAcquire(1, TimeUnit.SECONDS))
+					{
+						continue;
+					}
+					int n = nextPage.getAndIncrement();
+					if (n >= pages.size())
+					{
+						window.release();
+						break;
+					}
+					int index = pages.get(n);
+					long start = System.currentTimeMillis();
+					if (format.equals("jpeg"))
+					{
+						writeJpeg(renderer, index, outputFile(index));
+						window.release();
+					}
+					else
+					{
+						FaxTiffWriter.Page page
+						    = renderFax(renderer, (PDPage) allPages.get(index),
+						                index);
+						write(n, index, page);
+					}
+					System.err.println("page " + (index + 1) + ": "
+					                   + (System.currentTimeMillis() - start)
+					                   + " ms");
+				}
+			}
+			catch (Throwable ex)
+			{
+				error = ex;
+			}
+			finally
+			{
+				loader.close();
+			}
+		}
+	}
+
+	/**
+	 * Render a page in gray bands, threshold each band to black and white
+	 * and compress it as it's done. Every band renders the whole page
+	 * into a graphics clipped to the band.
+	 */
+	FaxTiffWriter.Page renderFax(PDFRenderer renderer, PDPage page,
+	                             int index) throws IOException
+	{
+		PDRectangle cropBox = page.findCropBox();
+		float scale = dpi / 72;
+		int width = Math.round(cropBox.getWidth() * scale);
+		int height = Math.round(cropBox.getHeight() * scale);
+		int rotation = page.findRotation();
+		if (rotation == 90 || rotation == 270)
+		{
+			int tmp = width;
+			width = height;
+			height = tmp;
+		}
+
+		int stride = (width + 7) / 8;
+		int bandHeight = Math.max(1, Math.min(height, bandBytes / width));
+		FaxTiffWriter.Page fax = new FaxTiffWriter.Page(
+		    format.equals("g4") ? FaxTiffWriter.G4 : FaxTiffWriter.G3,
+		    width, height, dpi);
+		BufferedImage band = new BufferedImage(width, bandHeight,
+		                                       BufferedImage.TYPE_BYTE_GRAY);
+		byte[] gray = ((DataBufferByte) band.getRaster().getDataBuffer())
+		    .getData();
+		byte[] bits = new byte[stride * bandHeight];
+		for (int y = 0; y < height; y += bandHeight)
+		{
+			Graphics2D g = band.createGraphics();
+			try
+			{
+				g.setBackground(Color.WHITE);
+				g.clearRect(0, 0, width, bandHeight);
+				g.translate(0, -y);
+				g.clipRect(0, y, width, bandHeight);
+				renderer.renderPageToGraphics(index, g, scale);
+			}
+			finally
+			{
+				g.dispose();
+			}
+			int rows = Math.min(bandHeight, height - y);
+			threshold(gray, width, rows, bits, stride);
+			fax.encodeRows(bits, stride, rows);
+		}
+		return fax;
+	}
+
+	/**
+	 * Reduce rows of 8 bit gray to packed bits, set for black.
+	 */
+	static void threshold(byte[] gray, int width, int rows, byte[] bits,
+	                      int stride)
+	{
+		Arrays.fill(bits, 0, rows * stride, (byte) 0);
+		for (int r = 0; r < rows; r++)
+		{
+			int in = r * width;
+			int out = r * stride;
+			for (int x = 0; x < width; x++)
+			{
+				if ((gray[in + x] & 0xff) < THRESHOLD)
+				{
+					bits[out + (x >> 3)] |= 0x80 >> (x & 7);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a rendered page to its own file, or to the multipage TIFF
+	 * once the pages before it have been written.
+	 *
+	 * @param n
+	 *            position of the page in the page list
+	 */
+	void write(int n, int index, FaxTiffWriter.Page page) throws IOException
+	{
+		if (tiff == null)
+		{
+			FaxTiffWriter out = new FaxTiffWriter(outputFile(index));
+			try
+			{
+				out.writePage(page);
+			}
+			finally
+			{
+				out.close();
+				window.release();
+			}
+			return;
+		}
+
+		synchronized (rendered)
+		{
+			rendered.put(n, page);
+			FaxTiffWriter.Page next;
+			while ((next = rendered.remove(nextToWrite)) != null)
+			{
+				tiff.writePage(next);
+				nextToWrite++;
+				window.release();
+			}
+		}
+	}
+
+	void writeJpeg(PDFRenderer renderer, int index, File file)
+	    throws IOException
+	{
+		BufferedImage image = renderer.renderImageWithDPI(index, dpi,
+		                                                  ImageType.RGB);
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+		    .next();
+		ImageOutputStream out = null;
+		try
+		{
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+
+			// record the resolution in the JFIF header
+			String metadataFormat = "javax_imageio_jpeg_image_1.0";
+			IIOMetadata metadata = writer.getDefaultImageMetadata(
+			    new ImageTypeSpecifier(image), param);
+			Element tree = (Element) metadata.getAsTree(metadataFormat);
+			Element jfif = (Element) tree.getElementsByTagName("app0JFIF")
+			    .item(0);
+			jfif.setAttribute("resUnits", "1");
+			jfif.setAttribute("Xdensity", String.valueOf(Math.round(dpi)));
+			jfif.setAttribute("Ydensity", String.valueOf(Math.round(dpi)));
+			metadata.setFromTree(metadataFormat, tree);
+
+			file.delete();
+			out = ImageIO.createImageOutputStream(file);
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+		}
+		finally
+		{
+			if (out != null)
+			{
+				out.close();
+			}
+			writer.dispose();
+		}
+	}
+
+	File outputFile(int index)
+	{
+		return new File(String.format(output, index + 1));
+	}
+
+	private static void usage()
+	{
+		System.err.println(
+		    "Usage: java PdfToTiff [-threads n] [-dpi n] [-pages 1-10,15] "
+		    + "[-format g3|g4|jpeg] [-quality 0-1] [-band-mb MB] "
+		    + "input.pdf [output]\n\n"
+		    + "Fax pages with a gray raster over -band-mb (default 32) are "
+		    + "rendered in bands;\nevery band renders the whole page "
+		    + "again, so smaller bands save memory\nat the cost of CPU.");
+	}
+
+}
@@ -0,0 +1,361 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs pdf2pdfa or validate-pdfa.sh over a list of PDF files.
+ *
+ * Jobs are taken from one queue, largest file first, and run on up to
+ * -jobs worker processes at a time. Each job is given a heap size that
+ * grows with the file size (passed to the scripts as JAVA_HEAP), and a
+ * job only starts once its heap fits in the -heap-budget shared by all
+ * running jobs, so a few big PDFs can't oversubscribe memory.
+ *
+ * Failed jobs are requeued up to -retries times with twice the heap,
+ * but never more than the whole budget.
+ * Files that still fail are kept in the failed list, which is rewritten
+ * atomically after every job, and are removed from it once they
+ * succeed.
+ */
+public class PdfaScheduler
+{
+
+	static final int MB = 1024 * 1024;
+
+	static final int DEFAULT_HEAP_BUDGET = 8192;
+
+	final String mode;
+	final int numJobs;
+	final int heapBudget;
+	final int maxRetries;
+	final File failedFile;
+
+	final Semaphore slots;
+	final Semaphore heap;
+	final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+	final AtomicInteger pending = new AtomicInteger();
+	final AtomicInteger numFailed = new AtomicInteger();
+
+	/** Failed list: file path to "attempts\texit status\ttime". */
+	final Map<String, String> failed = new TreeMap<String, String>();
+
+	public static void main(String[] args) throws Exception
+	{
+		int numJobs = Runtime.getRuntime().availableProcessors();
+		int heapBudget = DEFAULT_HEAP_BUDGET;
+		int maxRetries = 1;
+		String failedFile = "FAILED.tsv";
+
+		int i = 0;
+		try
+		{
+			for (; i < args.length && args[i].startsWith("-"); i += 2)
+			{
+				if (args[i].equals("-jobs"))
+				{
+					numJobs = Integer.parseInt(args[i + 1]);
+				}
+				else if (args[i].equals("-heap-budget"))
+				{
+					heapBudget = Integer.parseInt(args[i + 1]);
+				}
+				else if (args[i].equals("-retries"))
+				{
+					maxRetries = Integer.parseInt(args[i + 1]);
+				}
+				else if (args[i].equals("-failed"))
+				{
+					failedFile = args[i + 1];
+				}
+				else
+				{
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException ex)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		if (args.length - i != 2
+		    || !(args[i].equals("convert") || args[i].equals("validate")))
+		{
+			usage();
+			System.exit(1);
+		}
+
+		PdfaScheduler scheduler = new PdfaScheduler(args[i], numJobs,
+		    heapBudget, maxRetries, new File(failedFile));
+		System.exit(scheduler.run(readList(args[i + 1])) == 0 ? 0 : 1);
+	}
+
+	PdfaScheduler(String mode, int numJobs, int heapBudget, int maxRetries,
+	              File failedFile) throws Exception
+	{
+		this.mode = mode;
+		this.numJobs = numJobs;
+		this.heapBudget = heapBudget;
+		this.maxRetries = maxRetries;
+		this.failedFile = failedFile;
+		this.slots = new Semaphore(numJobs);
+		this.heap = new Semaphore(heapBudget, true);
+		if (failedFile.exists())
+		{
+			for (String line : readList(failedFile.getPath()))
+			{
+				String[] fields = line.split("\t", 2);
+				failed.put(fields[0], fields.length > 1 ? fields[1] : "");
+			}
+		}
+	}
+
+	/**
+	 * Run every file in the list.
+	 *
+	 * @return number of files that failed
+	 */
+	int run(List<String> files) throws Exception
+	{
+		for (String file : files)
+		{
+			queue.add(new Job(file, new File(file).length(), 0));
+		}
+		pending.set(files.size());
+		System.err.println("number of files " + files.size() + ", "
+		                   + numJobs + " jobs, heap budget "
+		                   + heapBudget + "M");
+
+		ExecutorService pool = Executors.newFixedThreadPool(numJobs);
+		try
+		{
+			while (pending.get() > 0)
+			{
+				final Job job = queue.poll(1, TimeUnit.SECONDS);
+				if (job == null)
+				{
+					continue;
+				}
+				// Waiting here for the largest job's heap keeps smaller
+				// jobs from starving it.
+				final int permits = job.heapSize();
+				slots.acquire();
+				heap.acquire(permits);
+				pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							finish(job, execute(job));
+						}
+						finally
+						{
+							heap.release(permits);
+							slots.release();
+						}
+					}
+				});
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.DAYS);
+		}
+
+		System.err.println((files.size() - numFailed.get()) + " of "
+		                   + files.size() + " files succeeded");
+		return numFailed.get();
+	}
+
+	int execute(Job job)
+	{
+		List<String> cmd = new ArrayList<String>();
+		if (mode.equals("convert"))
+		{
+			cmd.add("./pdf2pdfa");
+			cmd.add("-s");
+			cmd.add(job.file);
+			cmd.add(job.file + "a.unvalidated");
+		}
+		else
+		{
+			cmd.add("./validate-pdfa.sh");
+			cmd.add(job.file);
+		}
+
+		System.err.println("Starting " + cmd + " ("
+		                   + (job.size / MB) + "M file, "
+		                   + job.heapSize() + "M heap, attempt "
+		                   + (job.attempt + 1) + ")");
+		long start = System.currentTimeMillis();
+		try
+		{
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			pb.environment().put("JAVA_HEAP", job.heapSize() + "m");
+			pb.inheritIO();
+			int status = pb.start().waitFor();
+			System.err.println("Finished " + job.file + " with status "
+			                   + status + " in "
+			                   + (System.currentTimeMillis() - start) / 1000
+			                   + "s");
+			return status;
+		}
+		catch (Exception ex)
+		{
+			System.err.println("Error running " + cmd + ": " + ex);
+			return -1;
+		}
+	}
+
+	void finish(Job job, int status)
+	{
+		if (status != 0 && job.attempt < maxRetries)
+		{
+			System.err.println("Requeueing " + job.file);
+			queue.add(new Job(job.file, job.size, job.attempt + 1));
+			return;
+		}
+
+		synchronized (failed)
+		{
+			if (status == 0)
+			{
+				failed.remove(job.file);
+			}
+			else
+			{
+				numFailed.incrementAndGet();
+				failed.put(job.file, (job.attempt + 1) + "\t" + status
+				           + "\t" + new java.util.Date());
+			}
+			try
+			{
+				saveFailed();
+			}
+			catch (Exception ex)
+			{
+				System.err.println("Can't write " + failedFile + ": " + ex);
+			}
+		}
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * Rewrite the failed list through a temp file so it's never left
+	 * half written.
+	 */
+	void saveFailed() throws Exception
+	{
+		File tmpFile = new File(failedFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(fos,
+		                                                         "UTF-8"));
+		try
+		{
+			for (Map.Entry<String, String> entry : failed.entrySet())
+			{
+				out.print(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), failedFile.toPath(),
+		           StandardCopyOption.REPLACE_EXISTING,
+		           StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static List<String> readList(String listFile) throws Exception
+	{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+		    new FileInputStream(listFile), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() > 0)
+				{
+					lines.add(line);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * One file to process. Larger files sort first.
+	 */
+	class Job implements Comparable<Job>
+	{
+		final String file;
+		final long size;
+		final int attempt;
+
+		Job(String file, long size, int attempt)
+		{
+			this.file = file;
+			this.size = size;
+			this.attempt = attempt;
+		}
+
+		/**
+		 * Heap in MB: 512M plus 4 times the file size for conversion,
+		 * 1024M plus 4 times the file size for validation, doubled for
+		 * every retry and capped at the heap budget. The job holds this
+		 * many permits and its child gets the same -Xmx, so running jobs
+		 * never add up to more than the budget.
+		 */
+		int heapSize()
+		{
+			long base = mode.equals("convert") ? 512 : 1024;
+			long heapSize = (base + 4 * size / MB) << Math.min(attempt, 32);
+			return (int) Math.min(heapSize, heapBudget);
+		}
+
+		public int compareTo(Job other)
+		{
+			if (size != other.size)
+			{
+				return size > other.size ? -1 : 1;
+			}
+			return file.compareTo(other.file);
+		}
+	}
+
+	private static void usage()
+	{
+		System.err.println(
+		    "Usage: java PdfaScheduler [-jobs n] [-heap-budget MB] "
+		    + "[-retries n] [-failed file] convert|validate [list file]");
+	}
+
+}
@@ -0,0 +1,393 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.pdfbox.preflight.PreflightDocument;
+import org.apache.pdfbox.preflight.ValidationResult;
+import org.apache.pdfbox.preflight.ValidationResult.ValidationError;
+import org.apache.pdfbox.preflight.exception.SyntaxValidationException;
+import org.apache.pdfbox.preflight.parser.PreflightParser;
+
+
+/**
+ * Validates PDF/A files with PDFBox Preflight in this JVM, on a pool of
+ * threads, instead of starting the preflight-app jar once per file.
+ *
+ * One tab separated line is written per file, in the order given: the
+ * file, PASS, FAIL or ERROR, a category, the time the validation took
+ * in milliseconds, "cached" or "checked" and the Preflight error codes
+ * with their details. The categories are:
+ *
+ *   valid      Preflight found no errors
+ *   benign     Preflight gave up with the IllegalPathStateException
+ *              "missing initial moveto" that comes from a bug in its
+ *              path handling, not the file; counted as a pass
+ *   syntax     the file isn't a well formed PDF
+ *   invalid    the file isn't valid PDF/A
+ *   exception  Preflight threw an exception
+ *   memory     ran out of memory
+ *
+ * With -cache (or the pdfa.validation.cache property) results are
+ * kept in a {@link ValidationCache} and files with the same contents
+ * are never validated twice. Errors are not cached.
+ *
+ * The exit status is 0 if every file passed.
+ */
+public class PdfaValidator
+{
+
+	static final String PASS = "PASS";
+	static final String FAIL = "FAIL";
+	static final String ERROR = "ERROR";
+
+	static final String BENIGN_MESSAGE = "missing initial moveto";
+
+	/** Bump when the way results are classified changes. */
+	static final String RULES_VERSION = "1";
+
+	public static void main(String[] args) throws Exception
+	{
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		String resultsFile = null;
+		String cacheFile = System.getProperty("pdfa.validation.cache");
+		List<String> files = new ArrayList<String>();
+
+		int i = 0;
+		try
+		{
+			for (; i < args.length && args[i].startsWith("-"); i += 2)
+			{
+				if (args[i].equals("-threads"))
+				{
+					numThreads = Integer.parseInt(args[i + 1]);
+				}
+				else if (args[i].equals("-list"))
+				{
+					files.addAll(readList(args[i + 1]));
+				}
+				else if (args[i].equals("-results"))
+				{
+					resultsFile = args[i + 1];
+				}
+				else if (args[i].equals("-cache"))
+				{
+					cacheFile = args[i + 1];
+				}
+				else
+				{
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException ex)
+		{
+			usage();
+			System.exit(1);
+		}
+		for (; i < args.length; i++)
+		{
+			files.add(args[i]);
+		}
+		if (files.isEmpty())
+		{
+			usage();
+			System.exit(1);
+		}
+
+		final ValidationCache cache
+		    = cacheFile == null || cacheFile.length() == 0 ? null
+		    : new ValidationCache(new File(cacheFile), version());
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (final String file : files)
+		{
+			results.add(pool.submit(new Callable<Result>()
+			{
+				public Result call()
+				{
+					return validate(new File(file), cache);
+				}
+			}));
+		}
+
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+		    resultsFile == null ? System.out
+		    : new FileOutputStream(resultsFile), "UTF-8"));
+		int numFailed = 0;
+		try
+		{
+			for (Future<Result> future : results)
+			{
+				Result result = future.get();
+				if (!result.passed())
+				{
+					numFailed++;
+				}
+				out.println(result);
+				out.flush();
+			}
+		}
+		finally
+		{
+			out.close();
+			pool.shutdown();
+		}
+
+		if (cache != null)
+		{
+			cache.save();
+			System.err.println(cache.report());
+		}
+		System.err.println((files.size() - numFailed) + " of "
+		                   + files.size() + " PDF files are valid PDF/A");
+		System.exit(numFailed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Validator version for the cache: the Preflight version, plus the
+	 * jar's timestamp as snapshot builds all have the same version.
+	 */
+	static String version()
+	{
+		String version = PreflightDocument.class.getPackage()
+		    .getImplementationVersion();
+		try
+		{
+			File jar = new File(PreflightDocument.class.getProtectionDomain()
+			                    .getCodeSource().getLocation().toURI());
+			if (jar.isFile())
+			{
+				version += "@" + jar.lastModified();
+			}
+		}
+		catch (Exception ex)
+		{
+		}
+		return version + "/" + RULES_VERSION;
+	}
+
+	/**
+	 * Look a file up in the cache by its contents and only run Preflight
+	 * over it if it isn't there.
+	 */
+	static Result validate(File file, ValidationCache cache)
+	{
+		if (cache == null)
+		{
+			return validate(file);
+		}
+
+		String sha256;
+		try
+		{
+			sha256 = ValidationCache.sha256(file);
+		}
+		catch (Exception ex)
+		{
+			Result result = new Result(file, ERROR, "exception");
+			result.errors.add(String.valueOf(ex));
+			return result;
+		}
+
+		String[] cached = cache.get(sha256);
+		if (cached != null)
+		{
+			Result result = new Result(file, cached[0], cached[1]);
+			result.millis = Long.parseLong(cached[2]);
+			result.cached = true;
+			if (cached[4].length() > 0)
+			{
+				result.errors.addAll(Arrays.asList(cached[4].split("; ")));
+			}
+			return result;
+		}
+
+		Result result = validate(file);
+		if (!result.status.equals(ERROR))
+		{
+			cache.put(sha256, result.status, result.category, result.millis,
+			          result.errorString());
+		}
+		return result;
+	}
+
+	/**
+	 * Run Preflight over one file.
+	 */
+	static Result validate(File file)
+	{
+		long start = System.currentTimeMillis();
+		PreflightDocument document = null;
+		Result result;
+		try
+		{
+			PreflightParser parser = new PreflightParser(file);
+			try
+			{
+				parser.parse();
+				document = parser.getPreflightDocument();
+				document.validate();
+				ValidationResult validation = document.getResult();
+				result = validation.isValid()
+				         ? new Result(file, PASS, "valid")
+				         : new Result(file, FAIL, "invalid", validation);
+			}
+			catch (SyntaxValidationException ex)
+			{
+				result = new Result(file, FAIL, "syntax", ex.getResult());
+			}
+		}
+		catch (OutOfMemoryError err)
+		{
+			result = new Result(file, ERROR, "memory");
+			result.errors.add(String.valueOf(err));
+		}
+		catch (Exception ex)
+		{
+			if (isBenign(ex))
+			{
+				result = new Result(file, PASS, "benign");
+			}
+			else
+			{
+				result = new Result(file, ERROR, "exception");
+			}
+			result.errors.add(String.valueOf(ex));
+		}
+		finally
+		{
+			if (document != null)
+			{
+				try
+				{
+					document.close();
+				}
+				catch (Exception ex)
+				{
+				}
+			}
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/**
+	 * True for the known Preflight failure that validate-pdfa.sh has
+	 * always let through.
+	 */
+	static boolean isBenign(Throwable ex)
+	{
+		for (; ex != null; ex = ex.getCause())
+		{
+			if (ex instanceof java.awt.geom.IllegalPathStateException
+			    && ex.getMessage() != null
+			    && ex.getMessage().contains(BENIGN_MESSAGE))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static List<String> readList(String listFile) throws Exception
+	{
+		List<String> files = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+		    new FileInputStream(listFile), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() > 0)
+				{
+					files.add(line);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return files;
+	}
+
+	/**
+	 * Outcome of validating one file.
+	 */
+	static class Result
+	{
+		final File file;
+		final String status;
+		final String category;
+		final List<String> errors = new ArrayList<String>();
+		long millis;
+		boolean cached = false;
+
+		Result(File file, String status, String category)
+		{
+			this.file = file;
+			this.status = status;
+			this.category = category;
+		}
+
+		Result(File file, String status, String category,
+		       ValidationResult validation)
+		{
+			this(file, status, category);
+			if (validation != null)
+			{
+				for (ValidationError error : validation.getErrorsList())
+				{
+					errors.add(error.getErrorCode() + ": "
+					           + error.getDetails());
+				}
+			}
+		}
+
+		boolean passed()
+		{
+			return status.equals(PASS);
+		}
+
+		public String toString()
+		{
+			return file.getPath() + "\t" + status + "\t" + category + "\t"
+			       + millis + "\t" + (cached ? "cached" : "checked") + "\t"
+			       + errorString();
+		}
+
+		String errorString()
+		{
+			StringBuilder buf = new StringBuilder();
+			for (int i = 0; i < errors.size(); i++)
+			{
+				if (i > 0)
+				{
+					buf.append("; ");
+				}
+				buf.append(errors.get(i).replaceAll("\\s+", " "));
+			}
+			return buf.toString();
+		}
+	}
+
+	private static void usage()
+	{
+		System.err.println(
+		    "Usage: java PdfaValidator [-threads n] [-list file] "
+		    + "[-results file] [-cache file] [pdf file ...]");
+	}
+
+}
@@ -0,0 +1,238 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * On-disk cache of PDF/A validation results, so files that were
+ * already validated aren't run through Preflight again.
+ *
+ * Results are keyed by the SHA-256 of the file and the validator
+ * version, so a copied or renamed file is still found, and upgrading
+ * Preflight or changing how results are classified starts afresh.
+ *
+ * The cache file is tab separated: sha256, validator version, status,
+ * category, milliseconds the validation took, date and errors. It is
+ * rewritten atomically on {@link #save}, under a lock so that
+ * validate-pdfa.sh jobs running side by side merge their results.
+ * The same file is read by the METS generator (nyup.validation.cache).
+ */
+public class ValidationCache
+{
+
+	static final String HEADER = "# pdfa validation cache v1";
+
+	final File cacheFile;
+	final String version;
+
+	/** sha256 + tab + version to the rest of the line. */
+	final Map<String, String> entries
+	    = new ConcurrentHashMap<String, String>();
+	final Map<String, String> updated
+	    = new ConcurrentHashMap<String, String>();
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param version
+	 *            validator version; entries for other versions are
+	 *            ignored
+	 */
+	public ValidationCache(File cacheFile, String version) throws Exception
+	{
+		this.cacheFile = cacheFile;
+		this.version = version;
+		if (cacheFile.exists())
+		{
+			load(cacheFile, entries);
+		}
+	}
+
+	/**
+	 * Cached result fields (status, category, millis, date, errors) for
+	 * a file's SHA-256, or null.
+	 */
+	public String[] get(String sha256)
+	{
+		String value = entries.get(sha256 + "\t" + version);
+		if (value == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return value.split("\t", -1);
+	}
+
+	public void put(String sha256, String status, String category,
+	                long millis, String errors)
+	{
+		String key = sha256 + "\t" + version;
+		String value = status + "\t" + category + "\t" + millis + "\t"
+		               + now() + "\t" + errors.replaceAll("\\s+", " ");
+		entries.put(key, value);
+		updated.put(key, value);
+	}
+
+	/**
+	 * One line summary of lookups so far.
+	 */
+	public String report()
+	{
+		long total = hits.get() + misses.get();
+		return "Validation cache " + cacheFile + ": " + hits + " hits, "
+		       + misses + " misses, hit rate "
+		       + (total == 0 ? 0 : Math.round(100.0 * hits.get() / total))
+		       + "%";
+	}
+
+	/**
+	 * Write new results to the cache file, merged with whatever other
+	 * processes have saved in the meantime.
+	 */
+	public synchronized void save() throws Exception
+	{
+		if (updated.isEmpty())
+		{
+			return;
+		}
+
+		File lockFile = new File(cacheFile.getPath() + ".lock");
+		FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+		    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try
+		{
+			FileLock lock = lockChannel.lock();
+			try
+			{
+				Map<String, String> merged = new TreeMap<String, String>();
+				if (cacheFile.exists())
+				{
+					load(cacheFile, merged);
+				}
+				merged.putAll(updated);
+
+				File tmpFile = new File(cacheFile.getPath() + ".tmp");
+				write(tmpFile, merged);
+				Files.move(tmpFile.toPath(), cacheFile.toPath(),
+				           StandardCopyOption.REPLACE_EXISTING,
+				           StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		finally
+		{
+			lockChannel.close();
+		}
+		updated.clear();
+	}
+
+	/**
+	 * Hex SHA-256 of a file's contents.
+	 */
+	public static String sha256(File file) throws Exception
+	{
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		byte[] buf = new byte[1024 * 1024];
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			int n;
+			while ((n = in.read(buf)) != -1)
+			{
+				md.update(buf, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : md.digest())
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+	static String now()
+	{
+		SimpleDateFormat df
+		    = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df.format(new Date());
+	}
+
+	static void load(File file, Map<String, String> map) throws Exception
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+		    new FileInputStream(file), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] fields = line.split("\t", 3);
+				if (fields.length != 3)
+				{
+					System.err.println(
+					    "Skipping malformed validation cache line: " + line);
+					continue;
+				}
+				map.put(fields[0] + "\t" + fields[1], fields[2]);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	static void write(File file, Map<String, String> map) throws Exception
+	{
+		FileOutputStream fos = new FileOutputStream(file);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(fos,
+		                                                         "UTF-8"));
+		try
+		{
+			out.print(HEADER + "\n");
+			for (Map.Entry<String, String> entry : map.entrySet())
+			{
+				out.print(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+}
@@ -1,6 +1,6 @@
 #!/bin/bash
 #
-# Wrapper script for validate-pdfa.sh
+# Validate all PDF/A files in one JVM
 #
 # Author: Rasan Rasch <rasan@nyu.edu>
 
@@ -8,6 +8,18 @@ trap "" HUP
 
 PDF_DIR=/content/prod/process/rasch/nyup
 
+NUM_PROC=4
+
+# heap in MB for the validator, shared by NUM_PROC threads
+HEAP_BUDGET=8192
+
+# one line per file: file, PASS/FAIL/ERROR, category, time, errors
+RESULTS_FILE=validate-results.tsv
+
+# PDF/A validation results by file digest, so unchanged files aren't
+# validated again
+VALIDATION_CACHE=validation-cache.tsv
+
 # current date/time, e.g. 2010-07-13-20-14-59
 NOW=$(date +"%Y-%m-%d-%H-%M-%S")
 
@@ -20,23 +32,17 @@ LOGDIR=`dirname $LOGFILE`
 
 exec >> $LOGFILE 2>&1
 
-SAVEIFS=$IFS
-IFS=$(echo -en "\n\b")
-i=0
-for f in `find $PDF_DIR/[0-9]* -name '*.pdfa'`
-do
-	files[i++]=$f
-done
-IFS=$SAVEIFS
-
 echoerr() { echo "$@" 1>&2; }
 
-NUM_FILES=$i
-echoerr "number of files $NUM_FILES"
+LIST_FILE=`mktemp`
+trap "rm -f $LIST_FILE" EXIT
+
+find $PDF_DIR/[0-9]* -name '*.pdfa' > $LIST_FILE
 
-for ((i = 0 ; i < NUM_FILES ; i += 1)); do
-	echoerr ./validate-pdfa.sh "${files[$i]}"
-	./validate-pdfa.sh "${files[$i]}"
-	echoerr =================
-done
+echoerr "number of files `wc -l < $LIST_FILE`"
 
+java -Xmx${HEAP_BUDGET}m \
+	-Dlog4j.configuration=file://`pwd`/log4j.xml \
+	-cp pdfbox/preflight-app-2.0.0-SNAPSHOT.jar:. \
+	PdfaValidator -threads $NUM_PROC -list $LIST_FILE \
+	-results $RESULTS_FILE -cache $VALIDATION_CACHE
@@ -36,6 +36,13 @@ my $rstar_dir = "/path/to/rstar/content";
 
 my $xip_dir = "$rstar_dir/xip";
 
+# PDFBox jars and the PdfTechMetadata class, as used by pdf2pdfa
+my $pdfbox_classpath = "pdfbox/*:.";
+
+# PDF/A validation results written by validate-pdfa.sh, checked by
+# the METS generator
+my $validation_cache = "validation-cache.tsv";
+
 my @bagids = Util::get_dir_contents($xip_dir);
 
 my $noid_file = "noid.txt";
@@ -98,6 +105,8 @@ for my $bagid (sort @bagids)
 	find(sub { push(@book_files, $File::Find::name) if /\.(epub|pdfa?)$/i },
 		$aip_data_dir);
 
+	my @pdf_jobs = ();
+
 	for my $book_file (@book_files)
 	{
 		$log->debug("book file: $book_file");
@@ -106,7 +115,7 @@ for my $bagid (sort @bagids)
 		$meta_file =~ s/\.([^.]+)$/_$1/;
 
 		my %meta_files =
-		  map { $_ => "${meta_file}_$_.xml" } qw(jhove exiftool mediainfo);
+		  map { $_ => "${meta_file}_$_.xml" } qw(jhove exiftool mediainfo xmp);
 
 		$meta_files{pdftk} = "${meta_file}_pdftk.txt";
 
@@ -126,7 +135,8 @@ for my $bagid (sort @bagids)
 		sys("jhove -h xml -o $meta_files{jhove} $book_file");
 
 		if ($book_file =~ /pdfa?$/i) {
-			sys("pdftk $book_file dump_data > $meta_files{pdftk}");
+			# pdftk dump_data and XMP are extracted below in one JVM
+			push(@pdf_jobs, "$book_file\t$meta_file");
 		} elsif ($book_file =~ /jpe?g$/i) {
 			sys("exiftool -X $book_file > $meta_files{exiftool}");
 		} elsif ($book_file =~ /mp4$/i) {
@@ -135,6 +145,16 @@ for my $bagid (sort @bagids)
 
 	}
 
+	if (@pdf_jobs)
+	{
+		my $job_file = "$tmpdir/pdf-techmd-$id.txt";
+		open(my $jobs, ">$job_file")
+		  or $log->logdie("can't open $job_file: $!");
+		print $jobs map { "$_\n" } @pdf_jobs;
+		close($jobs);
+		sys("java -cp '$pdfbox_classpath' PdfTechMetadata $job_file");
+	}
+
 	my ($old_onix_file) = glob("$bag_data_dir/*_onix.xml");
 	my $new_onix_file = "$aip_meta_dir/${id}_onix.xml";
 	copy($old_onix_file, $new_onix_file)
@@ -158,7 +178,7 @@ for my $bagid (sort @bagids)
 
 	my $aip_mets_file = "$aip_root_dir/$aip_root-$aip_version.xml";
 	my $aip_mets_tmpfile = "$aip_mets_file.tmp";
-	sys("java -jar GenNyupAipMets/lib/gennyupaipmets.jar $aip_root $aip_version $aip_root_dir $aip_mets_tmpfile");
+	sys("java -Dnyup.validation.cache=$validation_cache -jar GenNyupAipMets/lib/gennyupaipmets.jar $aip_root $aip_version $aip_root_dir $aip_mets_tmpfile");
 	sys("xsltproc -o $aip_mets_file add-namespace.xsl $aip_mets_tmpfile");
 	unlink($aip_mets_tmpfile)
 		or $log->logdie("can't unlink $aip_mets_tmpfile: $!");
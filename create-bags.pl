@@ -6,7 +6,6 @@
 
 use strict;
 use warnings;
-use Cwd;
 use Data::UUID;
 use File::Basename;
 use File::Path;
@@ -25,6 +24,9 @@ my $bindir = "/path/to/rstar/bin";
 
 my $tmp_root = "/tmp";
 
+my $bag_cmd = "java -cp GenNyupAipMets/lib/gennyupaipmets.jar"
+  . " edu.nyu.dlib.nyup.bagit.Bag";
+
 if (!@ARGV)
 {
 	print STDERR "\nUsage: $0 [ONIX_FILE] ...\n\n";
@@ -66,8 +68,6 @@ for my $combined_onix_file (@combined_onix_files)
 	push(@onix_files, split_xml($combined_onix_file, $prefix));
 }
 
-my $cwd = cwd();
-
 for my $onix_file (@onix_files)
 {
 	$log->debug("Processing $onix_file");
@@ -115,20 +115,16 @@ for my $onix_file (@onix_files)
 	sys("cp -av $srcdir $datadir");
 	sys("mv $onix_file $datadir");
 
-	chdir($bagdir) or $log->logdie("can't chdir $bagdir: $!");
-	sys("$bindir/gen-bagit.sh .");
-# 	sys("md5deep -rl data > manifest-md5.txt");
-	chdir($cwd) or $log->logdie("can't chdir $cwd: $!");
-
 	my $now = POSIX::strftime('%Y-%m-%d-T%H%M%S', localtime);
 	open(my $out, ">$info_file")
 	  or $log->logdie("can't open $info_file: $!");
 	print $out "nyu-dl-project-name: nyup/nyupress\n";
 	print $out "Bagging-Date: $now\n";
 	close($out);
-	sys("$bindir/gen-oxum.sh $bagdir >> $info_file");
-	sys("/usr/local/bin/bag update $bagdir");
-	sys("/usr/local/bin/bag updatetagmanifests $bagdir");
+
+	# Writes bagit.txt, the md5/sha1/sha256 manifests, Payload-Oxum
+	# and the tag manifests, reading each payload file once.
+	sys("$bag_cmd update $bagdir");
 
 	sys("$bindir/check-bag.sh $bagdir");
 
@@ -17,6 +17,7 @@ use File::Copy::Recursive qw(dircopy);
 use File::Find;
 use File::Path;
 use File::Temp qw(tempdir);
+use IO::Handle;
 use MyLogger;
 use ONIX;
 use POSIX;
@@ -33,6 +34,20 @@ my $work_dir = "/path/to/work/dir";
 
 my $valid_aip_dir = "$work_dir/valid";
 
+# PDFBox jars and the PdfTechMetadata class, as used by pdf2pdfa
+my $pdfbox_classpath = "pdfbox/*:.";
+
+# PDF/A validation results written by validate-pdfa.sh, checked by
+# the METS generator
+my $validation_cache = "validation-cache.tsv";
+
+# Status of each stage of every book, see JobJournal
+my $journal_file = "status_aips.journal";
+my @journal_cmd = ("java", "-cp", "GenNyupAipMets/lib/gennyupaipmets.jar",
+	"edu.nyu.dlib.nyup.JobJournal", $journal_file);
+
+# Status of every book before the journal, migrated into an empty
+# journal on the first run
 my $status_db_file = "status_aips.db";
 
 if (!@ARGV)
@@ -49,25 +64,56 @@ umask 022;
 
 my $log = MyLogger->get_logger();
 
+# id => stage => status; the "aip" stage is PASSED or FAILED. Only the
+# "pdfa" stage is recorded besides it: its output is written next to
+# the book and survives a restart, while everything else is built in a
+# fresh temp directory under a new NOID on every run and is redone.
 our %status;
 our $id;
 
-tie(%status, "DB_File", $status_db_file, O_RDWR | O_CREAT, 0666, $DB_HASH)
-  or $log->logdie("can't open $status_db_file: $!");
+open(my $dump, "-|", @journal_cmd, "dump")
+  or $log->logdie("can't run @journal_cmd: $!");
+while (my $line = <$dump>)
+{
+	chomp($line);
+	my ($key, $stage, $value) = split(/\t/, $line);
+	# log4j's console appender shares stdout with the dump
+	next unless defined($value);
+	$status{$key}{$stage} = $value;
+	$log->trace("status $key $stage: $value");
+}
+close($dump) or $log->logdie("can't read $journal_file");
+
+# Statuses are written by one JVM for the whole run, which fsyncs them
+# as they come in.
+open(my $journal, "|-", @journal_cmd, "append")
+  or $log->logdie("can't run @journal_cmd: $!");
+$journal->autoflush(1);
 
-for (sort keys %status)
+# Carry over the books the DB_File store knew about, so a book that
+# already PASSED isn't archived again under a new NOID.
+if (!%status && -f $status_db_file)
 {
-	$log->trace("status $_: $status{$_}");
+	my %old_status;
+	tie(%old_status, "DB_File", $status_db_file, O_RDONLY, 0666, $DB_HASH)
+	  or $log->logdie("can't open $status_db_file: $!");
+	for my $key (sort keys %old_status)
+	{
+		set_status($key, "aip", $old_status{$key});
+	}
+	$log->info("Migrated " . scalar(keys %old_status)
+	  . " statuses from $status_db_file to $journal_file");
+	untie %old_status;
 }
 
 $SIG{__DIE__} = sub {
-	if ($id && !$status{$id}) {
-		$status{$id} = "FAILED";
+	if ($id && !$status{$id}{aip}) {
+		set_status($id, "aip", "FAILED");
 	}
 };
 
 END {
-	untie %status;
+	close($journal) if $journal;
 }
 
 my $tmpdir = tempdir(
@@ -81,8 +127,48 @@ my $now = now();
 
 my $aip_version = "v0001";
 
+# AIPs waiting for MIX and METS generation, which is done in one JVM for
+# every $batch_size of them, so the temp directory never holds more than
+# that many books.
+my $batch_size = 20;
+my @pending = ();
+
+my $mets_manifest = "$tmpdir/mets-batch.txt";
+my $mets_results  = "$tmpdir/mets-results.txt";
+
+my $mix_jobs    = "$tmpdir/mix-jobs.txt";
+my $mix_results = "$tmpdir/mix-results.txt";
+
 for my $onix_file (sort @onix_files)
 {
+	# A book that can't be prepared has been marked FAILED by the
+	# __DIE__ handler and doesn't stop the others.
+	my %aip = (onix_file => $onix_file);
+	my $prepared = eval { prepare_aip(\%aip) };
+	if (!defined($prepared))
+	{
+		$log->error("Skipping $onix_file: $@");
+		rmtree($aip{aip_root_dir}) if $aip{aip_root_dir};
+	}
+	elsif ($prepared)
+	{
+		push(@pending, \%aip);
+	}
+	$id = undef;
+
+	process_pending() if @pending >= $batch_size;
+}
+
+process_pending();
+
+
+# Copy a book into a new AIP in the temp directory and write all of its
+# metadata except the cover MIX and the METS. Returns 0 if the book
+# already passed, dies if it can't be prepared.
+sub prepare_aip
+{
+	my $aip = shift;
+	my $onix_file = $aip->{onix_file};
 	$log->debug("ONIX file: $onix_file");
 	
 	my $base_dir = dirname(abs_path($onix_file));
@@ -92,10 +178,10 @@ for my $onix_file (sort @onix_files)
 	$id = $onix->isbn;
 	$log->debug("id: $id");
 
-	if ($status{$id} && $status{$id} =~ /PASSED/)
+	if ($status{$id}{aip} && $status{$id}{aip} eq "PASSED")
 	{
-		$log->warn("$id already processed with status $status{$id}");
-		next;
+		$log->warn("$id already processed with status $status{$id}{aip}");
+		return 0;
 	}
 
 	my $book_dir  = "$base_dir/$id";
@@ -140,9 +226,13 @@ for my $onix_file (sort @onix_files)
 		$log->logdie("Book $id does not conform to valid configuration.");
 	}
 
-	# Now try to convert pdfs to PDF/A archival format.
+	# Now try to convert pdfs to PDF/A archival format, unless an
+	# earlier run already did.
 	my $num_err = 0;
-	for my $pdf_file (@archive_pdfs)
+	my $pdfa_done = ($status{$id}{pdfa} || "") eq "DONE"
+	  && !grep { !-f "${_}a" } @archive_pdfs;
+	$log->info("PDF/A files of $id already converted") if $pdfa_done;
+	for my $pdf_file ($pdfa_done ? () : @archive_pdfs)
 	{
 		my $pdfa_file = "${pdf_file}a";
 		sys("./pdf2pdfa", $pdf_file, $pdfa_file);
@@ -158,6 +248,7 @@ for my $onix_file (sort @onix_files)
 	{
 		$log->logdie("There was a problem with PDFA/A conversion for $id");
 	}
+	set_status($id, "pdfa", "DONE") unless $pdfa_done;
 
 	my $aip_root = Util::get_noids(1);
 	$log->debug("AIP root: $aip_root");
@@ -167,6 +258,7 @@ for my $onix_file (sort @onix_files)
 	my $aip_version_dir = "$aip_files_dir/$aip_version";
 	my $aip_data_dir    = "$aip_version_dir/data";
 	my $aip_meta_dir    = "$aip_version_dir/metadata";
+	$aip->{aip_root_dir} = $aip_root_dir;
 
 	rmtree($aip_root_dir);
 
@@ -186,6 +278,8 @@ for my $onix_file (sort @onix_files)
 		$aip_data_dir);
 
 	# Generate technical metadata for book files.
+	my @pdf_jobs = ();
+
 	for my $book_file (@book_files)
 	{
 		$log->debug("book file: $book_file");
@@ -194,7 +288,7 @@ for my $onix_file (sort @onix_files)
 		$meta_file =~ s/\.([^.]+)$/_$1/;
 
 		my %meta_files =
-		  map { $_ => "${meta_file}_$_.xml" } qw(jhove exiftool mediainfo);
+		  map { $_ => "${meta_file}_$_.xml" } qw(jhove exiftool mediainfo xmp);
 
 		$meta_files{pdftk} = "${meta_file}_pdftk.txt";
 
@@ -214,9 +308,8 @@ for my $onix_file (sort @onix_files)
 		sys("jhove -h xml -o $meta_files{jhove} $book_file");
 
 		if ($book_file =~ /pdfa?$/i) {
-			sys("pdftk $book_file dump_data > $meta_files{pdftk}");
-		} elsif ($book_file =~ /jpe?g$/i) {
-			sys("exiftool -X $book_file > $meta_files{exiftool}");
+			# pdftk dump_data and XMP are extracted below in one JVM
+			push(@pdf_jobs, "$book_file\t$meta_file");
 		} elsif ($book_file =~ /mp4$/i) {
 			sys("mediainfo --Full --Language=raw "
 			  . "--Output=XML $book_file > $meta_files{mediainfo}");
@@ -224,6 +317,40 @@ for my $onix_file (sort @onix_files)
 
 	}
 
+	if (@pdf_jobs)
+	{
+		my $job_file = "$tmpdir/pdf-techmd-$id.txt";
+		open(my $jobs, ">$job_file")
+		  or $log->logdie("can't open $job_file: $!");
+		print $jobs map { "$_\n" } @pdf_jobs;
+		close($jobs);
+		sys("java -cp '$pdfbox_classpath' PdfTechMetadata $job_file");
+	}
+
+	# MIX for cover images is read from their headers for the whole
+	# batch below.
+	my @cover_jobs = ();
+	my @cover_files = ();
+	find(sub {
+		push(@cover_files, $File::Find::name)
+		  if $File::Find::name =~ /Cover.*\.(jpe?g|tiff?)$/i;
+	}, $aip_data_dir);
+	for my $cover_file (sort @cover_files)
+	{
+		my $mix_file = $cover_file;
+		$mix_file =~ s,/data/,/metadata/,;
+		$mix_file =~ s/\.([^.]+)$/_${1}_mix.xml/;
+		if (-f $mix_file) {
+			$log->logdie("Metadata file $mix_file already exists.");
+		}
+		my $dirname = dirname($mix_file);
+		if (! -d $dirname) {
+			$log->info("Creating directory $dirname.");
+			mkpath($dirname);
+		}
+		push(@cover_jobs, "$cover_file\t$mix_file");
+	}
+
 	my $new_onix_file = "$aip_meta_dir/${id}_onix.xml";
 	copy($onix_file, $new_onix_file)
 	  or $log->logdie("can't copy $onix_file to $new_onix_file: $!");
@@ -247,11 +374,143 @@ for my $onix_file (sort @onix_files)
 	close($out);
 	my $rights_checksum = get_sha1_checksum($rights_file);
 
-	# Generate METS for data files using Harvard's METS java lib
+	$aip->{id}              = $id;
+	$aip->{aip_root}        = $aip_root;
+	$aip->{rights_checksum} = $rights_checksum;
+	$aip->{cover_jobs}      = \@cover_jobs;
+	return 1;
+}
+
+
+# Generate cover MIX and METS for the pending AIPs, each in one JVM, and
+# move the AIPs that pass to the valid directory.
+sub process_pending
+{
+	if (@pending)
+	{
+		# Write MIX for the cover images of all AIPs in a single JVM. A
+		# cover that can't be read just gets no MIX file.
+		open(my $jobs, ">$mix_jobs")
+		  or $log->logdie("can't open $mix_jobs: $!");
+		print $jobs map { "$_\n" } map { @{ $_->{cover_jobs} } } @pending;
+		close($jobs);
+
+		my @mix_cmd = ("java", "-cp", "GenNyupAipMets/lib/gennyupaipmets.jar",
+			"edu.nyu.dlib.nyup.CoverImageInspector",
+			"-jobs", $mix_jobs, "-results", $mix_results);
+		$log->debug("running command @mix_cmd");
+		my $mix_retval = system(@mix_cmd) >> 8;
+		if ($mix_retval != 0 && $mix_retval != 2)
+		{
+			$log->logdie("Cover inspection failed with exit status $mix_retval");
+		}
+
+		open(my $mix_in, "<$mix_results")
+		  or $log->logdie("can't open $mix_results: $!");
+		while (my $line = <$mix_in>)
+		{
+			next if $line =~ /^#/;
+			chomp($line);
+			my ($cover_file, $mix_file, $result, $detail) = split(/\t/, $line);
+			if ($result ne "OK")
+			{
+				$log->warn("Can't read cover $cover_file, no MIX written: "
+				  . ($detail || "no detail"));
+			}
+		}
+		close($mix_in);
+	}
+
+	if (@pending)
+	{
+		open(my $out, ">$mets_manifest")
+		  or $log->logdie("can't open $mets_manifest: $!");
+		for my $aip (@pending)
+		{
+			print $out join(" ", $aip->{aip_root}, $aip_version,
+				$aip->{aip_root_dir}, mets_tmpfile($aip)), "\n";
+		}
+		close($out);
+
+		# Generate METS for all AIPs in a single JVM. An exit status of 2
+		# means some AIPs failed, which is reported per AIP in the results.
+		my @cmd = ("java", "-Dnyup.validation.cache=$validation_cache",
+			"-jar", "GenNyupAipMets/lib/gennyupaipmets.jar",
+			"-batch", $mets_manifest, "-results", $mets_results);
+		$log->debug("running command @cmd");
+		my $retval = system(@cmd) >> 8;
+		if ($retval != 0 && $retval != 2)
+		{
+			$log->logdie("METS batch failed with exit status $retval");
+		}
+
+		my %mets_result;
+		open(my $in, "<$mets_results")
+		  or $log->logdie("can't open $mets_results: $!");
+		while (my $line = <$in>)
+		{
+			next if $line =~ /^#/;
+			chomp($line);
+			my ($aip_root, $version, $code, $name, $detail) = split(/\t/, $line);
+			$mets_result{$aip_root} = [$code, $name, $detail];
+		}
+		close($in);
+
+		for my $aip (@pending)
+		{
+			$id = $aip->{id};
+			my $result = $mets_result{$aip->{aip_root}};
+			if (!$result || $result->[0] != 0)
+			{
+				my $reason = $result ? "$result->[1]: $result->[2]" : "no result";
+				$log->error("METS generation failed for $id ($reason)");
+				set_status($id, "aip", "FAILED");
+				rmtree($aip->{aip_root_dir});
+				next;
+			}
+			# A failure is marked by the __DIE__ handler and leaves the
+			# other AIPs of the batch to be finished.
+			if (!eval { finish_aip($aip); 1 })
+			{
+				$log->error("Can't finish AIP $aip->{aip_root} for $id: $@");
+				rmtree($aip->{aip_root_dir}) if -d $aip->{aip_root_dir};
+				next;
+			}
+			set_status($id, "aip", "PASSED");
+		}
+	}
+
+	@pending = ();
+	$id = undef;
+}
+
+
+sub set_status
+{
+	my ($id, $stage, $value) = @_;
+	$status{$id}{$stage} = $value;
+	print $journal "$id\t$stage\t$value\n"
+	  or $log->logdie("can't write to $journal_file: $!");
+}
+
+
+sub mets_tmpfile
+{
+	my $aip = shift;
+	return "$aip->{aip_root_dir}/$aip->{aip_root}-$aip_version.xml.tmp";
+}
+
+
+sub finish_aip
+{
+	my $aip = shift;
+	my $id           = $aip->{id};
+	my $aip_root     = $aip->{aip_root};
+	my $aip_root_dir = $aip->{aip_root_dir};
+	my ($in, $out, $line);
+
 	my $aip_mets_file = "$aip_root_dir/$aip_root-$aip_version.xml";
-	my $aip_mets_tmpfile = "$aip_mets_file.tmp";
-	sys("java -jar GenNyupAipMets/lib/gennyupaipmets.jar "
-	  . "$aip_root $aip_version $aip_root_dir $aip_mets_tmpfile");
+	my $aip_mets_tmpfile = mets_tmpfile($aip);
 	sys("xsltproc -o $aip_mets_file add-namespace.xsl $aip_mets_tmpfile");
 	unlink($aip_mets_tmpfile)
 		or $log->logdie("can't unlink $aip_mets_tmpfile: $!");
@@ -268,7 +527,7 @@ for my $onix_file (sort @onix_files)
 		$line =~ s/<CREATE_DATE>/$now/g;
 		$line =~ s/<AIP_ROOT>/$aip_root/g;
 		$line =~ s/<AIP_VERSION>/$aip_version/g;
-		$line =~ s/<METS_RIGHTS_CHECKSUM>/$rights_checksum/g;
+		$line =~ s/<METS_RIGHTS_CHECKSUM>/$aip->{rights_checksum}/g;
 		$line =~ s/<METS_AIP_CHECKSUM>/$aip_mets_checksum/g;
 		print $out $line;
 	}
@@ -279,12 +538,9 @@ for my $onix_file (sort @onix_files)
 	sys("/usr/local/dlib/pr/bin/pr-qa-pr-aip-v1.0.1 -V -d $aip_root_dir");
 
 	sys("mv $aip_root_dir $valid_aip_dir");
-	sys("mv $onix_file $valid_aip_dir");
-
-	$status{$id} = "PASSED";
+	sys("mv $aip->{onix_file} $valid_aip_dir");
 }
 
-
 sub rename_file
 {
 	my $old_name = $_;
@@ -31,7 +31,8 @@ for ONIX_FILE in $DROPBOX_DIR/2014-*/*_onix.xml
 do
 	SUBMIT_DIR=`dirname "$ONIX_FILE"`
 	cp -a "$SUBMIT_DIR"/* $WORK_DIR
-	./split-onix.pl -f -p "${WORK_DIR}/" "$ONIX_FILE"
+	java -cp GenNyupAipMets/lib/gennyupaipmets.jar \
+		edu.nyu.dlib.nyup.OnixSplitter -f -p "${WORK_DIR}/" "$ONIX_FILE"
 done
 
 rm -rf $WORK_DIR/NYUP*_onix.xml
@@ -10,6 +10,9 @@ PDF_DIR=/path/to/pdf/files
 
 NUM_PROC=10
 
+# total heap in MB for all running pdf2pdfa jobs
+HEAP_BUDGET=8192
+
 # current date/time, e.g. 2010-07-13-20-14-59
 NOW=$(date +"%Y-%m-%d-%H-%M-%S")
 
@@ -24,38 +27,19 @@ exec >> $LOGFILE 2>&1
 
 echoerr() { echo "$@" 1>&2; }
 
-SAVEIFS=$IFS
-IFS=$(echo -en "\n\b")
-i=0
-declare -a files
-declare -a pids
-for f in `find "$PDF_DIR" \( ! -name '.*' \) -name '*.pdf'`
+LIST_FILE=`mktemp`
+trap "rm -f $LIST_FILE" EXIT
+
+find "$PDF_DIR" \( ! -name '.*' \) -name '*.pdf' | while read -r f
 do
 	if [ ! -f "${f}a" -a ! -f "${f}a.unvalidated" ]; then
-		files[i++]=$f
+		echo "$f"
 	fi
-done
-IFS=$SAVEIFS
-
-NUM_FILES=$i
-echoerr "number of files $NUM_FILES"
-
-for ((i = 0 ; i < NUM_FILES ; i += NUM_PROC)); do
-	MAX_FILE_NUM=$((NUM_FILES < i + NUM_PROC ? NUM_FILES : i + NUM_PROC))
-	for ((j = i ; j < MAX_FILE_NUM ; j++)); do
-		set -x
-		./pdf2pdfa -s "${files[$j]}" "${files[$j]}a.unvalidated" &
-		set +x
-		pids[j]=$!
-	done
-	for ((j = i ; j < MAX_FILE_NUM ; j++)); do
-		echoerr "Waiting for pid[${pids[$j]}] to finish ... "
-		wait ${pids[$j]}
-		if [ $? -ne 0 ]; then
-			echo "${files[$j]}" >> FAILED.txt
-		fi
-		echoerr "pid[${pids[$j]}] finished"
-	done
-	echoerr =================
-done
+done > $LIST_FILE
+
+echoerr "number of files `wc -l < $LIST_FILE`"
 
+# Runs largest files first on NUM_PROC workers, within a shared heap
+# budget, and keeps failures in FAILED.tsv.
+java -cp . PdfaScheduler -jobs $NUM_PROC -heap-budget $HEAP_BUDGET \
+	-failed FAILED.tsv convert $LIST_FILE
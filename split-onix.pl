@@ -30,6 +30,21 @@ $log->debug("Prefix will be set to $opt_p") if $opt_p;
 
 my @combined_onix_files = map(abs_path($_), @ARGV);
 
+# Resolve the ONIX DTD to the local copy listed in the schema catalog
+# shared with GenNyupAipMets instead of fetching it for every file.
+# libxml2 doesn't fall back to the DTD's URL when the file the catalog
+# maps it to is missing, so the catalog is only used once "ant
+# fetch-schemas" has put the DTD there.
+my $conf_dir = dirname(abs_path($0)) . "/GenNyupAipMets/conf";
+my $schema_catalog = "$conf_dir/schema-catalog.xml";
+my $onix_dtd = "$conf_dir/schemas/onix/2.1/reference/onix-international.dtd";
+if (-f $schema_catalog && -f $onix_dtd) {
+	XML::LibXML->load_catalog($schema_catalog);
+} else {
+	$log->warn("No local copy of the ONIX DTD in $conf_dir, "
+	  . "fetching it from the network");
+}
+
 for my $combined_onix_file (@combined_onix_files)
 {
 	$log->logdie("Onix file $combined_onix_file doesn't exist")